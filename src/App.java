@@ -1,31 +1,135 @@
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import analyser.Analyser;
+import analyser.Ast;
 import error.CompileError;
-import instruction.Instruction;
 import tokenizer.StringIter;
 import tokenizer.Token;
 import tokenizer.TokenType;
 import tokenizer.Tokenizer;
+import vm.AotCompiler;
+import vm.Engine;
+import vm.MiniVm;
 
 public class App {
     public static void main(String[] args) throws Exception{
-        Scanner sc=new Scanner(new File(args[0]));
+        if (args.length >= 2 && args[0].equals("-r")) {
+            // java App -r program.o0 [interpreter|closure|jit] 直接用 MiniVm 运行编译好的程序
+            MiniVm vm = MiniVm.load(new FileInputStream(new File(args[1])));
+            if (args.length > 2)
+                vm.setEngine(Engine.valueOf(args[2].toUpperCase()));
+            vm.run();
+            return;
+        }
+        if (args.length == 3 && args[0].equals("-aot")) {
+            // java App -aot program.c0 program.jar 提前编译成可以 java -jar 运行的 JAR
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            new Analyser(new Tokenizer(new StringIter(Paths.get(args[1])))).analyse(image);
+            try (FileOutputStream jar = new FileOutputStream(new File(args[2]))) {
+                AotCompiler.writeJar(image.toByteArray(), "C0Program", jar);
+            }
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("-batch")) {
+            // java App -batch 源文件目录 输出目录 [线程数] 在一个 JVM 里并行编译目录里所有的 .c0 文件
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            if (!compileAll(Paths.get(args[1]), Paths.get(args[2]), threads))
+                System.exit(1);
+            return;
+        }
+        boolean verbose = false;
+        if (args.length >= 3 && args[0].equals("-v")) {
+            // java App -v program.c0 program.o0 在标准错误输出每个函数窥孔优化删掉的指令数
+            verbose = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        int threads = 1;
+        if (args.length == 4 && args[0].equals("-j")) {
+            // java App -j 线程数 program.c0 program.o0 大文件分段并行做词法分析
+            threads = Integer.parseInt(args[1]);
+            args = Arrays.copyOfRange(args, 2, 4);
+        }
         FileOutputStream output = new FileOutputStream(new File(args[1]));
-        StringIter it=new StringIter(sc);
+        StringIter it=new StringIter(Paths.get(args[0]));
         Tokenizer tokenizer=new Tokenizer(it);
+        tokenizer.setParallelism(threads);
         Analyser analyser=new Analyser(tokenizer);
+        if (verbose)
+            analyser.setReport(System.err);
         analyser.analyse(output);
     }
-}
 
+    /**
+     * 用固定大小的线程池编译 source 目录里的每个 .c0 文件，结果写到 target 目录下同名的 .o0 文件
+     * 每个线程复用自己的语法树；出错的文件不留下 .o0，按文件名的顺序报告在标准错误上，不影响其他文件
+     *
+     * @return 是否全部编译成功
+     */
+    private static boolean compileAll(Path source, Path target, int threads) throws IOException, InterruptedException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(source, "*.c0")) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        Collections.sort(files);
+        Files.createDirectories(target);
+
+        ThreadLocal<Ast> asts = ThreadLocal.withInitial(Ast::new);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> results = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Path output = target.resolve(name.substring(0, name.length() - 3) + ".o0");
+            results.add(pool.submit(() -> {
+                // 先写到临时文件，编译成功才改名成 .o0；失败时连同上一次留下的 .o0 一起删掉
+                Path temp = Files.createTempFile(target, name, ".tmp");
+                try {
+                    // 用 FileOutputStream，ImageWriter 能直接拿到它的 FileChannel 按位置补写函数个数
+                    try (OutputStream out = new FileOutputStream(temp.toFile())) {
+                        new Analyser(new Tokenizer(new StringIter(file)), asts.get()).analyse(out);
+                    }
+                    Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (Exception e) {
+                    Files.deleteIfExists(temp);
+                    Files.deleteIfExists(output);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+        pool.shutdown();
+
+        boolean ok = true;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                System.err.println(files.get(i) + ": " + e.getCause());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}
@@ -2,84 +2,123 @@ package analyser;
 
 import error.*;
 import instruction.*;
+import ir.Pipeline;
+import peephole.Peephole;
 import symbol.*;
 import tokenizer.*;
 import util.*;
 
-import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.*;
 
+/**
+ * 一次编译：token、符号表、全局变量表、语法树和生成的指令都放在这个对象里，analyse 调用一次就用完了
+ * 所有编译共用的只有不可变的表（运算符结合力、FIRST 集、标准库函数签名），不同的 Analyser 可以在不同线程里同时编译
+ */
 public class Analyser {
-    Tokenizer tokenizer;
-    Token peekedToken = null;
-
-    ArrayList<TokenType> terminals = new ArrayList<>(Arrays.asList(TokenType.GT,TokenType.LT, TokenType.GE, TokenType.LE, TokenType.EQ, TokenType.NEQ,TokenType.PLUS, TokenType.MINUS, TokenType.MUL, TokenType.DIV, TokenType.AS_KW));
-    public boolean[][] map = {
-        // >    <       >=  <=      ==  !=      +       -       *   /       as
-        { true, true, true, true, true, true, false, false, false, false, false }, // >
-        { true, true, true, true, true, true, false, false, false, false, false }, // <
-        { true, true, true, true, true, true, false, false, false, false, false }, // >=
-        { true, true, true, true, true, true, false, false, false, false, false }, // <=
-        { true, true, true, true, true, true, false, false, false, false, false }, // ==
-        { true, true, true, true, true, true, false, false, false, false, false }, // !=
-        { true, true, true, true, true, true, true, true, false, false, false }, // +
-        { true, true, true, true, true, true, true, true, false, false, false }, // -
-        { true, true, true, true, true, true, true, true, true, true, false }, // *
-        { true, true, true, true, true, true, true, true, true, true, false }, // /
-        { true, true, true, true, true, true, true, true, true, true, true } };// as
-    public static ArrayList<ArrayList<Instruction>> outputfunctions = new ArrayList<>();
-    Stack<SymbolEntry> symbolTable = new Stack<>();
-    Stack<Integer> index = new Stack<>();
-    HashMap<String, Integer> hash = new HashMap<>();
-    ArrayList<Instruction> instructions;
-    ArrayList<Instruction> start;
-    ArrayList<String> Globals;
-    int globalOffset = 0;
+    TokenBuffer tokens;
+    // 下一个要读的 token 的下标
+    int cursor = 0;
+
+    // 二元运算符的结合力，按 TokenType 的序号查，0 表示不是二元运算符
+    // 比较运算最低，然后是 + -，然后是 * /，as 最高，全部左结合
+    private static final int[] BINDING_POWER = new int[TokenType.values().length];
+
+    static {
+        for (TokenType t : new TokenType[]{TokenType.GT, TokenType.LT, TokenType.GE, TokenType.LE, TokenType.EQ, TokenType.NEQ})
+            BINDING_POWER[t.ordinal()] = 1;
+        BINDING_POWER[TokenType.PLUS.ordinal()] = 2;
+        BINDING_POWER[TokenType.MINUS.ordinal()] = 2;
+        BINDING_POWER[TokenType.MUL.ordinal()] = 3;
+        BINDING_POWER[TokenType.DIV.ordinal()] = 3;
+        BINDING_POWER[TokenType.AS_KW.ordinal()] = 4;
+    }
+
+    // 语法成分的 FIRST 集，第 i 位表示序号为 i 的 TokenType，TokenType 不能超过 64 个
+    private static final long EXPR_FIRST = mask(TokenType.MINUS, TokenType.IDENT, TokenType.UINT_LITERAL, TokenType.DOUBLE_LITERAL, TokenType.STRING_LITERAL, TokenType.CHAR_LITERAL, TokenType.L_PAREN);
+    private static final long DECL_FIRST = mask(TokenType.LET_KW, TokenType.CONST_KW);
+    private static final long STMT_FIRST = EXPR_FIRST | DECL_FIRST | mask(TokenType.IF_KW, TokenType.WHILE_KW, TokenType.BREAK_KW, TokenType.CONTINUE_KW, TokenType.RETURN_KW, TokenType.SEMICOLON, TokenType.L_BRACE);
+    private static final long ITEM_FIRST = DECL_FIRST | mask(TokenType.FN_KW);
+
+    private static long mask(TokenType... types) {
+        long mask = 0;
+        for (TokenType type : types)
+            mask |= 1L << type.ordinal();
+        return mask;
+    }
+
+    SymbolTable symbolTable;
+    // 每个函数的指令序列，下标 0 是 _start
+    ArrayList<InstructionBuffer> functions;
+    // 初始值在编译时就算好的全局变量记在表里，不在 _start 里初始化
+    GlobalTable globals;
     int paramOffset = 0;
     int localOffset = 0;
     int funcOffset = 1;
 
+    // 语法分析的结果，顶层的函数和全局变量按出现的顺序串在 items 上
+    Ast ast;
+    int items = -1;
+    int mainFunction;
+
+    // 不为 null 时在这里输出每个函数窥孔优化删掉的指令数
+    PrintStream report;
+
     public Analyser(Tokenizer tokenizer) {
-        this.tokenizer = tokenizer;
-        this.instructions = new ArrayList<>();
-        this.start = new ArrayList<>();
-        this.Globals = new ArrayList<>();
-        this.index.push(0);
+        this(tokenizer, new Ast());
+    }
+
+    /**
+     * 连续编译多个文件时可以传入同一个 ast，省得每次重新分配结点数组
+     */
+    public Analyser(Tokenizer tokenizer, Ast ast) {
+        this.tokens = tokenizer.tokenize();
+        this.functions = new ArrayList<>();
+        this.globals = new GlobalTable();
+        this.symbolTable = new SymbolTable(tokens.getNames().size());
+        this.ast = ast;
+        ast.clear();
     }
 
-    public void analyse(FileOutputStream output) throws CompileError, IOException {
+    public void setReport(PrintStream report) {
+        this.report = report;
+    }
+
+    /**
+     * 先做语法分析和语义检查得到语法树，再单独生成指令
+     * 生成完指令以后 token、符号表和语法树都用不到了，在优化之前放掉，这个对象不再引用它们
+     */
+    public void analyse(OutputStream output) throws CompileError, IOException {
         analyseProgram();
+        new CodeGenerator(ast, functions).generateProgram(items, mainFunction);
+        tokens = null;
+        symbolTable = null;
+        ast = null;
         output(output);
     }
 
     /**
-     * 查看下一个 Token
+     * 查看下一个 Token 的类型
      *
      * @return
-     * @throws TokenizeError
+     * @throws TokenizeError 词法分析在这个位置出错
      */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
-        }
-        return peekedToken;
+    private TokenType peek() throws TokenizeError {
+        return tokens.type(cursor);
     }
 
     /**
      * 获取下一个 Token
      *
-     * @return
-     * @throws TokenizeError
+     * @return 这个 token 在 tokens 里的下标
+     * @throws TokenizeError 词法分析在这个位置出错
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            Token token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
+    private int next() throws TokenizeError {
+        tokens.type(cursor);
+        return cursor++;
     }
 
     /**
@@ -90,23 +129,28 @@ public class Analyser {
      * @throws TokenizeError
      */
     private boolean check(TokenType tt) throws TokenizeError {
-        Token token = peek();
-        return token.getTokenType() == tt;
+        return peek() == tt;
+    }
+
+    /**
+     * 如果下一个 token 的类型在 FIRST 集 mask 里，则返回 true
+     */
+    private boolean checkAny(long mask) throws TokenizeError {
+        return (mask >>> peek().ordinal() & 1) != 0;
     }
 
     /**
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回这个 token
      *
      * @param tt 类型
-     * @return 如果匹配则返回这个 token，否则返回 null
+     * @return 如果匹配则返回这个 token 的下标，否则返回 -1
      * @throws TokenizeError
      */
-    private Token nextIf(TokenType tt) throws TokenizeError {
-        Token token = peek();
-        if (token.getTokenType() == tt) {
+    private int nextIf(TokenType tt) throws TokenizeError {
+        if (peek() == tt) {
             return next();
         } else {
-            return null;
+            return -1;
         }
     }
 
@@ -114,94 +158,65 @@ public class Analyser {
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
      *
      * @param tt 类型
-     * @return 这个 token
+     * @return 这个 token 的下标
      * @throws CompileError 如果类型不匹配
      */
-    private Token expect(TokenType tt) throws CompileError {
-        Token token = peek();
-        if (token.getTokenType() == tt) {
+    private int expect(TokenType tt) throws CompileError {
+        if (peek() == tt) {
             return next();
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, tokens.token(cursor));
         }
     }
 
     /**
      * 添加一个符号
      *
-     * @param name          名字
+     * @param nameId        名字编号
      * @param initflag 是否已赋值
      * @param isConstant    是否是常量
      * @param curPos        当前 token 的位置（报错用）
      * @throws AnalyzeError 如果重复定义了则抛异常
      */
-    private SymbolEntry addSymbol(String name, boolean isConstant, boolean initflag, SymbolType symbolType, SymbolRange symbolrange, Pos curPos) throws AnalyzeError {
-        Integer addr = this.hash.get(name);
-        if (addr != null && addr >= this.index.peek()) {
+    private SymbolEntry addSymbol(int nameId, boolean isConstant, boolean initflag, SymbolType symbolType, SymbolRange symbolrange, Pos curPos) throws AnalyzeError {
+        if (symbolTable.declaredInCurrentScope(nameId))
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
-        } else {
-            if (addr != null) {
-                switch (symbolrange) {
-                    case global:
-                        this.symbolTable.push(new SymbolEntry(name, isConstant, initflag, symbolType, addr, symbolrange, globalOffset++));
-                        if (isConstant)
-                            Globals.add("1");
-                        else
-                            Globals.add("0");
-                        break;
-                    case param:
-                        this.symbolTable.push(new SymbolEntry(name, isConstant, initflag, symbolType, addr, symbolrange, paramOffset++));
-                        break;
-                    case local:
-                        this.symbolTable.push(new SymbolEntry(name, isConstant, initflag, symbolType, addr, symbolrange, localOffset++));
-                        break;
-                }
-                System.out.println("add/dup:" + symbolTable.peek().name);
-            } else {
-                switch (symbolrange) {
-                    case global:
-                        this.symbolTable.push(new SymbolEntry(name, isConstant, initflag, symbolType, symbolrange, globalOffset++));
-                        if (isConstant)
-                            Globals.add("1");
-                        else
-                            Globals.add("0");
-                        break;
-                    case param:
-                        this.symbolTable.push(new SymbolEntry(name, isConstant, initflag, symbolType, symbolrange, paramOffset++));
-                        break;
-                    case local:
-                        this.symbolTable.push(new SymbolEntry(name, isConstant, initflag, symbolType, symbolrange, localOffset++));
-                        break;
-                }
-                System.out.println("add:" + symbolTable.peek().name);
-            }
-            this.hash.put(name, symbolTable.size() - 1);
+        String name = tokens.getNames().name(nameId);
+        SymbolEntry symbol = null;
+        switch (symbolrange) {
+            case global:
+                symbol = new SymbolEntry(name, isConstant, initflag, symbolType, symbolrange, globals.variable(isConstant));
+                break;
+            case param:
+                symbol = new SymbolEntry(name, isConstant, initflag, symbolType, symbolrange, paramOffset++);
+                break;
+            case local:
+                symbol = new SymbolEntry(name, isConstant, initflag, symbolType, symbolrange, localOffset++);
+                break;
         }
-        return this.symbolTable.peek();
+        symbolTable.declare(nameId, symbol);
+        return symbol;
     }
 
-    private SymbolEntry addFuncSymbol(String name, Pos curPos) throws AnalyzeError {
-        Integer location = this.hash.get(name);
-        if (location != null && location >= this.index.peek()) {
+    /**
+     * 添加一个函数，并进入这个函数的作用域，参数和函数体最外层的局部变量都在这个作用域里
+     */
+    private SymbolEntry addFuncSymbol(int nameId, Pos curPos) throws AnalyzeError {
+        if (symbolTable.declaredInCurrentScope(nameId))
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
-        } else {
-            SymbolEntry symbol = new SymbolEntry(name, true, SymbolRange.global, globalOffset++, funcOffset++);
-            this.symbolTable.push(symbol);
-            this.hash.put(name, symbolTable.size() - 1);
-            this.index.push(symbolTable.size());
-            Globals.add(name);
-            System.out.println("add:" + symbolTable.peek().name);
-            return symbol;
-        }
+        String name = tokens.getNames().name(nameId);
+        SymbolEntry symbol = new SymbolEntry(name, true, SymbolRange.global, globals.string(name), funcOffset++);
+        symbolTable.declare(nameId, symbol);
+        symbolTable.enterScope();
+        return symbol;
     }
 
     private void addBlock() {
-        this.index.push(this.symbolTable.size());
-        System.out.println("add block");
+        symbolTable.enterScope();
     }
 
-    private void changeInitialized(String name, Pos curPos) throws AnalyzeError {
-        SymbolEntry symbol = symbolTable.get(hash.get(name));
+    private void changeInitialized(int nameId, Pos curPos) throws AnalyzeError {
+        SymbolEntry symbol = symbolTable.lookup(nameId);
         if (symbol.constflag==true)
             throw new AnalyzeError(ErrorCode.AssignToConstant, curPos);
         else {
@@ -211,642 +226,410 @@ public class Analyser {
     }
 
     private void removeBlockSymbols(boolean isFunction) {
-        int endIndex = index.pop();
-        for (int i = symbolTable.size() - 1; i >= endIndex; i--) {
-            SymbolEntry tmpSymbol = symbolTable.pop();
-            if (tmpSymbol.lastaddr == -1) {
-                hash.remove(tmpSymbol.name);
-                System.out.println();
-            } else {
-                hash.put(tmpSymbol.name, tmpSymbol.lastaddr);
-            }
-        }
+        symbolTable.exitScope();
         if (isFunction)
             paramOffset = 0;
-        System.out.println("remove block");
     }
 
     private void analyseProgram() throws CompileError {
-        Globals.add("_start");
-        start.add(new FunctionEntry(Operation.func, 0, 0, 0, globalOffset++));
-        while (check(TokenType.FN_KW) || check(TokenType.LET_KW) || check(TokenType.CONST_KW)) {
-            if (check(TokenType.FN_KW))
-                analyseFunction();
+        globals.string("_start");
+        int last = -1;
+        TokenType type;
+        while (checkAny(ITEM_FIRST)) {
+            type = peek();
+            int item;
+            if (type == TokenType.FN_KW)
+                item = analyseFunction();
+            else if (type == TokenType.CONST_KW)
+                item = analyseConstDeclStmt(SymbolRange.global);
             else
-            {
-                {
-                    if (check(TokenType.CONST_KW))
-                        analyseConstDeclStmt(SymbolRange.global);
-                    else
-                        analyseLetDeclStmt(SymbolRange.global);
-                }
-            }
+                item = analyseLetDeclStmt(SymbolRange.global);
+            if (item < 0)
+                continue;
+            if (items < 0)
+                items = item;
+            last = ast.link(last, item);
         }
         expect(TokenType.EOF);
-        start.add(new Instruction(Operation.stackalloc, 0));
-        start.add(new Instruction(Operation.call, this.symbolTable.get(this.hash.get("main")).funcOffset));
+        SymbolEntry main = symbolTable.lookup(tokens.getNames().find("main"));
+        if (main == null || !main.isFunction)
+            throw new AnalyzeError(ErrorCode.NotDeclared);
+        mainFunction = main.funcOffset;
     }
 
-    private void analyseFunction() throws CompileError {
+    private int analyseFunction() throws CompileError {
         expect(TokenType.FN_KW);
-        Token nameToken = expect(TokenType.IDENT);
-        SymbolEntry funcSymbol = addFuncSymbol(nameToken.getValueString(), nameToken.getStartPos());
+        int nameToken = expect(TokenType.IDENT);
+        SymbolEntry funcSymbol = addFuncSymbol(tokens.nameId(nameToken), tokens.startPos(nameToken));
         localOffset = 0;
-        FunctionEntry functionInstruction = new FunctionEntry(Operation.func);
-        instructions.add(functionInstruction);
         expect(TokenType.L_PAREN);
         if (check(TokenType.IDENT))
         {
             do {
                 analyseFunctionParam(funcSymbol.params);
-            } while (nextIf(TokenType.COMMA) != null);
+            } while (nextIf(TokenType.COMMA) >= 0);
         }
         expect(TokenType.R_PAREN);
         expect(TokenType.ARROW);
         SymbolType type = analyseType();
         funcSymbol.symbolType=type;
-        functionInstruction.paramnum=paramOffset;
-        if (type == SymbolType.VOID)
-            functionInstruction.returnnum=0;
-        else {
-            functionInstruction.returnnum=1;
+        int paramnum = paramOffset;
+        if (type != SymbolType.VOID) {
             int last = symbolTable.size() - 1;
             for (int i = 0; i < paramOffset; i++) {
                 SymbolEntry symbol = this.symbolTable.get(last - i);
                 symbol.offset=symbol.offset + 1;
             }
         }
-        functionInstruction.offset=funcSymbol.offset;
-        boolean[] b = analyseBlockStmt(true, false, type, 0, null);
-        if (type != SymbolType.VOID && !b[0]) {
-            throw new AnalyzeError(ErrorCode.InvalidInput, nameToken.getStartPos());
+        int body = analyseBlockStmt(true, false, type);
+        if (type != SymbolType.VOID && (ast.flags[body] & Ast.RETURNS) == 0) {
+            throw new AnalyzeError(ErrorCode.InvalidInput, tokens.startPos(nameToken));
         }
-        if (type == SymbolType.VOID && !b[0])
-            instructions.add(new Instruction(Operation.ret));
-        functionInstruction.localnum=localOffset;
+        int node = ast.add(Ast.FUNCTION, type, body, funcSymbol.offset, paramnum);
+        ast.d[node] = localOffset;
+        return node;
     }
     private void analyseFunctionParam(ArrayList<SymbolType> params) throws CompileError {
         boolean isConstant = false;
-        if (nextIf(TokenType.CONST_KW) != null)
+        if (nextIf(TokenType.CONST_KW) >= 0)
             isConstant = true;
-        Token nameToken = expect(TokenType.IDENT);
+        int nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
         SymbolType type = analyseType();
-        addSymbol(nameToken.getValueString(), isConstant, true, type, SymbolRange.param, nameToken.getStartPos());
+        addSymbol(tokens.nameId(nameToken), isConstant, true, type, SymbolRange.param, tokens.startPos(nameToken));
         params.add(type);
     }
 
-    private boolean[] analyseBlockStmt(boolean isFunction, boolean insideWhile, SymbolType returnType, int loopLoc, ArrayList<Integer> breakList) throws CompileError {
-        boolean haveReturn = false;
-        boolean haveBreakOrContinue = false;
-        int returnSize = 0;
-        int breakOrContinueSize = 0;
+    /**
+     * 语句块的 flags 是其中各语句 flags 的并，一定会返回或跳走的语句之后的语句照样分析，但是不留在语法树里
+     */
+    private int analyseBlockStmt(boolean isFunction, boolean insideWhile, SymbolType returnType) throws CompileError {
+        int first = -1;
+        int last = -1;
+        int flags = 0;
         expect(TokenType.L_BRACE);
         if (!isFunction)
             addBlock();
-        while (check(TokenType.MINUS) || check(TokenType.IDENT) || check(TokenType.UINT_LITERAL) || check(TokenType.DOUBLE_LITERAL) || check(TokenType.STRING_LITERAL) || check(TokenType.CHAR_LITERAL) || check(TokenType.L_PAREN) || check(TokenType.LET_KW) || check(TokenType.CONST_KW) || check(TokenType.IF_KW) || check(TokenType.WHILE_KW) || check(TokenType.BREAK_KW) || check(TokenType.CONTINUE_KW) || check(TokenType.RETURN_KW) || check(TokenType.SEMICOLON) || check(TokenType.L_BRACE)) {
-            if (returnSize == 0 && haveReturn)
-                returnSize = instructions.size();
-            else if (breakOrContinueSize == 0 && haveBreakOrContinue)
-                breakOrContinueSize = instructions.size();
-
-            if (haveReturn && haveBreakOrContinue)
-                analyseStmt(insideWhile, returnType, loopLoc, breakList);
-            else if (haveReturn)
-                haveBreakOrContinue = analyseStmt(insideWhile, returnType, loopLoc, breakList)[1];
-            else if (haveBreakOrContinue)
-                haveReturn = analyseStmt(insideWhile, returnType, loopLoc, breakList)[0];
-            else {
-                boolean[] b = analyseStmt(insideWhile, returnType, loopLoc, breakList);
-                haveReturn = b[0];
-                haveBreakOrContinue = b[1];
+        while (checkAny(STMT_FIRST)) {
+            int mark = ast.size();
+            boolean reachable = flags == 0;
+            int stmt = analyseStmt(insideWhile, returnType);
+            if (stmt < 0)
+                continue;
+            flags |= ast.flags[stmt];
+            if (!reachable) {
+                ast.truncate(mark);
+                continue;
             }
+            if (first < 0)
+                first = stmt;
+            last = ast.link(last, stmt);
         }
         expect(TokenType.R_BRACE);
-        if (returnSize > 0)
-            instructions.subList(returnSize, instructions.size()).clear();
-        if (breakOrContinueSize > 0)
-            instructions.subList(breakOrContinueSize, instructions.size()).clear();
         removeBlockSymbols(isFunction);
-        return new boolean[]{haveReturn, haveBreakOrContinue};
+        int node = ast.add(Ast.BLOCK, null, first, -1, 0);
+        ast.flags[node] = (byte) flags;
+        return node;
     }
 
-    private boolean[] analyseStmt(boolean insideWhile, SymbolType returnType, int loopLoc, ArrayList<Integer> breakList) throws CompileError {
-        if (check(TokenType.CONST_KW) || check(TokenType.LET_KW))
+    /**
+     * @return 语句的结点，空语句和不带初始值的变量声明返回 -1
+     */
+    private int analyseStmt(boolean insideWhile, SymbolType returnType) throws CompileError {
+        TokenType type = peek();
+        if (type == TokenType.CONST_KW)
+            return analyseConstDeclStmt(SymbolRange.local);
+        else if (type == TokenType.LET_KW)
+            return analyseLetDeclStmt(SymbolRange.local);
+        else if (type == TokenType.IF_KW)
+            return analyseIfStmt(insideWhile, returnType);
+        else if (type == TokenType.WHILE_KW)
+            return analyseWhileStmt(returnType);
+        else if (type == TokenType.BREAK_KW) {
+            if (!insideWhile)
+                throw new AnalyzeError(ErrorCode.InvalidInput, tokens.startPos(cursor));
+            expect(TokenType.BREAK_KW);
+            expect(TokenType.SEMICOLON);
+            int node = ast.add(Ast.BREAK, null, -1, -1, 0);
+            ast.flags[node] = Ast.BREAKS;
+            return node;
+        } else if (type == TokenType.CONTINUE_KW) {
+            if (!insideWhile)
+                throw new AnalyzeError(ErrorCode.InvalidInput, tokens.startPos(cursor));
+            expect(TokenType.CONTINUE_KW);
+            expect(TokenType.SEMICOLON);
+            int node = ast.add(Ast.CONTINUE, null, -1, -1, 0);
+            ast.flags[node] = Ast.BREAKS;
+            return node;
+        } else if (type == TokenType.RETURN_KW)
+            return analyseReturnStmt(returnType);
+        else if (type == TokenType.L_BRACE)
+            return analyseBlockStmt(false, insideWhile, returnType);
+        else if (type == TokenType.SEMICOLON) {
+            expect(TokenType.SEMICOLON);
+            return -1;
+        }
+        else
         {
-            {
-                if (check(TokenType.CONST_KW))
-                    analyseConstDeclStmt(SymbolRange.local);
-                else
-                    analyseLetDeclStmt(SymbolRange.local);
-            }
+            int expr = analysebasicexpr();
+            expect(TokenType.SEMICOLON);
+            return ast.add(Ast.EXPR_STMT, null, expr, -1, 0);
         }
-        else if (check(TokenType.IF_KW))
-            {
-        boolean haveReturn;
-        boolean haveBreakOrContinue;
-        boolean haveElse = false;
-        ArrayList<Integer> brToEnds = new ArrayList<>();
+    }
+
+    /**
+     * 只有带 else 的 if 语句才可能一定返回或跳走，这时 flags 是各分支 flags 的交
+     */
+    private int analyseIfStmt(boolean insideWhile, SymbolType returnType) throws CompileError {
         expect(TokenType.IF_KW);
-        SymbolType t = analysebasicexpr(false);
-        if (t == SymbolType.VOID)
-            throw new AnalyzeError(ErrorCode.InvalidInput);
-        instructions.add(new Instruction(Operation.brtrue, 1));
-        instructions.add(new Instruction(Operation.br));
-        int brLoc = instructions.size() - 1;
-        boolean[] b = analyseBlockStmt(false, insideWhile, returnType, loopLoc, breakList);
-        haveReturn = b[0];
-        haveBreakOrContinue = b[1];
-        brToEnds.add(instructions.size());
-        instructions.add(new Instruction(Operation.br));
-        instructions.get(brLoc).setParam1(instructions.size() - brLoc - 1);
-        if (check(TokenType.ELSE_KW)) {
-            while (nextIf(TokenType.ELSE_KW) != null) {
-                if (nextIf(TokenType.IF_KW) != null) {
-                    t = analysebasicexpr(false);
-                    if (t == SymbolType.VOID)
-                        throw new AnalyzeError(ErrorCode.InvalidInput);
-                    instructions.add(new Instruction(Operation.brtrue, 1));
-                    instructions.add(new Instruction(Operation.br));
-                    brLoc = instructions.size() - 1;
-                    b = analyseBlockStmt(false, insideWhile, returnType, loopLoc, breakList);
-                    haveReturn &= b[0];
-                    haveBreakOrContinue &= b[1];
-                    brToEnds.add(instructions.size());
-                    instructions.add(new Instruction(Operation.br));
-                    instructions.get(brLoc).setParam1(instructions.size() - brLoc - 1);
-                } else {
-                    b = analyseBlockStmt(false, insideWhile, returnType, loopLoc, breakList);
-                    haveReturn &= b[0];
-                    haveBreakOrContinue &= b[1];
-                    haveElse = true;
-                    break;
-                }
+        int first = analyseBranch(insideWhile, returnType);
+        int last = first;
+        int flags = ast.flags[ast.b[first]];
+        int elseBlock = -1;
+        while (nextIf(TokenType.ELSE_KW) >= 0) {
+            if (nextIf(TokenType.IF_KW) >= 0) {
+                int branch = analyseBranch(insideWhile, returnType);
+                flags &= ast.flags[ast.b[branch]];
+                last = ast.link(last, branch);
+            } else {
+                elseBlock = analyseBlockStmt(false, insideWhile, returnType);
+                flags &= ast.flags[elseBlock];
+                break;
             }
         }
-        if (!haveElse) {
-            haveReturn = false;
-            haveBreakOrContinue = false;
-        }
-        for (Integer brToEnd : brToEnds) {
-            instructions.get(brToEnd).setParam1(instructions.size() - brToEnd - 1);
-        }
-        return new boolean[]{haveReturn, haveBreakOrContinue};
+        int node = ast.add(Ast.IF, null, first, elseBlock, 0);
+        if (elseBlock >= 0)
+            ast.flags[node] = (byte) flags;
+        return node;
     }
-        else if (check(TokenType.WHILE_KW))
-            analyseWhileStmt(returnType);
-        else if (check(TokenType.BREAK_KW)) {
-            if (insideWhile)
-                analyseBreakStmt(breakList);
-            else
-                throw new AnalyzeError(ErrorCode.InvalidInput, peek().getStartPos());
-            return new boolean[]{false, true};
-        } else if (check(TokenType.CONTINUE_KW)) {
-            if (insideWhile)
-                analyseContinueStmt(loopLoc);
-            else
-                throw new AnalyzeError(ErrorCode.InvalidInput, peek().getStartPos());
-            return new boolean[]{false, true};
-        } else if (check(TokenType.RETURN_KW)) {
-            analyseReturnStmt(returnType);
-            return new boolean[]{true, false};
-        } else if (check(TokenType.L_BRACE))
-            return analyseBlockStmt(false, insideWhile, returnType, loopLoc, breakList);
-        else if (check(TokenType.SEMICOLON))
-            expect(TokenType.SEMICOLON);
-        else
-        {
-            SymbolType t = analysebasicexpr(false);
-            expect(TokenType.SEMICOLON);
-            if (t != SymbolType.VOID)
-                instructions.add(new Instruction(Operation.pop));
-        }
-        return new boolean[]{false, false};
+
+    private int analyseBranch(boolean insideWhile, SymbolType returnType) throws CompileError {
+        int condition = analysebasicexpr();
+        if (ast.typeOf(condition) == SymbolType.VOID)
+            throw new AnalyzeError(ErrorCode.InvalidInput);
+        int block = analyseBlockStmt(false, insideWhile, returnType);
+        return ast.add(Ast.BRANCH, null, condition, block, 0);
     }
 
 
-    private void analyseConstDeclStmt(SymbolRange symbolrange) throws CompileError {
-        boolean isGlobal = symbolrange == SymbolRange.global;
+    private int analyseConstDeclStmt(SymbolRange symbolrange) throws CompileError {
         expect(TokenType.CONST_KW);
-        Token nameToken = expect(TokenType.IDENT);
+        int nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
         SymbolType type = analyseType();
         if (type == SymbolType.VOID)
-            throw new AnalyzeError(ErrorCode.InvalidInput, nameToken.getStartPos());
-        SymbolEntry symbol = addSymbol(nameToken.getValueString(), true, true, type, symbolrange, nameToken.getStartPos());
+            throw new AnalyzeError(ErrorCode.InvalidInput, tokens.startPos(nameToken));
+        SymbolEntry symbol = addSymbol(tokens.nameId(nameToken), true, true, type, symbolrange, tokens.startPos(nameToken));
         expect(TokenType.ASSIGN);
-
-        if (isGlobal)
-            start.add(new Instruction(Operation.globa, symbol.offset));
-        else
-            instructions.add(new Instruction(Operation.loca, symbol.offset));
-
-        SymbolType t = analysebasicexpr(isGlobal);
-        if (type != t)
+        int value = analysebasicexpr();
+        if (type != ast.typeOf(value))
             throw new AnalyzeError(ErrorCode.InvalidInput);
         expect(TokenType.SEMICOLON);
-        if (isGlobal)
-            start.add(new Instruction(Operation.store64));
-        else
-            instructions.add(new Instruction(Operation.store64));
+        if (ast.kind[value] == Ast.PUSH) {
+            symbol.hasConstantValue = true;
+            symbol.constantValue = ast.value[value];
+            return constantDecl(symbol, value);
+        }
+        return ast.add(Ast.DECL, null, value, symbol.offset, symbolrange.ordinal());
+    }
+
+    /**
+     * 初始值是常量的全局变量直接写进全局变量表；读 const 变量的地方都换成了常量，局部的 const 变量不用再赋值
+     *
+     * @return 还需要赋值时返回变量声明结点，否则返回 -1
+     */
+    private int constantDecl(SymbolEntry symbol, int value) {
+        if (symbol.symbolrange == SymbolRange.global) {
+            globals.setValue(symbol.offset, ast.value[value]);
+            ast.truncate(value);
+            return -1;
+        }
+        if (symbol.constflag) {
+            ast.truncate(value);
+            return -1;
+        }
+        return ast.add(Ast.DECL, null, value, symbol.offset, symbol.symbolrange.ordinal());
     }
 
-    private void analyseLetDeclStmt(SymbolRange symbolrange) throws CompileError {
-        boolean isGlobal = symbolrange == SymbolRange.global;
+    private int analyseLetDeclStmt(SymbolRange symbolrange) throws CompileError {
         expect(TokenType.LET_KW);
-        Token nameToken = expect(TokenType.IDENT);
+        int nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
         SymbolType type = analyseType();
         if (type == SymbolType.VOID)
-            throw new AnalyzeError(ErrorCode.InvalidInput, nameToken.getStartPos());
-        SymbolEntry symbol = addSymbol(nameToken.getValueString(), false, false, type, symbolrange, nameToken.getStartPos());
-        if (nextIf(TokenType.ASSIGN) != null) {
-
-            if (isGlobal)
-                start.add(new Instruction(Operation.globa, symbol.offset));
-            else
-                instructions.add(new Instruction(Operation.loca, symbol.offset));
-
-            SymbolType t = analysebasicexpr(isGlobal);
-            if (type != t)
+            throw new AnalyzeError(ErrorCode.InvalidInput, tokens.startPos(nameToken));
+        SymbolEntry symbol = addSymbol(tokens.nameId(nameToken), false, false, type, symbolrange, tokens.startPos(nameToken));
+        int node = -1;
+        if (nextIf(TokenType.ASSIGN) >= 0) {
+            int value = analysebasicexpr();
+            if (type != ast.typeOf(value))
                 throw new AnalyzeError(ErrorCode.InvalidInput);
-            changeInitialized(nameToken.getValueString(), nameToken.getStartPos());
-            if (isGlobal)
-                start.add(new Instruction(Operation.store64));
+            changeInitialized(tokens.nameId(nameToken), tokens.startPos(nameToken));
+            if (ast.kind[value] == Ast.PUSH)
+                node = constantDecl(symbol, value);
             else
-                instructions.add(new Instruction(Operation.store64));
+                node = ast.add(Ast.DECL, null, value, symbol.offset, symbolrange.ordinal());
         }
         expect(TokenType.SEMICOLON);
+        return node;
     }
 
 
-    private void analyseWhileStmt(SymbolType returnType) throws CompileError {
+    private int analyseWhileStmt(SymbolType returnType) throws CompileError {
         expect(TokenType.WHILE_KW);
-        ArrayList<Integer> breakList = new ArrayList<>();
-        int loopLoc = instructions.size() - 1;
-        analysebasicexpr(false);
-        instructions.add(new Instruction(Operation.brtrue, 1));
-        int brLoc = instructions.size();
-        instructions.add(new Instruction(Operation.br));
-        boolean haveBreakOrContinue = analyseBlockStmt(false, true, returnType, loopLoc, breakList)[1];
-        if (!haveBreakOrContinue)
-            instructions.add(new Instruction(Operation.br, loopLoc - instructions.size()));
-        instructions.get(brLoc).setParam1(instructions.size() - brLoc - 1);
-        for (Integer breakNum : breakList) {
-            instructions.get(breakNum).setParam1(instructions.size() - breakNum - 1);
-        }
+        int condition = analysebasicexpr();
+        int body = analyseBlockStmt(false, true, returnType);
+        return ast.add(Ast.WHILE, null, condition, body, 0);
     }
 
-    private void analyseBreakStmt(ArrayList<Integer> breakList) throws CompileError {
-        expect(TokenType.BREAK_KW);
+    private int analyseReturnStmt(SymbolType returnType) throws CompileError {
+        int expect = expect(TokenType.RETURN_KW);
+        int value = -1;
+        SymbolType type = SymbolType.VOID;
+        if (checkAny(EXPR_FIRST)) {
+            value = analysebasicexpr();
+            type = ast.typeOf(value);
+        }
         expect(TokenType.SEMICOLON);
-        breakList.add(instructions.size());
-        instructions.add(new Instruction(Operation.br));
+        if (type != returnType)
+            throw new AnalyzeError(ErrorCode.InvalidInput, tokens.startPos(expect));
+        int node = ast.add(Ast.RETURN, null, value, -1, returnType != SymbolType.VOID ? 1 : 0);
+        ast.flags[node] = Ast.RETURNS;
+        return node;
     }
 
-    private void analyseContinueStmt(int loopLoc) throws CompileError {
-        expect(TokenType.CONTINUE_KW);
-        expect(TokenType.SEMICOLON);
-        instructions.add(new Instruction(Operation.br, loopLoc - instructions.size()));
+    private int analysebasicexpr() throws CompileError {
+        return analyseBinaryExpr(0);
     }
 
-    private void analyseReturnStmt(SymbolType returnType) throws CompileError {
-        Token expect = expect(TokenType.RETURN_KW);
-        if (returnType != SymbolType.VOID)
-            instructions.add(new Instruction(Operation.arga, 0));
-        SymbolType type = SymbolType.VOID;
-        if (check(TokenType.MINUS) || check(TokenType.IDENT) || check(TokenType.UINT_LITERAL) || check(TokenType.DOUBLE_LITERAL) || check(TokenType.STRING_LITERAL) || check(TokenType.CHAR_LITERAL) || check(TokenType.L_PAREN)) {
-            SymbolType t = analysebasicexpr(false);
-            type = t;
-        }
-        expect(TokenType.SEMICOLON);
-        if (type != returnType)
-            throw new AnalyzeError(ErrorCode.InvalidInput, expect.getStartPos());
-        if (type != SymbolType.VOID)
-            instructions.add(new Instruction(Operation.store64));
-        instructions.add(new Instruction(Operation.ret));
-    }
-
-    private SymbolType analysebasicexpr(boolean isGlobal) throws CompileError {
-        Stack<TokenType> symbolStack = new Stack<>();
-        Stack<SymbolType> exprStack = new Stack<>();
-        if (symbolStack.empty()) {
-            symbolStack.push(TokenType.EOF);
-            exprStack.push(analyseExpr(isGlobal));
-        }
-        while (!symbolStack.empty()) {
-            TokenType nextType = peek().getTokenType();
-            int x = terminals.indexOf(symbolStack.peek());
-            int y = terminals.indexOf(nextType);
-            if (x == -1 && y == -1) break;
-            else if (x == -1 || y != -1 && map[x][y] == false) {
-                symbolStack.push(nextType);
-                next();
-                if (nextType == TokenType.AS_KW) {
-                    SymbolType type = analyseType();
-                    exprStack.push(type);
-                } else
-                    exprStack.push(analyseExpr(isGlobal));
-
-            } else if (y == -1 || map[x][y] == true) {
-                huisu(symbolStack, exprStack, isGlobal);
-            }
+    /**
+     * 优先级爬升：先读一个操作数，然后只处理结合力比 minPower 大的运算符
+     * 右操作数用这个运算符自己的结合力递归，所以同级运算符左结合
+     */
+    private int analyseBinaryExpr(int minPower) throws CompileError {
+        int left = analyseExpr();
+        while (true) {
+            TokenType op = peek();
+            int power = BINDING_POWER[op.ordinal()];
+            if (power <= minPower)
+                return left;
+            next();
+            if (op == TokenType.AS_KW)
+                left = analyseCast(left, analyseType());
+            else
+                left = analyseBinaryOp(op, left, analyseBinaryExpr(power));
         }
-        return exprStack.peek();
-    }
-
-    private void huisu(Stack<TokenType> symbols, Stack<SymbolType> Exprs, boolean isGlobal) throws CompileError {
-        if (Exprs.size() > 1) {
-            SymbolType t2 = Exprs.pop();
-            SymbolType t1 = Exprs.peek();
-            TokenType type = symbols.pop();
-            if (TokenType.AS_KW == type) {
-                if (t1 == SymbolType.VOID || t2 == SymbolType.VOID)
-                    throw new AnalyzeError(ErrorCode.InvalidInput);
-                else {
-                    if (t1 == SymbolType.INT && t2 == SymbolType.DOUBLE) {
-                        t1=t2;
-                        if (isGlobal)
-                            start.add(new Instruction(Operation.itof));
-                        else
-                            instructions.add(new Instruction(Operation.itof));
-                    } else if (t1 == SymbolType.DOUBLE && t2 == SymbolType.INT) {
-                        t1=t2;
-                        if (isGlobal)
-                            start.add(new Instruction(Operation.ftoi));
-                        else
-                            instructions.add(new Instruction(Operation.ftoi));
-                    }
-                }
-            } else {
-                if (t1 == t2) {
-                    switch (type) {
-                        case GT:
-                            if (t1 == SymbolType.INT)
-                                instructions.add(new Instruction(Operation.cmpi));
-                            else
-                                instructions.add(new Instruction(Operation.cmpf));
-                            instructions.add(new Instruction(Operation.setgt));
-                            t1=SymbolType.BOOL;
-                            break;
-                        case LT:
-                            if (t1 == SymbolType.INT)
-                                instructions.add(new Instruction(Operation.cmpi));
-                            else
-                                instructions.add(new Instruction(Operation.cmpf));
-                            instructions.add(new Instruction(Operation.setlt));
-                            t1=SymbolType.BOOL;
-                            break;
-                        case GE:
-                            if (t1 == SymbolType.INT)
-                                instructions.add(new Instruction(Operation.cmpi));
-                            else
-                                instructions.add(new Instruction(Operation.cmpf));
-                            instructions.add(new Instruction(Operation.setlt));
-                            instructions.add(new Instruction(Operation.not));
-                            t1=SymbolType.BOOL;
-                            break;
-                        case LE:
-                            if (t1 == SymbolType.INT)
-                                instructions.add(new Instruction(Operation.cmpi));
-                            else
-                                instructions.add(new Instruction(Operation.cmpf));
-                            instructions.add(new Instruction(Operation.setgt));
-                            instructions.add(new Instruction(Operation.not));
-                            t1=SymbolType.BOOL;
-                            break;
-                        case EQ:
-                            if (t1 == SymbolType.INT)
-                                instructions.add(new Instruction(Operation.cmpi));
-                            else
-                                instructions.add(new Instruction(Operation.cmpf));
-                            instructions.add(new Instruction(Operation.not));
-                            t1=SymbolType.BOOL;
-                            break;
-                        case NEQ:
-                            if (t1 == SymbolType.INT)
-                                instructions.add(new Instruction(Operation.cmpi));
-                            else
-                                instructions.add(new Instruction(Operation.cmpf));
-                            t1=SymbolType.BOOL;
-                            break;
-                        case PLUS:
-                            if (t1 == SymbolType.INT) {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.addi));
-                                else
-                                    instructions.add(new Instruction(Operation.addi));
-                            } else {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.addf));
-                                else
-                                    instructions.add(new Instruction(Operation.addf));
-                            }
-                            break;
-                        case MINUS:
-                            if (t1 == SymbolType.INT) {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.subi));
-                                else
-                                    instructions.add(new Instruction(Operation.subi));
-                            } else {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.subf));
-                                else
-                                    instructions.add(new Instruction(Operation.subf));
-                            }
-                            break;
-                        case MUL:
-                            if (t1 == SymbolType.INT) {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.muli));
-                                else
-                                    instructions.add(new Instruction(Operation.muli));
-                            } else {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.mulf));
-                                else
-                                    instructions.add(new Instruction(Operation.mulf));
-                            }
-                            break;
-                        case DIV:
-                            if (t1 == SymbolType.INT) {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.divi));
-                                else
-                                    instructions.add(new Instruction(Operation.divi));
-
-                            } else {
-                                if (isGlobal)
-                                    start.add(new Instruction(Operation.divf));
-                                else
-                                    instructions.add(new Instruction(Operation.divf));
-                            }
-                            break;
-                    }
-                } else throw new AnalyzeError(ErrorCode.InvalidInput);
-            }
-        } else throw new EmptyStackException();
     }
 
-    private SymbolType analyseExpr(boolean isGlobal) throws CompileError {
-        Token token;
-        ArrayList<Instruction> chosenInstruction;
-        if (isGlobal)
-            chosenInstruction = start;
-        else
-            chosenInstruction = instructions;
-        if (check(TokenType.UINT_LITERAL)) {
+    /**
+     * 类型相同的转换不生成结点
+     */
+    private int analyseCast(int operand, SymbolType to) throws CompileError {
+        SymbolType from = ast.typeOf(operand);
+        if (from == SymbolType.VOID || to == SymbolType.VOID)
+            throw new AnalyzeError(ErrorCode.InvalidInput);
+        if (from == SymbolType.INT && to == SymbolType.DOUBLE)
+            return ConstantFolder.fold(ast, ast.add(Ast.UNARY, to, operand, -1, Operation.itof.ordinal()));
+        else if (from == SymbolType.DOUBLE && to == SymbolType.INT)
+            return ConstantFolder.fold(ast, ast.add(Ast.UNARY, to, operand, -1, Operation.ftoi.ordinal()));
+        return operand;
+    }
+
+    /**
+     * 两边类型必须相同；比较运算的结果类型沿用左操作数的类型
+     */
+    private int analyseBinaryOp(TokenType op, int left, int right) throws CompileError {
+        SymbolType t1 = ast.typeOf(left);
+        if (t1 != ast.typeOf(right))
+            throw new AnalyzeError(ErrorCode.InvalidInput);
+        return ConstantFolder.fold(ast, ast.add(Ast.BINARY, t1, left, right, op.ordinal()));
+    }
+
+    private int analyseExpr() throws CompileError {
+        int token;
+        TokenType type = peek();
+        if (type == TokenType.UINT_LITERAL) {
             token = expect(TokenType.UINT_LITERAL);
-            chosenInstruction.add(new Instruction(Operation.push, token.getValue()));
-            return SymbolType.INT;
-        } else if (check(TokenType.DOUBLE_LITERAL)) {
+            return push(SymbolType.INT, tokens.longValue(token));
+        } else if (type == TokenType.DOUBLE_LITERAL) {
             token = expect(TokenType.DOUBLE_LITERAL);
-            chosenInstruction.add(new Instruction(Operation.push, Double.doubleToRawLongBits((double) token.getValue())));
-            return SymbolType.DOUBLE;
-        } else if (check(TokenType.STRING_LITERAL)) {
+            return push(SymbolType.DOUBLE, Double.doubleToRawLongBits(tokens.doubleValue(token)));
+        } else if (type == TokenType.STRING_LITERAL) {
             token = expect(TokenType.STRING_LITERAL);
-            chosenInstruction.add(new Instruction(Operation.push, (long) globalOffset++));
-            Globals.add(token.getValueString());
-            return SymbolType.INT;
-        } else if (check(TokenType.CHAR_LITERAL)) {
+            return push(SymbolType.INT, globals.string(tokens.name(token)));
+        } else if (type == TokenType.CHAR_LITERAL) {
             token = expect(TokenType.CHAR_LITERAL);
-            chosenInstruction.add(new Instruction(Operation.push, (long) (char) token.getValue()));
-            return SymbolType.INT;
-        } else if (check(TokenType.IDENT)) {
+            return push(SymbolType.INT, tokens.charValue(token));
+        } else if (type == TokenType.IDENT) {
             token = expect(TokenType.IDENT);
-            Integer currentIndex = this.hash.get(token.getValueString());
-            SymbolEntry symbol = null;
-            if (currentIndex != null) {
-                symbol = this.symbolTable.get(currentIndex);
-            }
+            SymbolEntry symbol = symbolTable.lookup(tokens.nameId(token));
 
             if (check(TokenType.ASSIGN)) {
                 if (symbol == null)
-                    throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
-                switch (symbol.symbolrange) {
-                    case global:
-                        instructions.add(new Instruction(Operation.globa, symbol.offset));
-                        break;
-                    case param:
-                        instructions.add(new Instruction(Operation.arga, symbol.offset));
-                        break;
-                    case local:
-                        instructions.add(new Instruction(Operation.loca, symbol.offset));
-                        break;
-                }
-                Token assign = next();
-                SymbolType t = analysebasicexpr(false);
-                changeInitialized(token.getValueString(), token.getStartPos());
-                if (t != symbol.symbolType)
+                    throw new AnalyzeError(ErrorCode.NotDeclared, tokens.startPos(token));
+                next();
+                int value = analysebasicexpr();
+                changeInitialized(tokens.nameId(token), tokens.startPos(token));
+                if (ast.typeOf(value) != symbol.symbolType)
                     throw new AnalyzeError(ErrorCode.InvalidAssignment);
-                instructions.add(new Instruction(Operation.store64));
-                return SymbolType.VOID;
-            } else if (nextIf(TokenType.L_PAREN) != null) {
+                return ast.add(Ast.ASSIGN, SymbolType.VOID, value, symbol.offset, symbol.symbolrange.ordinal());
+            } else if (nextIf(TokenType.L_PAREN) >= 0) {
                 SymbolType funcReturnType;
-                ArrayList<SymbolType> params;
+                List<SymbolType> params;
                 int callnameOffset = -1;
                 if (symbol == null) {
-                    switch (token.getValueString()) {
-                        case "getint":
-                        case "getchar":
-                            funcReturnType = SymbolType.INT;
-                            params = new ArrayList<>();
-                            break;
-                        case "getdouble":
-                            funcReturnType = SymbolType.DOUBLE;
-                            params = new ArrayList<>();
-                            break;
-                        case "putint":
-                        case "putchar":
-                        case "putstr":
-                            funcReturnType = SymbolType.VOID;
-                            params = new ArrayList<SymbolType>() {{
-                                add(SymbolType.INT);
-                            }};
-                            break;
-                        case "putdouble":
-                            funcReturnType = SymbolType.VOID;
-                            params = new ArrayList<SymbolType>() {{
-                                add(SymbolType.DOUBLE);
-                            }};
-                            break;
-                        case "putln":
-                            funcReturnType = SymbolType.VOID;
-                            params = new ArrayList<>();
-                            break;
-                        default:
-                            throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
-                    }
-                    Globals.add(token.getValueString());
-                    callnameOffset = globalOffset++;
+                    Builtin builtin = Builtin.of(tokens.name(token));
+                    if (builtin == null)
+                        throw new AnalyzeError(ErrorCode.NotDeclared, tokens.startPos(token));
+                    funcReturnType = builtin.returnType;
+                    params = builtin.params;
+                    callnameOffset = globals.string(tokens.name(token));
                 } else {
                     funcReturnType = symbol.symbolType;
                     params = symbol.params;
                 }
 
-                int stackSize;
-                if (funcReturnType == SymbolType.VOID)
-                    stackSize = 0;
-                else
-                    stackSize = 1;
-                chosenInstruction.add(new Instruction(Operation.stackalloc, stackSize));
                 int paramsSize = params.size();
                 int i = 0;
-                if (check(TokenType.MINUS) || check(TokenType.IDENT) || check(TokenType.UINT_LITERAL) || check(TokenType.DOUBLE_LITERAL) || check(TokenType.STRING_LITERAL) || check(TokenType.CHAR_LITERAL) || check(TokenType.L_PAREN)) {
-                    SymbolType t = analysebasicexpr(isGlobal);
-                    if (i + 1 > paramsSize || t != params.get(i++))
-                        throw new AnalyzeError(ErrorCode.InvalidInput);
-                    while (nextIf(TokenType.COMMA) != null) {
-                        t = analysebasicexpr(isGlobal);
-                        if (i + 1 > paramsSize || t != params.get(i++))
+                int first = -1;
+                int last = -1;
+                if (checkAny(EXPR_FIRST)) {
+                    do {
+                        int arg = analysebasicexpr();
+                        if (i + 1 > paramsSize || ast.typeOf(arg) != params.get(i++))
                             throw new AnalyzeError(ErrorCode.InvalidInput);
-                    }
+                        if (first < 0)
+                            first = arg;
+                        last = ast.link(last, arg);
+                    } while (nextIf(TokenType.COMMA) >= 0);
                 }
                 expect(TokenType.R_PAREN);
+                int node;
                 if (symbol == null)
-                    chosenInstruction.add(new Instruction(Operation.callname, callnameOffset));
+                    node = ast.add(Ast.CALL, funcReturnType, first, callnameOffset, 1);
                 else
-                    chosenInstruction.add(new Instruction(Operation.call, symbol.funcOffset));
-                return funcReturnType;
+                    node = ast.add(Ast.CALL, funcReturnType, first, symbol.funcOffset, 0);
+                ast.d[node] = funcReturnType == SymbolType.VOID ? 0 : 1;
+                return node;
             } else {
                 if (symbol == null)
-                    throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
-                switch (symbol.symbolrange) {
-                    case global:
-                        chosenInstruction.add(new Instruction(Operation.globa, symbol.offset));
-                        break;
-                    case param:
-                        instructions.add(new Instruction(Operation.arga, symbol.offset));
-                        break;
-                    case local:
-                        instructions.add(new Instruction(Operation.loca, symbol.offset));
-                        break;
-                }
-                chosenInstruction.add(new Instruction(Operation.load64));
-                return symbol.symbolType;
+                    throw new AnalyzeError(ErrorCode.NotDeclared, tokens.startPos(token));
+                if (symbol.hasConstantValue)
+                    return push(symbol.symbolType, symbol.constantValue);
+                return ast.add(Ast.LOAD, symbol.symbolType, -1, symbol.offset, symbol.symbolrange.ordinal());
             }
         } 
-        else if (check(TokenType.MINUS)) 
+        else if (type == TokenType.MINUS) 
         {
             expect(TokenType.MINUS);
-            SymbolType t = analyseExpr(isGlobal);
-            if (t == SymbolType.INT) {
-                if (isGlobal)
-                    start.add(new Instruction(Operation.negi));
-                else
-                    instructions.add(new Instruction(Operation.negi));
-            } else {
-                if (isGlobal)
-                    start.add(new Instruction(Operation.negf));
-                else
-                    instructions.add(new Instruction(Operation.negf));
-            }
-            return t;
+            int operand = analyseExpr();
+            SymbolType t = ast.typeOf(operand);
+            Operation neg = t == SymbolType.INT ? Operation.negi : Operation.negf;
+            return ConstantFolder.fold(ast, ast.add(Ast.UNARY, t, operand, -1, neg.ordinal()));
         } 
-        else if (check(TokenType.L_PAREN)) {
+        else if (type == TokenType.L_PAREN) {
             expect(TokenType.L_PAREN);
-            SymbolType element = analysebasicexpr(isGlobal);
+            int element = analysebasicexpr();
             expect(TokenType.R_PAREN);
             return element;
         } 
@@ -854,101 +637,54 @@ public class Analyser {
             throw new AnalyzeError(ErrorCode.InvalidInput);
     }
 
+    private int push(SymbolType type, long value) {
+        int node = ast.add(Ast.PUSH, type, -1, -1, 0);
+        ast.value[node] = value;
+        return node;
+    }
+
 
 
     private SymbolType analyseType() throws CompileError {
-        if (nextIf(TokenType.INT_KW) != null)
+        if (nextIf(TokenType.INT_KW) >= 0)
             return SymbolType.INT;
-        else if (nextIf(TokenType.DOUBLE_KW) != null)
+        else if (nextIf(TokenType.DOUBLE_KW) >= 0)
             return SymbolType.DOUBLE;
-        else if (nextIf(TokenType.VOID_KW) != null)
+        else if (nextIf(TokenType.VOID_KW) >= 0)
             return SymbolType.VOID;
         else {
             List<TokenType> list = Arrays.asList(TokenType.INT_KW, TokenType.DOUBLE_KW, TokenType.VOID_KW);
-            throw new ExpectedTokenError(list, peek());
+            throw new ExpectedTokenError(list, tokens.token(cursor));
         }
 
     }
-    public void output(FileOutputStream out) throws IOException {
-        printint(out,0x72303b3e);
-        printint(out,1);
-        printint(out,Globals.size());
-        for (String global : Globals) {
-            if (global == "0") {
-                out.write(0);
-                printint(out,8);
-                printlong(out,0L);
-            } else if (global == "1") {
-                out.write(1);
-                printint(out,8);
-                printlong(out,0L);
-            } else {
-                out.write(1);
-                printint(out,global.length());
-                out.write(global.getBytes());
-            }
-        }
-        outputfunctions.add(start);
-        int first = 0;
-        for (int i = 1; i < instructions.size(); i++) 
-        {
-            if (instructions.get(i).operation == Operation.func) 
-            {
-                outputfunctions.add(new ArrayList<>(instructions.subList(first, i)));
-                first = i;
-            }
-        }
-        outputfunctions.add(new ArrayList<>(instructions.subList(first, instructions.size())));
-        printint(out,outputfunctions.size());
-        for (ArrayList<Instruction> funcins : outputfunctions) {
-            for (Instruction ain : funcins) 
-            {
-                if (ain.operation==Operation.func) {
-                    FunctionEntry afunc = (FunctionEntry) ain;
-                    printint(out,afunc.offset);
-                    printint(out,afunc.returnnum);
-                    printint(out,afunc.paramnum);
-                    printint(out,afunc.localnum);
-                    printint(out,funcins.size() - 1);
-                } else 
-                {
-                    out.write(ain.operation.getValue());
-                    if (ain.x != null) {
-                        if (ain.operation == Operation.push) {
-                            printlong(out,Long.valueOf(ain.x.toString()));
-                        } else {
-                            printint(out,(int) ain.x);
-                        }
-                    }
-
+    /**
+     * 优化以后的函数一个一个编码并写进 o0 文件，不用等所有函数都翻译回指令
+     */
+    public void output(OutputStream out) throws IOException {
+        try (ImageWriter writer = new ImageWriter(globals, out)) {
+            Peephole peephole = new Peephole();
+            Pipeline.run(functions, function -> {
+                try {
+                    writer.add(optimize(peephole, function));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
+            });
+            functions.clear();
+            writer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
         out.close();
     }
 
-    public static void printlong(FileOutputStream out,long val) throws IOException {
-        byte[] b = new byte[8];
-        b[7] = (byte) (val & 0xff);
-        b[6] = (byte) ((val >> 8) & 0xff);
-        b[5] = (byte) ((val >> 16) & 0xff);
-        b[4] = (byte) ((val >> 24) & 0xff);
-        b[3] = (byte) ((val >> 32) & 0xff);
-        b[2] = (byte) ((val >> 40) & 0xff);
-        b[1] = (byte) ((val >> 48) & 0xff);
-        b[0] = (byte) ((val >> 56) & 0xff);
-        out.write(b);
-    }
-
-    public static void printint(FileOutputStream out,int val) throws IOException {
-        byte[] b = new byte[4];
-        b[3] = (byte) (val & 0xff);
-        b[2] = (byte) ((val >> 8) & 0xff);
-        b[1] = (byte) ((val >> 16) & 0xff);
-        b[0] = (byte) ((val >> 24) & 0xff);
-        out.write(b);
+    private InstructionBuffer optimize(Peephole peephole, InstructionBuffer function) {
+        InstructionBuffer code = peephole.optimize(function);
+        if (report != null) {
+            String name = globals.get(function.entry.offset).string;
+            report.println(name + ": peephole removed " + peephole.eliminated() + " of " + function.size() + " instructions");
+        }
+        return code;
     }
-
-
-
-}
\ No newline at end of file
+}
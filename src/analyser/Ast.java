@@ -0,0 +1,120 @@
+package analyser;
+
+import symbol.SymbolType;
+
+import java.util.Arrays;
+
+/**
+ * 语法树，所有结点都放在几个平行数组里，结点用下标表示，-1 表示没有
+ * 兄弟结点（语句、函数参数、顶层的函数和全局变量）用 next 串成链表
+ * 同一个 Ast 可以在多次编译之间重复使用，clear 之后数组不会缩小
+ */
+public class Ast {
+    // 各种结点的字段用法，没写到的字段不用
+
+    /** 函数：a 函数体，b 函数名在全局区的编号，c 参数个数，d 局部变量个数，type 返回类型 */
+    public static final byte FUNCTION = 1;
+    /** 变量声明带初始值：a 初始值，b 变量的编号，c 作用范围 SymbolRange 的序号 */
+    public static final byte DECL = 2;
+    /** 语句块：a 第一条语句 */
+    public static final byte BLOCK = 3;
+    /** if 语句：a 第一个分支，b else 语句块 */
+    public static final byte IF = 4;
+    /** if 或 else if 的一个分支：a 条件，b 语句块 */
+    public static final byte BRANCH = 5;
+    /** while 语句：a 条件，b 循环体 */
+    public static final byte WHILE = 6;
+    public static final byte BREAK = 7;
+    public static final byte CONTINUE = 8;
+    /** return 语句：a 返回值，c 为 1 时函数有返回值 */
+    public static final byte RETURN = 9;
+    /** 表达式语句：a 表达式 */
+    public static final byte EXPR_STMT = 10;
+    /** 常量：value */
+    public static final byte PUSH = 11;
+    /** 读变量：b 变量的编号，c 作用范围 SymbolRange 的序号 */
+    public static final byte LOAD = 12;
+    /** 赋值：a 右边的值，b 变量的编号，c 作用范围 SymbolRange 的序号 */
+    public static final byte ASSIGN = 13;
+    /** 函数调用：a 第一个实参，b 函数编号或者标准库函数名在全局区的编号，c 为 1 时是标准库函数，d 返回值占的栈空间 */
+    public static final byte CALL = 14;
+    /** 单目运算：a 操作数，c 指令 Operation 的序号 */
+    public static final byte UNARY = 15;
+    /** 双目运算：a 左操作数，b 右操作数，c 运算符 TokenType 的序号，type 操作数的类型 */
+    public static final byte BINARY = 16;
+
+    /** 语句的 flags：执行到这里一定会返回 */
+    public static final byte RETURNS = 1;
+    /** 语句的 flags：执行到这里一定会 break 或 continue */
+    public static final byte BREAKS = 2;
+
+    byte[] kind = new byte[1024];
+    byte[] type = new byte[1024];
+    byte[] flags = new byte[1024];
+    int[] a = new int[1024];
+    int[] b = new int[1024];
+    int[] c = new int[1024];
+    int[] d = new int[1024];
+    int[] next = new int[1024];
+    long[] value = new long[1024];
+    int size = 0;
+
+    private static final SymbolType[] TYPES = SymbolType.values();
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 丢掉下标从 mark 开始的所有结点，用来扔掉不会执行到的语句
+     */
+    void truncate(int mark) {
+        size = mark;
+    }
+
+    int add(byte kind, SymbolType type, int a, int b, int c) {
+        if (size == this.kind.length)
+            grow();
+        int node = size++;
+        this.kind[node] = kind;
+        this.type[node] = (byte) (type == null ? -1 : type.ordinal());
+        this.flags[node] = 0;
+        this.a[node] = a;
+        this.b[node] = b;
+        this.c[node] = c;
+        this.d[node] = 0;
+        this.next[node] = -1;
+        this.value[node] = 0;
+        return node;
+    }
+
+    /**
+     * 把 node 接在 last 后面，返回新的链表尾
+     */
+    int link(int last, int node) {
+        if (last >= 0)
+            next[last] = node;
+        return node;
+    }
+
+    SymbolType typeOf(int node) {
+        return type[node] < 0 ? null : TYPES[type[node]];
+    }
+
+    private void grow() {
+        int capacity = kind.length * 2;
+        kind = Arrays.copyOf(kind, capacity);
+        type = Arrays.copyOf(type, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        a = Arrays.copyOf(a, capacity);
+        b = Arrays.copyOf(b, capacity);
+        c = Arrays.copyOf(c, capacity);
+        d = Arrays.copyOf(d, capacity);
+        next = Arrays.copyOf(next, capacity);
+        value = Arrays.copyOf(value, capacity);
+    }
+}
@@ -0,0 +1,41 @@
+package analyser;
+
+import symbol.SymbolType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * callname 能调用的标准库函数和它们的签名，所有编译共用，创建以后不再修改
+ */
+enum Builtin {
+    getint(SymbolType.INT), getchar(SymbolType.INT), getdouble(SymbolType.DOUBLE),
+    putint(SymbolType.VOID, SymbolType.INT), putchar(SymbolType.VOID, SymbolType.INT),
+    putstr(SymbolType.VOID, SymbolType.INT), putdouble(SymbolType.VOID, SymbolType.DOUBLE),
+    putln(SymbolType.VOID);
+
+    private static final Map<String, Builtin> BY_NAME = new HashMap<>();
+
+    static {
+        for (Builtin builtin : values())
+            BY_NAME.put(builtin.name(), builtin);
+    }
+
+    final SymbolType returnType;
+    final List<SymbolType> params;
+
+    Builtin(SymbolType returnType, SymbolType... params) {
+        this.returnType = returnType;
+        this.params = Collections.unmodifiableList(Arrays.asList(params));
+    }
+
+    /**
+     * @return 叫这个名字的标准库函数，没有时返回 null
+     */
+    static Builtin of(String name) {
+        return BY_NAME.get(name);
+    }
+}
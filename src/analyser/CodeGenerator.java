@@ -0,0 +1,236 @@
+package analyser;
+
+import instruction.*;
+import symbol.*;
+import tokenizer.TokenType;
+
+import java.util.ArrayList;
+
+/**
+ * 把语法树翻译成指令：每个函数生成单独的指令序列，全局变量的初始化和调用 main 放在 _start 里，_start 排在最前面
+ * 跳转偏移都是相对下一条指令的，所以用的是指令在列表里的下标之差
+ */
+class CodeGenerator {
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+    private static final SymbolRange[] RANGES = SymbolRange.values();
+
+    private final Ast ast;
+    private final ArrayList<InstructionBuffer> functions;
+    private final InstructionBuffer start = new InstructionBuffer(new FunctionEntry(0, 0, 0, 0));
+    // 正在生成的函数的指令
+    private InstructionBuffer instructions;
+
+    // 当前所在的 while 循环：条件前一条指令的下标，continue 跳到它的下一条
+    private int loopLoc;
+    // 当前循环里 break 生成的 br 指令的下标，循环结束后统一回填
+    private ArrayList<Integer> breakList;
+
+    /**
+     * @param functions 生成的函数按编号加到这里，下标 0 是 _start
+     */
+    CodeGenerator(Ast ast, ArrayList<InstructionBuffer> functions) {
+        this.ast = ast;
+        this.functions = functions;
+    }
+
+    void generateProgram(int items, int mainFunction) {
+        functions.add(start);
+        for (int item = items; item >= 0; item = ast.next[item]) {
+            if (ast.kind[item] == Ast.FUNCTION)
+                generateFunction(item);
+            else
+                generateDecl(item, start);
+        }
+        start.add(Operation.stackalloc, 0);
+        start.add(Operation.call, mainFunction);
+    }
+
+    private void generateFunction(int node) {
+        SymbolType type = ast.typeOf(node);
+        int body = ast.a[node];
+        instructions = new InstructionBuffer(new FunctionEntry(ast.d[node], type == SymbolType.VOID ? 0 : 1, ast.c[node], ast.b[node]));
+        functions.add(instructions);
+        generateStmt(body);
+        if (type == SymbolType.VOID && (ast.flags[body] & Ast.RETURNS) == 0)
+            instructions.add(Operation.ret);
+    }
+
+    private void generateDecl(int node, InstructionBuffer target) {
+        address(target, ast.c[node], ast.b[node]);
+        generateExpr(ast.a[node], target);
+        target.add(Operation.store64);
+    }
+
+    private void generateStmt(int node) {
+        switch (ast.kind[node]) {
+            case Ast.DECL:
+                generateDecl(node, instructions);
+                break;
+            case Ast.BLOCK:
+                for (int stmt = ast.a[node]; stmt >= 0; stmt = ast.next[stmt])
+                    generateStmt(stmt);
+                break;
+            case Ast.IF:
+                generateIf(node);
+                break;
+            case Ast.WHILE:
+                generateWhile(node);
+                break;
+            case Ast.BREAK:
+                breakList.add(instructions.size());
+                instructions.add(Operation.br);
+                break;
+            case Ast.CONTINUE:
+                instructions.add(Operation.br, loopLoc - instructions.size());
+                break;
+            case Ast.RETURN:
+                if (ast.c[node] != 0)
+                    instructions.add(Operation.arga, 0);
+                if (ast.a[node] >= 0)
+                    generateExpr(ast.a[node], instructions);
+                if (ast.c[node] != 0)
+                    instructions.add(Operation.store64);
+                instructions.add(Operation.ret);
+                break;
+            case Ast.EXPR_STMT:
+                generateExpr(ast.a[node], instructions);
+                if (ast.typeOf(ast.a[node]) != SymbolType.VOID)
+                    instructions.add(Operation.pop);
+                break;
+        }
+    }
+
+    /**
+     * 每个分支：条件为真跳过下一条 br，否则 br 到下一个分支；分支末尾的 br 跳到整个 if 的末尾
+     */
+    private void generateIf(int node) {
+        ArrayList<Integer> brToEnds = new ArrayList<>();
+        for (int branch = ast.a[node]; branch >= 0; branch = ast.next[branch]) {
+            generateExpr(ast.a[branch], instructions);
+            instructions.add(Operation.brtrue, 1);
+            instructions.add(Operation.br);
+            int brLoc = instructions.size() - 1;
+            generateStmt(ast.b[branch]);
+            brToEnds.add(instructions.size());
+            instructions.add(Operation.br);
+            instructions.setOperand(brLoc, instructions.size() - brLoc - 1);
+        }
+        if (ast.b[node] >= 0)
+            generateStmt(ast.b[node]);
+        for (Integer brToEnd : brToEnds) {
+            instructions.setOperand(brToEnd, instructions.size() - brToEnd - 1);
+        }
+    }
+
+    /**
+     * 循环体最外层一定会 break 或 continue 时不需要跳回条件的 br
+     */
+    private void generateWhile(int node) {
+        int outerLoop = loopLoc;
+        ArrayList<Integer> outerBreaks = breakList;
+        loopLoc = instructions.size() - 1;
+        breakList = new ArrayList<>();
+        generateExpr(ast.a[node], instructions);
+        instructions.add(Operation.brtrue, 1);
+        int brLoc = instructions.size();
+        instructions.add(Operation.br);
+        int body = ast.b[node];
+        generateStmt(body);
+        if ((ast.flags[body] & Ast.BREAKS) == 0)
+            instructions.add(Operation.br, loopLoc - instructions.size());
+        instructions.setOperand(brLoc, instructions.size() - brLoc - 1);
+        for (Integer breakNum : breakList) {
+            instructions.setOperand(breakNum, instructions.size() - breakNum - 1);
+        }
+        loopLoc = outerLoop;
+        breakList = outerBreaks;
+    }
+
+    private void generateExpr(int node, InstructionBuffer target) {
+        switch (ast.kind[node]) {
+            case Ast.PUSH:
+                target.add(Operation.push, ast.value[node]);
+                break;
+            case Ast.LOAD:
+                address(target, ast.c[node], ast.b[node]);
+                target.add(Operation.load64);
+                break;
+            case Ast.ASSIGN:
+                address(target, ast.c[node], ast.b[node]);
+                generateExpr(ast.a[node], target);
+                target.add(Operation.store64);
+                break;
+            case Ast.CALL:
+                target.add(Operation.stackalloc, ast.d[node]);
+                for (int arg = ast.a[node]; arg >= 0; arg = ast.next[arg])
+                    generateExpr(arg, target);
+                target.add(ast.c[node] != 0 ? Operation.callname : Operation.call, ast.b[node]);
+                break;
+            case Ast.UNARY:
+                generateExpr(ast.a[node], target);
+                target.add(OPERATIONS[ast.c[node]]);
+                break;
+            case Ast.BINARY:
+                generateExpr(ast.a[node], target);
+                generateExpr(ast.b[node], target);
+                generateBinaryOp(TOKEN_TYPES[ast.c[node]], ast.typeOf(node) == SymbolType.INT, target);
+                break;
+        }
+    }
+
+    private void generateBinaryOp(TokenType op, boolean isInt, InstructionBuffer target) {
+        switch (op) {
+            case GT:
+                target.add(isInt ? Operation.cmpi : Operation.cmpf);
+                target.add(Operation.setgt);
+                break;
+            case LT:
+                target.add(isInt ? Operation.cmpi : Operation.cmpf);
+                target.add(Operation.setlt);
+                break;
+            case GE:
+                target.add(isInt ? Operation.cmpi : Operation.cmpf);
+                target.add(Operation.setlt);
+                target.add(Operation.not);
+                break;
+            case LE:
+                target.add(isInt ? Operation.cmpi : Operation.cmpf);
+                target.add(Operation.setgt);
+                target.add(Operation.not);
+                break;
+            case EQ:
+                target.add(isInt ? Operation.cmpi : Operation.cmpf);
+                target.add(Operation.not);
+                break;
+            case NEQ:
+                target.add(isInt ? Operation.cmpi : Operation.cmpf);
+                break;
+            case PLUS:
+                target.add(isInt ? Operation.addi : Operation.addf);
+                break;
+            case MINUS:
+                target.add(isInt ? Operation.subi : Operation.subf);
+                break;
+            case MUL:
+                target.add(isInt ? Operation.muli : Operation.mulf);
+                break;
+            case DIV:
+                target.add(isInt ? Operation.divi : Operation.divf);
+                break;
+        }
+    }
+
+    private void address(InstructionBuffer target, int range, int offset) {
+        switch (RANGES[range]) {
+            case global:
+                target.add(Operation.globa, offset);
+                break;
+            case param:
+                target.add(Operation.arga, offset);
+                break;
+            default:
+                target.add(Operation.loca, offset);
+        }
+    }
+}
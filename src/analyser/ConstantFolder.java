@@ -0,0 +1,85 @@
+package analyser;
+
+import instruction.Operation;
+import ir.ConstantFolding;
+import symbol.SymbolType;
+import tokenizer.TokenType;
+
+/**
+ * 语法树上的常量折叠：刚建好的运算结点如果操作数都是常量，就把结果写回操作数的结点
+ * 操作数是常量时它们一定是最后加进语法树的结点，所以可以顺便把多余的结点丢掉
+ */
+class ConstantFolder {
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private ConstantFolder() {
+    }
+
+    /**
+     * @param node 刚加进语法树的单目或双目运算结点
+     * @return 折叠后的结点，不能折叠时原样返回
+     */
+    static int fold(Ast ast, int node) {
+        int left = ast.a[node];
+        if (ast.kind[left] != Ast.PUSH)
+            return node;
+        long result;
+        if (ast.kind[node] == Ast.UNARY) {
+            Operation op = OPERATIONS[ast.c[node]];
+            result = ConstantFolding.evaluate(op, ast.value[left], 0);
+        } else {
+            int right = ast.b[node];
+            if (ast.kind[right] != Ast.PUSH)
+                return node;
+            boolean isInt = ast.typeOf(node) == SymbolType.INT;
+            Operation op = arithmetic(TOKEN_TYPES[ast.c[node]], isInt);
+            if (!ConstantFolding.canEvaluate(op, ast.value[right]))
+                return node;
+            result = ConstantFolding.evaluate(op, ast.value[left], ast.value[right]);
+            result = compare(TOKEN_TYPES[ast.c[node]], result);
+        }
+        ast.value[left] = result;
+        ast.type[left] = ast.type[node];
+        ast.truncate(left + 1);
+        return left;
+    }
+
+    /**
+     * 比较运算先用 cmp 得到 -1、0、1，再由 compare 换成结果
+     */
+    private static Operation arithmetic(TokenType op, boolean isInt) {
+        switch (op) {
+            case PLUS:
+                return isInt ? Operation.addi : Operation.addf;
+            case MINUS:
+                return isInt ? Operation.subi : Operation.subf;
+            case MUL:
+                return isInt ? Operation.muli : Operation.mulf;
+            case DIV:
+                return isInt ? Operation.divi : Operation.divf;
+            default:
+                return isInt ? Operation.cmpi : Operation.cmpf;
+        }
+    }
+
+    /**
+     * 和 CodeGenerator 里 cmp 后面跟的 setgt、setlt、not 一致，!= 直接用 cmp 的结果
+     */
+    private static long compare(TokenType op, long cmp) {
+        switch (op) {
+            case GT:
+                return cmp > 0 ? 1 : 0;
+            case LT:
+                return cmp < 0 ? 1 : 0;
+            case GE:
+                return cmp < 0 ? 0 : 1;
+            case LE:
+                return cmp > 0 ? 0 : 1;
+            case EQ:
+                return cmp == 0 ? 1 : 0;
+            default:
+                return cmp;
+        }
+    }
+}
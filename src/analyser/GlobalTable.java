@@ -0,0 +1,71 @@
+package analyser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 全局变量表，同时是字符串常量池
+ *
+ * 8 字节的全局变量每声明一个占一个编号；字符串（函数名、字符串字面量、callname 调用的标准库函数名）按内容去重，
+ * 同样的内容不管在哪里出现几次都只占一个编号
+ */
+class GlobalTable {
+    /**
+     * 一个全局变量：8 字节的变量或者字符串常量
+     */
+    static class Global {
+        final boolean constant;
+        // 字符串常量的内容，8 字节的变量是 null
+        final String string;
+        // 8 字节的变量在编译时就算好的初始值，其余的是 0
+        long value;
+
+        private Global(boolean constant, String string) {
+            this.constant = constant;
+            this.string = string;
+        }
+
+        boolean isString() {
+            return string != null;
+        }
+    }
+
+    private final ArrayList<Global> globals = new ArrayList<>();
+    // 字符串内容 -> 编号
+    private final HashMap<String, Integer> strings = new HashMap<>();
+
+    /**
+     * 新建一个 8 字节的全局变量
+     *
+     * @return 它的编号
+     */
+    int variable(boolean constant) {
+        globals.add(new Global(constant, null));
+        return globals.size() - 1;
+    }
+
+    /**
+     * @return 内容是 string 的字符串常量的编号，第一次出现时才新建
+     */
+    int string(String string) {
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = globals.size();
+            globals.add(new Global(true, string));
+            strings.put(string, index);
+        }
+        return index;
+    }
+
+    void setValue(int index, long value) {
+        globals.get(index).value = value;
+    }
+
+    Global get(int index) {
+        return globals.get(index);
+    }
+
+    int size() {
+        return globals.size();
+    }
+}
@@ -0,0 +1,164 @@
+package analyser;
+
+import instruction.FunctionEntry;
+import instruction.InstructionBuffer;
+import instruction.Operation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * 把全局变量表和函数表写成 o0 二进制
+ *
+ * 构造时写好文件头和全局变量表，函数个数先空着；每交来一个函数就马上按大端序编码进缓冲区，
+ * 缓冲区攒到 FLUSH_SIZE 就写进文件，编译器任何时候都只在内存里留着正在写的这一小段。
+ * 最后补上函数个数：输出流是 FileOutputStream 时 Channels.newChannel 直接给出它的 FileChannel，
+ * 按位置写回那 4 个字节；不能定位写的输出流先写到一个临时文件，补好以后整个复制过去。
+ * 缓冲区是直接内存，单个函数放不下时翻倍；不超过 MAX_CACHED 的缓冲区按线程缓存下来给下一次编译用，
+ * 更大的只给这一次用，写完就不再引用，线程池里的线程不会一直占着写过的最大函数那么多的内存
+ */
+class ImageWriter implements Closeable {
+    private static final int MAGIC = 0x72303b3e;
+    private static final int VERSION = 1;
+
+    private static final int FLUSH_SIZE = 1 << 16;
+    private static final int MAX_CACHED = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<>();
+
+    private ByteBuffer buffer;
+    // 写入的文件；target 不为 null 时它是临时文件，finish 时复制到 target
+    private final FileChannel file;
+    private final WritableByteChannel target;
+    // 函数个数在文件里的位置
+    private final long countPosition;
+    private int count = 0;
+
+    ImageWriter(GlobalTable globals, OutputStream out) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        if (channel instanceof FileChannel) {
+            file = (FileChannel) channel;
+            target = null;
+        } else {
+            file = FileChannel.open(Files.createTempFile("c0", ".o0"), READ, WRITE, DELETE_ON_CLOSE);
+            target = channel;
+        }
+        buffer = BUFFER.get();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << 16);
+            BUFFER.set(buffer);
+        }
+        buffer.clear();
+        reserve(4 + 4 + 4);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(globals.size());
+        for (int i = 0; i < globals.size(); i++) {
+            GlobalTable.Global global = globals.get(i);
+            if (global.isString()) {
+                byte[] string = global.string.getBytes(StandardCharsets.UTF_8);
+                reserve(1 + 4 + (long) string.length);
+                buffer.put((byte) 1);
+                buffer.putInt(string.length);
+                buffer.put(string);
+            } else {
+                reserve(1 + 4 + 8);
+                buffer.put((byte) (global.constant ? 1 : 0));
+                buffer.putInt(8);
+                buffer.putLong(global.value);
+            }
+        }
+        reserve(4);
+        countPosition = file.position() + buffer.position();
+        buffer.putInt(0);
+    }
+
+    /**
+     * 把下一个函数编码进缓冲区，函数按编号的顺序交来
+     */
+    void add(InstructionBuffer function) throws IOException {
+        long size = 4 * 5;
+        for (int i = 0; i < function.size(); i++)
+            size += 1 + function.op(i).operandSize();
+        reserve(size);
+        FunctionEntry entry = function.entry;
+        buffer.putInt(entry.offset);
+        buffer.putInt(entry.returnnum);
+        buffer.putInt(entry.paramnum);
+        buffer.putInt(entry.localnum);
+        buffer.putInt(function.size());
+        for (int i = 0; i < function.size(); i++) {
+            Operation op = function.op(i);
+            buffer.put((byte) function.opcode(i));
+            int operandSize = op.operandSize();
+            if (operandSize == 8)
+                buffer.putLong(function.operand(i));
+            else if (operandSize == 4)
+                buffer.putInt((int) function.operand(i));
+        }
+        count++;
+        if (buffer.position() >= FLUSH_SIZE)
+            flush();
+    }
+
+    /**
+     * 写出剩下的内容，按位置补上函数个数；写的是临时文件时再把它复制到输出流
+     */
+    void finish() throws IOException {
+        flush();
+        ByteBuffer countBytes = ByteBuffer.allocate(4).putInt(0, count);
+        while (countBytes.hasRemaining())
+            file.write(countBytes, countPosition + countBytes.position());
+        if (target != null) {
+            long size = file.size();
+            long done = 0;
+            while (done < size)
+                done += file.transferTo(done, size - done, target);
+        }
+    }
+
+    /**
+     * 关掉临时文件，它随之删除；直接写的输出流由调用者关闭
+     */
+    @Override
+    public void close() throws IOException {
+        if (target != null)
+            file.close();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            file.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * 保证缓冲区还能再写 size 字节，不够时换一个至少翻倍的缓冲区，已经写好的内容搬过去
+     */
+    private void reserve(long size) {
+        if (buffer.remaining() >= size)
+            return;
+        long needed = buffer.position() + size;
+        if (needed > Integer.MAX_VALUE)
+            throw new IllegalStateException("o0 image too large: " + needed + " bytes");
+        ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.max(needed, Math.min(Integer.MAX_VALUE, 2L * buffer.capacity())));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+        if (bigger.capacity() <= MAX_CACHED)
+            BUFFER.set(bigger);
+        else
+            BUFFER.remove();
+    }
+}
@@ -1,17 +1,15 @@
 package instruction;
 
-public class FunctionEntry extends Instruction{
+/**
+ * 函数头：o0 文件里函数表每一项开头的几个数
+ */
+public class FunctionEntry {
     public int localnum;
     public int returnnum;
     public int paramnum;
     public int offset;
 
-    public FunctionEntry(Operation operation) {
-        super(operation);
-    }
-
-    public FunctionEntry(Operation operation, int localnum, int returnnum, int paramnum, int offset) {
-        super(operation);
+    public FunctionEntry(int localnum, int returnnum, int paramnum, int offset) {
         this.localnum = localnum;
         this.returnnum = returnnum;
         this.paramnum = paramnum;
@@ -20,6 +18,6 @@ public class FunctionEntry extends Instruction{
 
     @Override
     public String toString() {
-        return  operation+"["+offset+"] "+localnum +" "+paramnum+"->"+returnnum;
+        return "func[" + offset + "] " + localnum + " " + paramnum + "->" + returnnum;
     }
 }
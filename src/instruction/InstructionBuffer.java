@@ -0,0 +1,103 @@
+package instruction;
+
+import java.util.Arrays;
+
+/**
+ * 一个函数的指令序列：操作码和操作数分别存在 byte[] 和 long[] 里，每条指令不用单独建对象，操作数也不用装箱
+ * 操作码存的是 o0 里的编码；没有操作数的指令操作数是 0，有没有操作数由 Operation.operandSize 决定。
+ * 函数头单独放在 entry 里，不占指令的位置，下标 0 就是函数体的第一条指令
+ */
+public class InstructionBuffer {
+    private static final Operation[] OPERATIONS = new Operation[256];
+
+    static {
+        for (Operation operation : Operation.values())
+            if (operation != Operation.func)
+                OPERATIONS[operation.getValue()] = operation;
+    }
+
+    // 不属于某个函数的指令片段（比如窥孔规则的改写结果）是 null
+    public final FunctionEntry entry;
+    private byte[] ops;
+    private long[] operands;
+    private int size = 0;
+
+    public InstructionBuffer(FunctionEntry entry) {
+        this(entry, 16);
+    }
+
+    public InstructionBuffer(FunctionEntry entry, int capacity) {
+        this.entry = entry;
+        this.ops = new byte[Math.max(capacity, 4)];
+        this.operands = new long[ops.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Operation op(int i) {
+        return OPERATIONS[opcode(i)];
+    }
+
+    /**
+     * 第 i 条指令在 o0 里的操作码
+     */
+    public int opcode(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        return ops[i] & 0xff;
+    }
+
+    public long operand(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        return operands[i];
+    }
+
+    public void setOperand(int i, long operand) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        operands[i] = operand;
+    }
+
+    public void add(Operation op) {
+        add(op, 0);
+    }
+
+    public void add(Operation op, long operand) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+            operands = Arrays.copyOf(operands, size * 2);
+        }
+        ops[size] = (byte) op.getValue();
+        operands[size] = operand;
+        size++;
+    }
+
+    /**
+     * 把 source 的第 i 条指令原样加到末尾
+     */
+    public void add(InstructionBuffer source, int i) {
+        add(source.op(i), source.operand(i));
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        if (entry != null)
+            builder.append(entry).append('\n');
+        for (int i = 0; i < size; i++) {
+            Operation op = op(i);
+            builder.append(i).append(": ").append(op);
+            if (op.operandSize() > 0)
+                builder.append(' ').append(operands[i]);
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+}
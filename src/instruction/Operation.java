@@ -11,4 +11,19 @@ public enum Operation {
     public int getValue() {
         return value;
     }
+
+    /**
+     * o0 文件里跟在操作码后面的操作数的字节数
+     */
+    public int operandSize() {
+        switch (this) {
+            case push:
+                return 8;
+            case popn: case loca: case arga: case globa: case stackalloc:
+            case br: case brfalse: case brtrue: case call: case callname:
+                return 4;
+            default:
+                return 0;
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ * 基本块：开头是 φ，然后是普通的值，最后是 exit
+ * 块的边界上操作数栈总是空的，块之间只通过 SSA 值传递数据
+ */
+public class Block {
+    public final int id;
+    public final ArrayList<Value> phis = new ArrayList<>();
+    public final ArrayList<Value> values = new ArrayList<>();
+    public Value exit;
+    public final ArrayList<Block> preds = new ArrayList<>();
+    public final ArrayList<Block> succs = new ArrayList<>();
+
+    Block(int id) {
+        this.id = id;
+    }
+
+    public void append(Value value) {
+        value.block = this;
+        values.add(value);
+    }
+
+    public void setExit(Value exit) {
+        exit.block = this;
+        this.exit = exit;
+    }
+
+    /**
+     * 加一条到 succ 的边，succ 的 φ 由调用者负责补上操作数
+     */
+    public void addSucc(Block succ) {
+        succs.add(succ);
+        succ.preds.add(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("b").append(id).append(':');
+        for (Block pred : preds)
+            builder.append(" b").append(pred.id);
+        builder.append('\n');
+        for (Value phi : phis)
+            builder.append("  ").append(phi).append('\n');
+        for (Value value : values)
+            builder.append("  ").append(value).append('\n');
+        builder.append("  ").append(exit);
+        for (Block succ : succs)
+            builder.append(" b").append(succ.id);
+        return builder.append('\n').toString();
+    }
+}
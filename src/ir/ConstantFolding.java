@@ -0,0 +1,138 @@
+package ir;
+
+import instruction.Operation;
+
+/**
+ * 常量折叠：操作数都是常量的运算在编译时算出来
+ * 计算规则和虚拟机完全一样，整数运算按 64 位补码回绕，浮点数按 IEEE 754 双精度，除以 0 留到运行时报错
+ */
+public class ConstantFolding {
+    private ConstantFolding() {
+    }
+
+    /**
+     * 把操作数都是常量的 OP 换成常量，块里的位置不变；被换掉的 OP 没有使用者了，生成指令时会被丢掉
+     * 按块的排列顺序处理，入口块在最前面，操作数又总是先于使用者出现，所以一遍就能把整棵常量表达式折叠完
+     */
+    static void run(IrFunction function) {
+        for (Block block : function.blocks) {
+            for (int i = 0; i < block.values.size(); i++) {
+                Value value = block.values.get(i);
+                if (value.kind != Value.Kind.OP || value.users.isEmpty() || !constantArgs(value))
+                    continue;
+                long left = value.args[0].imm;
+                long right = value.args.length > 1 ? value.args[1].imm : 0;
+                if (!canEvaluate(value.op, right))
+                    continue;
+                Value constant = function.newValue(Value.Kind.CONST);
+                constant.imm = evaluate(value.op, left, right);
+                constant.block = block;
+                block.values.set(i, constant);
+                value.replaceAllUsesWith(constant);
+                value.dropArgs();
+                value.block = null;
+            }
+        }
+    }
+
+    private static boolean constantArgs(Value value) {
+        for (Value arg : value.args)
+            if (arg.kind != Value.Kind.CONST)
+                return false;
+        return true;
+    }
+
+    /**
+     * @param right 双目运算的右操作数，单目运算不看
+     * @return 是否能在编译时算，除以 0 和不是纯运算的指令不能算
+     */
+    public static boolean canEvaluate(Operation op, long right) {
+        switch (op) {
+            case divi:
+            case divu:
+                return right != 0;
+            case addi: case subi: case muli:
+            case addf: case subf: case mulf: case divf:
+            case shl: case shr: case shrl: case and: case or: case xor:
+            case cmpi: case cmpu: case cmpf:
+            case not: case negi: case negf: case itof: case ftoi: case setlt: case setgt:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 算出一条运算指令的结果，浮点数都用原始的位表示传进传出
+     *
+     * @param left  双目运算的左操作数，或者单目运算唯一的操作数
+     * @param right 双目运算的右操作数
+     */
+    public static long evaluate(Operation op, long left, long right) {
+        switch (op) {
+            case addi:
+                return left + right;
+            case subi:
+                return left - right;
+            case muli:
+                return left * right;
+            case divi:
+                return left / right;
+            case divu:
+                return Long.divideUnsigned(left, right);
+            case addf:
+                return bits(real(left) + real(right));
+            case subf:
+                return bits(real(left) - real(right));
+            case mulf:
+                return bits(real(left) * real(right));
+            case divf:
+                return bits(real(left) / real(right));
+            case shl:
+                return left << right;
+            case shr:
+                return left >> right;
+            case shrl:
+                return left >>> right;
+            case and:
+                return left & right;
+            case or:
+                return left | right;
+            case xor:
+                return left ^ right;
+            case cmpi:
+                return Long.compare(left, right);
+            case cmpu:
+                return Long.compareUnsigned(left, right);
+            case cmpf: {
+                double x = real(left);
+                double y = real(right);
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+            case not:
+                return left == 0 ? 1 : 0;
+            case negi:
+                return -left;
+            case negf:
+                return bits(-real(left));
+            case itof:
+                return bits((double) left);
+            case ftoi:
+                return (long) real(left);
+            case setlt:
+                return left < 0 ? 1 : 0;
+            case setgt:
+                return left > 0 ? 1 : 0;
+            default:
+                throw new IllegalArgumentException(op.toString());
+        }
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+}
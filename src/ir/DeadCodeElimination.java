@@ -0,0 +1,186 @@
+package ir;
+
+import java.util.ArrayList;
+
+/**
+ * 死代码删除：条件是常量的分支改成直接跳转，删掉从入口走不到的块，再删掉结果没人用又没有副作用的值
+ * 局部变量和参数都是 SSA 值，对局部变量的 store64 没人读时也就是没人用的值，在这里一起删掉
+ * 最后把只有一条边相连的前后两个块合并，这样块内的值可以多留在操作数栈上
+ */
+class DeadCodeElimination {
+    private final IrFunction function;
+    private boolean changed = false;
+
+    private DeadCodeElimination(IrFunction function) {
+        this.function = function;
+    }
+
+    /**
+     * @return 控制流或 φ 有没有变化，有变化时常量折叠可能又有事可做
+     */
+    static boolean run(IrFunction function) {
+        DeadCodeElimination dce = new DeadCodeElimination(function);
+        dce.foldBranches();
+        dce.removeUnreachable();
+        dce.removeDeadValues();
+        dce.mergeBlocks();
+        return dce.changed;
+    }
+
+    private void foldBranches() {
+        for (Block block : function.blocks) {
+            Value exit = block.exit;
+            if (exit.kind != Value.Kind.BRANCH || exit.args[0].kind != Value.Kind.CONST)
+                continue;
+            Block taken = block.succs.get(exit.args[0].imm != 0 ? 0 : 1);
+            Block dropped = block.succs.get(exit.args[0].imm != 0 ? 1 : 0);
+            exit.dropArgs();
+            block.setExit(function.newValue(Value.Kind.JUMP));
+            block.succs.clear();
+            block.succs.add(taken);
+            removeEdge(block, dropped);
+            changed = true;
+        }
+    }
+
+    private void removeUnreachable() {
+        boolean[] reachable = new boolean[function.blockCount()];
+        ArrayList<Block> work = new ArrayList<>();
+        reachable[function.blocks.get(0).id] = true;
+        work.add(function.blocks.get(0));
+        int count = 1;
+        while (!work.isEmpty()) {
+            for (Block succ : work.remove(work.size() - 1).succs)
+                if (!reachable[succ.id]) {
+                    reachable[succ.id] = true;
+                    work.add(succ);
+                    count++;
+                }
+        }
+        if (count == function.blocks.size())
+            return;
+        ArrayList<Block> kept = new ArrayList<>(count);
+        for (Block block : function.blocks) {
+            if (reachable[block.id]) {
+                kept.add(block);
+                continue;
+            }
+            for (Block succ : block.succs)
+                if (reachable[succ.id])
+                    removeEdge(block, succ);
+            for (Value phi : block.phis)
+                drop(phi);
+            for (Value value : block.values)
+                drop(value);
+            drop(block.exit);
+        }
+        function.blocks.clear();
+        function.blocks.addAll(kept);
+        changed = true;
+    }
+
+    /**
+     * 去掉 pred 到 succ 的边和 succ 的 φ 里对应的操作数，只剩一个不同操作数的 φ 换成这个操作数
+     */
+    private void removeEdge(Block pred, Block succ) {
+        int k = succ.preds.indexOf(pred);
+        succ.preds.remove(k);
+        for (Value phi : succ.phis)
+            phi.removeArg(k);
+        ArrayList<Value> work = new ArrayList<>(succ.phis);
+        while (!work.isEmpty()) {
+            Value phi = work.remove(work.size() - 1);
+            Value same = trivialOperand(phi);
+            if (phi.block == null || same == null)
+                continue;
+            phi.block.phis.remove(phi);
+            phi.block = null;
+            for (Value user : phi.users)
+                if (user.kind == Value.Kind.PHI && user != phi)
+                    work.add(user);
+            phi.replaceAllUsesWith(same);
+            phi.dropArgs();
+        }
+    }
+
+    /**
+     * @return 除了自己以外只有一个不同的操作数时返回它，否则返回 null
+     */
+    private static Value trivialOperand(Value phi) {
+        Value same = null;
+        for (Value arg : phi.args) {
+            if (arg == same || arg == phi)
+                continue;
+            if (same != null)
+                return null;
+            same = arg;
+        }
+        return same;
+    }
+
+    /**
+     * 从有副作用的值出发标记用得到的值，其余的值从块里删掉
+     */
+    private void removeDeadValues() {
+        boolean[] live = new boolean[function.valueCount()];
+        ArrayList<Value> work = new ArrayList<>();
+        for (Block block : function.blocks) {
+            for (Value value : block.values)
+                if (value.hasSideEffect()) {
+                    live[value.id] = true;
+                    work.add(value);
+                }
+            live[block.exit.id] = true;
+            work.add(block.exit);
+        }
+        while (!work.isEmpty()) {
+            for (Value arg : work.remove(work.size() - 1).args)
+                if (!live[arg.id]) {
+                    live[arg.id] = true;
+                    work.add(arg);
+                }
+        }
+        for (Block block : function.blocks) {
+            block.phis.removeIf(value -> !live[value.id] && drop(value));
+            block.values.removeIf(value -> !live[value.id] && drop(value));
+        }
+    }
+
+    /**
+     * 以 JUMP 结尾的块和它唯一的后继合并，后继只有这一个前驱，所以 φ 都只有一个操作数
+     */
+    private void mergeBlocks() {
+        boolean[] merged = new boolean[function.blockCount()];
+        boolean any = false;
+        for (Block block : function.blocks) {
+            if (merged[block.id])
+                continue;
+            while (block.exit.kind == Value.Kind.JUMP) {
+                Block succ = block.succs.get(0);
+                if (succ == block || succ.preds.size() != 1)
+                    break;
+                for (Value phi : succ.phis) {
+                    phi.replaceAllUsesWith(phi.args[0]);
+                    drop(phi);
+                }
+                for (Value value : succ.values)
+                    block.append(value);
+                block.setExit(succ.exit);
+                block.succs.clear();
+                block.succs.addAll(succ.succs);
+                for (Block next : succ.succs)
+                    next.preds.set(next.preds.indexOf(succ), block);
+                merged[succ.id] = true;
+                any = true;
+            }
+        }
+        if (any)
+            function.blocks.removeIf(block -> merged[block.id]);
+    }
+
+    private static boolean drop(Value value) {
+        value.dropArgs();
+        value.block = null;
+        return true;
+    }
+}
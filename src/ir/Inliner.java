@@ -0,0 +1,242 @@
+package ir;
+
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 函数内联：把小函数和只有一个调用点的函数的控制流图复制到调用的地方
+ *
+ * 调用所在的块在 CALL 处断开，前半段跳到复制出来的入口块，复制出来的每个 RETURN 都换成跳到后半段的 JUMP，
+ * 有返回值时后半段开头用一个 φ 汇合各个返回值。被调函数的参数直接换成实参的值，局部变量本来就是 SSA 值，
+ * 生成指令时会和调用者自己的值一起分配槽；返回值槽在调用前被 stackalloc 清成 0，所以读它换成常量 0。
+ * 复制进来的代码里的调用还可以继续内联，层数有上限；直接递归的函数不内联，_start 只执行一次，也不往里内联
+ */
+class Inliner {
+    // 不超过这么多个值的函数在每个调用点都内联
+    private static final int SMALL = 24;
+    // 只有一个调用点的函数不超过这么多个值时内联，内联以后这个函数就可以删掉了
+    private static final int SINGLE_CALL = 400;
+    // 内联进来的代码里的调用最多再展开这么多层
+    private static final int MAX_DEPTH = 3;
+    // 调用者超过这么多个值以后不再往里内联
+    private static final int MAX_CALLER = 20000;
+
+    private final IrFunction[] functions;
+    private final int[] callSites;
+    private final int[] size;
+    private final boolean[] recursive;
+
+    private IrFunction caller;
+    // 调用值 -> 它是第几层内联进来的，原来就有的调用不在这里
+    private final HashMap<Value, Integer> depth = new HashMap<>();
+    // 块 -> 内联时排在它后面的新块，最后统一排进 caller.blocks
+    private final HashMap<Block, ArrayList<Block>> after = new HashMap<>();
+
+    private Inliner(IrFunction[] functions, int[] callSites) {
+        this.functions = functions;
+        this.callSites = callSites;
+        this.size = new int[functions.length];
+        this.recursive = new boolean[functions.length];
+        for (int f = 0; f < functions.length; f++) {
+            if (functions[f] == null)
+                continue;
+            size[f] = sizeOf(functions[f]);
+            for (Value call : calls(functions[f]))
+                if (call.imm == f)
+                    recursive[f] = true;
+        }
+    }
+
+    /**
+     * @param functions 按函数编号排列，提升失败的函数是 null
+     * @param callSites 每个函数在整个程序里的调用点个数，包括提升失败的函数里的调用
+     * @return 每个函数有没有内联进别的函数
+     */
+    static boolean[] run(IrFunction[] functions, int[] callSites) {
+        Inliner inliner = new Inliner(functions, callSites);
+        boolean[] changed = new boolean[functions.length];
+        for (int f = 1; f < functions.length; f++)
+            if (functions[f] != null)
+                changed[f] = inliner.inlineInto(f);
+        return changed;
+    }
+
+    private boolean inlineInto(int f) {
+        caller = functions[f];
+        depth.clear();
+        after.clear();
+        ArrayList<Value> work = calls(caller);
+        boolean changed = false;
+        for (int i = 0; i < work.size(); i++) {
+            Value call = work.get(i);
+            int callee = (int) call.imm;
+            int level = depth.getOrDefault(call, 0);
+            if (!shouldInline(f, callee, level))
+                continue;
+            for (Value inner : inline(call, functions[callee])) {
+                depth.put(inner, level + 1);
+                work.add(inner);
+                callSites[(int) inner.imm]++;
+            }
+            size[f] += size[callee];
+            callSites[callee]--;
+            changed = true;
+        }
+        if (changed) {
+            ArrayList<Block> layout = new ArrayList<>();
+            for (Block block : caller.blocks)
+                place(block, layout);
+            caller.blocks.clear();
+            caller.blocks.addAll(layout);
+        }
+        return changed;
+    }
+
+    private boolean shouldInline(int f, int callee, int level) {
+        if (callee == f || callee <= 0 || callee >= functions.length || functions[callee] == null)
+            return false;
+        if (recursive[callee] || level >= MAX_DEPTH || size[f] > MAX_CALLER)
+            return false;
+        return size[callee] <= SMALL || callSites[callee] == 1 && size[callee] <= SINGLE_CALL;
+    }
+
+    private void place(Block block, ArrayList<Block> layout) {
+        layout.add(block);
+        for (Block next : after.getOrDefault(block, new ArrayList<>()))
+            place(next, layout);
+    }
+
+    /**
+     * 把 callee 复制到 call 所在的位置
+     *
+     * @return 复制进来的调用
+     */
+    private ArrayList<Value> inline(Value call, IrFunction callee) {
+        Block block = call.block;
+        int at = block.values.indexOf(call);
+
+        // 调用之后的部分挪到新块 rest
+        Block rest = caller.newBlock();
+        for (Value value : block.values.subList(at + 1, block.values.size()))
+            rest.append(value);
+        block.values.subList(at, block.values.size()).clear();
+        rest.setExit(block.exit);
+        for (Block succ : block.succs) {
+            rest.succs.add(succ);
+            succ.preds.set(succ.preds.indexOf(block), rest);
+        }
+        block.succs.clear();
+
+        int returns = callee.entry.returnnum;
+        HashMap<Value, Value> map = new HashMap<>();
+        HashMap<Block, Block> blockMap = new HashMap<>();
+        ArrayList<Block> copies = new ArrayList<>();
+        ArrayList<Value> innerCalls = new ArrayList<>();
+        for (Block source : callee.blocks) {
+            Block copy = caller.newBlock();
+            blockMap.put(source, copy);
+            copies.add(copy);
+        }
+
+        // 先建好所有的值再填操作数，φ 和循环里的值可能用到后面才复制的值
+        for (Block source : callee.blocks) {
+            Block copy = blockMap.get(source);
+            for (Value phi : source.phis) {
+                Value value = caller.newValue(Value.Kind.PHI);
+                value.block = copy;
+                copy.phis.add(value);
+                map.put(phi, value);
+            }
+            for (Value value : source.values) {
+                if (value.kind == Value.Kind.PARAM) {
+                    map.put(value, value.imm < returns ? zero(copy) : call.args[(int) value.imm - returns]);
+                    continue;
+                }
+                Value clone = caller.newValue(value.kind);
+                clone.op = value.op;
+                clone.imm = value.imm;
+                clone.aux = value.aux;
+                copy.append(clone);
+                map.put(value, clone);
+                if (value.kind == Value.Kind.CALL && value.op == Operation.call)
+                    innerCalls.add(clone);
+            }
+        }
+        Value result = null;
+        ArrayList<Value> results = new ArrayList<>();
+        for (Block source : callee.blocks) {
+            Block copy = blockMap.get(source);
+            for (Value phi : source.phis)
+                for (Value arg : phi.args)
+                    map.get(phi).addArg(map.get(arg));
+            for (Value value : source.values)
+                if (value.kind != Value.Kind.PARAM)
+                    for (Value arg : value.args)
+                        map.get(value).addArg(map.get(arg));
+            // 前驱的顺序要和 φ 的操作数一致，所以照着原来的 preds 排，不能靠 addSucc
+            for (Block pred : source.preds)
+                copy.preds.add(blockMap.get(pred));
+            Value exit = source.exit;
+            if (exit.kind == Value.Kind.RETURN) {
+                copy.setExit(caller.newValue(Value.Kind.JUMP));
+                copy.addSucc(rest);
+                if (returns > 0)
+                    results.add(map.get(exit.args[0]));
+                continue;
+            }
+            Value[] args = new Value[exit.args.length];
+            for (int i = 0; i < args.length; i++)
+                args[i] = map.get(exit.args[i]);
+            copy.setExit(caller.newValue(exit.kind, args));
+            for (Block succ : source.succs)
+                copy.succs.add(blockMap.get(succ));
+        }
+
+        block.setExit(caller.newValue(Value.Kind.JUMP));
+        block.addSucc(copies.get(0));
+        if (results.size() == 1) {
+            result = results.get(0);
+        } else if (results.size() > 1) {
+            result = caller.newValue(Value.Kind.PHI, results.toArray(new Value[0]));
+            result.block = rest;
+            rest.phis.add(result);
+        }
+        if (call.aux > 0)
+            call.replaceAllUsesWith(result != null ? result : zero(block));
+        call.dropArgs();
+        call.block = null;
+
+        ArrayList<Block> placed = new ArrayList<>(copies);
+        placed.add(rest);
+        placed.addAll(after.getOrDefault(block, new ArrayList<>()));
+        after.put(block, placed);
+        return innerCalls;
+    }
+
+    /**
+     * 在 block 里放一个常量 0，用作 stackalloc 清零的返回值槽
+     */
+    private Value zero(Block block) {
+        Value zero = caller.newValue(Value.Kind.CONST);
+        block.append(zero);
+        return zero;
+    }
+
+    private static int sizeOf(IrFunction function) {
+        int size = 0;
+        for (Block block : function.blocks)
+            size += block.phis.size() + block.values.size() + 1;
+        return size;
+    }
+
+    private static ArrayList<Value> calls(IrFunction function) {
+        ArrayList<Value> calls = new ArrayList<>();
+        for (Block block : function.blocks)
+            for (Value value : block.values)
+                if (value.kind == Value.Kind.CALL && value.op == Operation.call)
+                    calls.add(value);
+        return calls;
+    }
+}
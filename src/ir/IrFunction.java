@@ -0,0 +1,47 @@
+package ir;
+
+import instruction.FunctionEntry;
+
+import java.util.ArrayList;
+
+/**
+ * 一个函数的控制流图，blocks 的顺序就是生成指令时块的排列顺序，blocks.get(0) 是入口块
+ * 入口块没有前驱，参数、全局变量在入口处的值都放在这里
+ */
+public class IrFunction {
+    public final FunctionEntry entry;
+    public final ArrayList<Block> blocks = new ArrayList<>();
+    private int valueCount = 0;
+    private int blockCount = 0;
+
+    IrFunction(FunctionEntry entry) {
+        this.entry = entry;
+    }
+
+    public Block newBlock() {
+        return new Block(blockCount++);
+    }
+
+    public Value newValue(Value.Kind kind, Value... args) {
+        return new Value(valueCount++, kind, args);
+    }
+
+    /**
+     * 值的编号都小于这个数，可以用来开按编号索引的数组
+     */
+    public int valueCount() {
+        return valueCount;
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder().append(entry).append('\n');
+        for (Block block : blocks)
+            builder.append(block);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,275 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * 控制流图里的一个自然循环
+ *
+ * 循环由回边找出来，回边是从块跳到支配它的块，被跳到的块是循环头，同一个循环头的回边合成一个循环。
+ * 找循环的同时给每个循环头放一个前置块，循环外进入循环头的边都先经过它，循环头的 φ 里来自循环外的操作数也在前置块里合成一个，
+ * 这样循环外的值都可以放进前置块，在循环里用
+ */
+class Loop {
+    final Block header;
+    // 循环外唯一跳到循环头的块
+    Block preheader;
+    // 直接包着它的循环
+    Loop parent;
+    // 按块编号索引的循环体，以及按逆后序排好的同一批块；内层循环的前置块也在外层循环里
+    final BitSet body = new BitSet();
+    final ArrayList<Block> blocks = new ArrayList<>();
+
+    private Loop(Block header) {
+        this.header = header;
+    }
+
+    boolean contains(Block block) {
+        return block != null && body.get(block.id);
+    }
+
+    private void add(Block block) {
+        body.set(block.id);
+        blocks.add(block);
+    }
+
+    /**
+     * 找出函数里的循环并放好前置块
+     *
+     * @return 内层循环在外层循环前面
+     */
+    static ArrayList<Loop> find(IrFunction function) {
+        return new Finder(function).run();
+    }
+
+    private static class Finder {
+        private final IrFunction function;
+        // 按块编号索引
+        private Block[] idom;
+        private int[] order;
+        // 循环头 -> 新建的前置块，最后统一排进 function.blocks
+        private final HashMap<Block, Block> preheaders = new HashMap<>();
+
+        Finder(IrFunction function) {
+            this.function = function;
+        }
+
+        ArrayList<Loop> run() {
+            computeDominators();
+            ArrayList<Loop> loops = findLoops();
+            loops.sort((a, b) -> Integer.compare(a.blocks.size(), b.blocks.size()));
+            // 从小到大看，块已经属于某个更小的循环时，那个循环最外层的祖先就直接在这个循环里
+            Loop[] innermost = new Loop[function.blockCount()];
+            for (Loop loop : loops) {
+                for (Block block : loop.blocks) {
+                    Loop inner = innermost[block.id];
+                    if (inner == null) {
+                        innermost[block.id] = loop;
+                        continue;
+                    }
+                    while (inner.parent != null)
+                        inner = inner.parent;
+                    if (inner != loop)
+                        inner.parent = loop;
+                }
+            }
+            for (Loop loop : loops) {
+                loop.blocks.sort((a, b) -> Integer.compare(order[b.id], order[a.id]));
+                loop.preheader = preheader(loop);
+                // 前置块在逆后序里紧挨在循环头前面，外层循环按这个顺序排块
+                for (Loop outer = loop.parent; outer != null; outer = outer.parent)
+                    if (!outer.contains(loop.preheader)) {
+                        outer.add(loop.preheader);
+                        order[loop.preheader.id] = order[loop.header.id] + 1;
+                    }
+            }
+            if (preheaders.isEmpty())
+                return loops;
+            ArrayList<Block> layout = new ArrayList<>(function.blocks.size() + preheaders.size());
+            for (Block block : function.blocks) {
+                Block preheader = preheaders.get(block);
+                if (preheader != null)
+                    layout.add(preheader);
+                layout.add(block);
+            }
+            function.blocks.clear();
+            function.blocks.addAll(layout);
+            return loops;
+        }
+
+        /**
+         * Cooper、Harvey、Kennedy 的迭代算法，按逆后序求直接支配者
+         */
+        private void computeDominators() {
+            int n = function.blockCount();
+            Block entry = function.blocks.get(0);
+            ArrayList<Block> postorder = new ArrayList<>();
+            boolean[] visited = new boolean[n];
+            // 非递归的深度优先遍历：栈里存块和下一个要看的后继下标
+            ArrayList<Block> stack = new ArrayList<>();
+            ArrayList<Integer> next = new ArrayList<>();
+            visited[entry.id] = true;
+            stack.add(entry);
+            next.add(0);
+            while (!stack.isEmpty()) {
+                int top = stack.size() - 1;
+                Block block = stack.get(top);
+                int i = next.get(top);
+                if (i < block.succs.size()) {
+                    next.set(top, i + 1);
+                    Block succ = block.succs.get(i);
+                    if (!visited[succ.id]) {
+                        visited[succ.id] = true;
+                        stack.add(succ);
+                        next.add(0);
+                    }
+                    continue;
+                }
+                stack.remove(top);
+                next.remove(top);
+                postorder.add(block);
+            }
+
+            // 后序编号乘 2，中间空出来的位置留给新建的前置块；每个循环最多新建一个块，所以数组留出 n 个位置
+            order = new int[n * 2];
+            Arrays.fill(order, -1);
+            for (int i = 0; i < postorder.size(); i++)
+                order[postorder.get(i).id] = i * 2;
+            idom = new Block[n];
+            idom[entry.id] = entry;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int i = postorder.size() - 2; i >= 0; i--) {
+                    Block block = postorder.get(i);
+                    Block dom = null;
+                    for (Block pred : block.preds) {
+                        if (idom[pred.id] == null)
+                            continue;
+                        dom = dom == null ? pred : intersect(pred, dom);
+                    }
+                    if (dom != idom[block.id]) {
+                        idom[block.id] = dom;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        private Block intersect(Block a, Block b) {
+            while (a != b) {
+                while (order[a.id] < order[b.id])
+                    a = idom[a.id];
+                while (order[b.id] < order[a.id])
+                    b = idom[b.id];
+            }
+            return a;
+        }
+
+        private boolean dominates(Block a, Block b) {
+            while (true) {
+                if (a == b)
+                    return true;
+                Block up = idom[b.id];
+                if (up == null || up == b)
+                    return false;
+                b = up;
+            }
+        }
+
+        /**
+         * 同一个循环头的回边合成一个循环，循环体是从回边的起点倒着走、不经过循环头能走到的块
+         */
+        private ArrayList<Loop> findLoops() {
+            ArrayList<Loop> loops = new ArrayList<>();
+            Loop[] byHeader = new Loop[function.blockCount()];
+            for (Block block : function.blocks) {
+                if (idom[block.id] == null)
+                    continue;
+                for (Block header : block.succs) {
+                    // 回边一定是逆后序里往回跳的边，先用编号筛掉其余的边，不用沿着支配树往上找
+                    if (order[header.id] < order[block.id] || !dominates(header, block))
+                        continue;
+                    Loop loop = byHeader[header.id];
+                    if (loop == null) {
+                        loop = new Loop(header);
+                        loop.add(header);
+                        byHeader[header.id] = loop;
+                        loops.add(loop);
+                    }
+                    ArrayList<Block> work = new ArrayList<>();
+                    if (!loop.contains(block)) {
+                        loop.add(block);
+                        work.add(block);
+                    }
+                    while (!work.isEmpty()) {
+                        for (Block pred : work.remove(work.size() - 1).preds)
+                            if (!loop.contains(pred)) {
+                                loop.add(pred);
+                                work.add(pred);
+                            }
+                    }
+                }
+            }
+            return loops;
+        }
+
+        /**
+         * 循环外只有一个前驱并且它只跳到循环头时直接用它，否则新建一个前置块排在循环头前面
+         */
+        private Block preheader(Loop loop) {
+            Block header = loop.header;
+            ArrayList<Block> outside = new ArrayList<>();
+            for (Block pred : header.preds)
+                if (!loop.contains(pred))
+                    outside.add(pred);
+            if (outside.size() == 1 && outside.get(0).succs.size() == 1)
+                return outside.get(0);
+
+            Block preheader = function.newBlock();
+            preheader.setExit(function.newValue(Value.Kind.JUMP));
+            ArrayList<Block> preds = new ArrayList<>(header.preds);
+            header.preds.clear();
+            header.preds.add(preheader);
+            for (Block pred : preds)
+                if (loop.contains(pred))
+                    header.preds.add(pred);
+            for (Block pred : outside) {
+                preheader.preds.add(pred);
+                pred.succs.set(pred.succs.indexOf(header), preheader);
+            }
+            preheader.succs.add(header);
+
+            for (Value phi : header.phis) {
+                ArrayList<Value> from = new ArrayList<>();
+                Value[] args = new Value[header.preds.size()];
+                int k = 1;
+                for (int i = 0; i < phi.args.length; i++) {
+                    if (loop.contains(preds.get(i)))
+                        args[k++] = phi.args[i];
+                    else
+                        from.add(phi.args[i]);
+                }
+                // 只有一种值从循环外进来时操作数只是换了位置，users 不用动；常量这类值的 users 可能很长
+                phi.args = args;
+                args[0] = from.get(0);
+                boolean same = true;
+                for (Value arg : from)
+                    same &= arg == args[0];
+                for (int i = 1; i < from.size(); i++)
+                    from.get(i).users.remove(phi);
+                if (same)
+                    continue;
+                args[0].users.remove(phi);
+                args[0] = function.newValue(Value.Kind.PHI, from.toArray(new Value[0]));
+                args[0].users.add(phi);
+                args[0].block = preheader;
+                preheader.phis.add(args[0]);
+            }
+            preheaders.put(header, preheader);
+            return preheader;
+        }
+    }
+}
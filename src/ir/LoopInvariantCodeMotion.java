@@ -0,0 +1,73 @@
+package ir;
+
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * 循环不变量外提：循环里每一轮结果都一样的运算挪到循环前面只算一次
+ * 操作数都在循环外的纯运算挪到循环的前置块里；可能除以 0 的除法不动，读全局变量只在循环里既没有写这个变量又没有 call 时外提。
+ * 内层循环先处理，提到内层前置块里的值在外层循环里还可以接着往外提
+ */
+class LoopInvariantCodeMotion {
+    private LoopInvariantCodeMotion() {
+    }
+
+    /**
+     * @param loops Loop.find 的结果，内层循环在前面
+     */
+    static void run(ArrayList<Loop> loops) {
+        for (Loop loop : loops)
+            hoist(loop);
+    }
+
+    /**
+     * 按逆后序看循环里的块，操作数总在使用者之前看到，所以一遍就能找出所有不变量
+     */
+    private static void hoist(Loop loop) {
+        Block preheader = loop.preheader;
+        boolean calls = false;
+        BitSet stored = new BitSet();
+        for (Block block : loop.blocks) {
+            for (Value value : block.values) {
+                if (value.kind == Value.Kind.CALL && value.op == Operation.call)
+                    calls = true;
+                else if (value.kind == Value.Kind.STORE)
+                    stored.set((int) value.imm);
+            }
+        }
+        for (Block block : loop.blocks) {
+            ArrayList<Value> kept = new ArrayList<>(block.values.size());
+            for (Value value : block.values) {
+                if (invariant(loop, value, calls, stored))
+                    preheader.append(value);
+                else
+                    kept.add(value);
+            }
+            if (kept.size() < block.values.size()) {
+                block.values.clear();
+                block.values.addAll(kept);
+            }
+        }
+    }
+
+    private static boolean invariant(Loop loop, Value value, boolean calls, BitSet stored) {
+        switch (value.kind) {
+            case CONST:
+                return true;
+            case OP:
+                if (value.mayTrap())
+                    return false;
+                break;
+            case LOAD:
+                return !calls && !stored.get((int) value.imm);
+            default:
+                return false;
+        }
+        for (Value arg : value.args)
+            if (loop.contains(arg.block))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,539 @@
+package ir;
+
+import instruction.FunctionEntry;
+import instruction.InstructionBuffer;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * 把控制流图翻译回栈式指令
+ *
+ * 每个值有三种去处：常量和参数在每个使用的地方重新算一遍；只在同一个块里被后面用一次的值留在操作数栈上，
+ * 到使用它的地方再算；其余的值算出来后存进一个局部变量槽，用的时候再读出来。
+ * φ 和它的操作数尽量放进同一个槽，其余活跃区间不重叠的值也共用槽，所以槽数是同时活着的值的个数而不是变量的个数
+ */
+class Lowering {
+    private final IrFunction function;
+    private InstructionBuffer out;
+
+    // 按值的编号索引，拆完边以后再分配
+    private boolean[] live;
+    private int[] position;
+    private int[] useCount;
+    // 留在栈上的值被哪个值用掉，没有留在栈上的是 null
+    private Value[] owner;
+    private boolean[] touchesMemory;
+    // 存在局部变量槽里的值的槽号，-1 表示不用槽
+    private int[] slot;
+    private int slotCount = 0;
+
+    // 需要回填的跳转指令和它们的目标块
+    private final ArrayList<Integer> branches = new ArrayList<>();
+    private final ArrayList<Block> branchTargets = new ArrayList<>();
+    private final HashMap<Block, Integer> blockStart = new HashMap<>();
+
+    private Lowering(IrFunction function) {
+        this.function = function;
+    }
+
+    /**
+     * @return 函数的指令序列，函数头的 localnum 改成了实际用到的槽数
+     */
+    static InstructionBuffer lower(IrFunction function) {
+        return new Lowering(function).lower();
+    }
+
+    private InstructionBuffer lower() {
+        splitPhiEdges();
+        int n = function.valueCount();
+        live = new boolean[n];
+        position = new int[n];
+        useCount = new int[n];
+        owner = new Value[n];
+        touchesMemory = new boolean[n];
+        slot = new int[n];
+        markLive();
+        for (Block block : function.blocks) {
+            for (int i = 0; i < block.values.size(); i++)
+                position[block.values.get(i).id] = i;
+            position[block.exit.id] = block.values.size();
+            for (Value phi : block.phis)
+                position[phi.id] = -1;
+        }
+        for (Block block : function.blocks)
+            for (Value value : all(block))
+                if (live[value.id])
+                    for (Value arg : value.args)
+                        useCount[arg.id]++;
+        for (Block block : function.blocks)
+            chooseStackValues(block);
+        assignSlots();
+
+        FunctionEntry entry = function.entry;
+        out = new InstructionBuffer(new FunctionEntry(slotCount, entry.returnnum, entry.paramnum, entry.offset), n);
+        for (int i = 0; i < function.blocks.size(); i++) {
+            Block block = function.blocks.get(i);
+            Block next = i + 1 < function.blocks.size() ? function.blocks.get(i + 1) : null;
+            blockStart.put(block, out.size());
+            emitBlock(block, next);
+        }
+        for (int i = 0; i < branches.size(); i++) {
+            int at = branches.get(i);
+            out.setOperand(at, blockStart.get(branchTargets.get(i)) - at - 1);
+        }
+        return out;
+    }
+
+    private static ArrayList<Value> all(Block block) {
+        ArrayList<Value> values = new ArrayList<>(block.phis.size() + block.values.size() + 1);
+        values.addAll(block.phis);
+        values.addAll(block.values);
+        values.add(block.exit);
+        return values;
+    }
+
+    /**
+     * φ 的赋值放在前驱的末尾，前驱以条件跳转结尾时要在这条边上插一个块，放在目标块的前面
+     */
+    private void splitPhiEdges() {
+        HashMap<Block, ArrayList<Block>> middles = new HashMap<>();
+        for (Block block : function.blocks) {
+            if (block.exit.kind != Value.Kind.BRANCH)
+                continue;
+            for (int k = 0; k < block.succs.size(); k++) {
+                Block succ = block.succs.get(k);
+                if (succ.phis.isEmpty())
+                    continue;
+                Block middle = function.newBlock();
+                middle.setExit(function.newValue(Value.Kind.JUMP));
+                middle.preds.add(block);
+                middle.succs.add(succ);
+                block.succs.set(k, middle);
+                succ.preds.set(succ.preds.indexOf(block), middle);
+                middles.computeIfAbsent(succ, b -> new ArrayList<>()).add(middle);
+            }
+        }
+        if (middles.isEmpty())
+            return;
+        ArrayList<Block> blocks = new ArrayList<>(function.blocks.size() + middles.size());
+        for (Block block : function.blocks) {
+            blocks.addAll(middles.getOrDefault(block, new ArrayList<>()));
+            blocks.add(block);
+        }
+        function.blocks.clear();
+        function.blocks.addAll(blocks);
+    }
+
+    /**
+     * 从有副作用的值出发标记所有用得到的值，其余的值不生成指令
+     */
+    private void markLive() {
+        ArrayList<Value> work = new ArrayList<>();
+        for (Block block : function.blocks)
+            for (Value value : all(block))
+                if (value.hasSideEffect()) {
+                    live[value.id] = true;
+                    work.add(value);
+                }
+        while (!work.isEmpty()) {
+            Value value = work.remove(work.size() - 1);
+            for (Value arg : value.args) {
+                if (!live[arg.id]) {
+                    live[arg.id] = true;
+                    work.add(arg);
+                }
+            }
+        }
+    }
+
+    private static boolean isRematerialized(Value value) {
+        return value.kind == Value.Kind.CONST || value.kind == Value.Kind.PARAM;
+    }
+
+    /**
+     * 按顺序看块里每个值的操作数，决定哪些留在栈上。
+     * 读写内存的值（LOAD、STORE、CALL）和可能报错的除法推迟计算时，中间不能隔着别的这类值，
+     * 除非那个值也留在栈上并且会在它之后算出来，也就是属于同一个使用者后面的操作数
+     */
+    private void chooseStackValues(Block block) {
+        ArrayList<Value> values = new ArrayList<>(block.values);
+        values.add(block.exit);
+        for (Value user : values) {
+            if (!live[user.id])
+                continue;
+            for (int i = user.args.length - 1; i >= 0; i--) {
+                Value arg = user.args[i];
+                if (arg.block != block || arg.kind == Value.Kind.PHI || isRematerialized(arg)
+                        || useCount[arg.id] != 1 || owner[arg.id] != null)
+                    continue;
+                boolean memory = arg.kind == Value.Kind.LOAD || arg.kind == Value.Kind.CALL || arg.mayTrap();
+                for (Value operand : arg.args)
+                    if (owner[operand.id] == arg && touchesMemory[operand.id])
+                        memory = true;
+                if (memory && !canDelay(block, arg, user, i))
+                    continue;
+                owner[arg.id] = user;
+                touchesMemory[arg.id] = memory;
+            }
+        }
+    }
+
+    private boolean canDelay(Block block, Value arg, Value user, int index) {
+        for (int p = position[arg.id] + 1; p < position[user.id]; p++) {
+            Value between = block.values.get(p);
+            if (!live[between.id])
+                continue;
+            Value.Kind kind = between.kind;
+            if (kind != Value.Kind.LOAD && kind != Value.Kind.STORE && kind != Value.Kind.CALL && !between.mayTrap())
+                continue;
+            boolean later = false;
+            for (Value v = between; owner[v.id] != null; v = owner[v.id]) {
+                if (owner[v.id] == user) {
+                    for (int j = index + 1; j < user.args.length; j++)
+                        if (user.args[j] == v)
+                            later = true;
+                    break;
+                }
+            }
+            if (!later)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 留在栈上的值真正被计算的地方：沿着使用者一直找到不留在栈上的那个值
+     */
+    private Value root(Value value) {
+        while (owner[value.id] != null)
+            value = owner[value.id];
+        return value;
+    }
+
+    private boolean needsSlot(Value value) {
+        return live[value.id] && value.hasResult() && useCount[value.id] > 0
+                && owner[value.id] == null && !isRematerialized(value);
+    }
+
+    // 下面给需要槽的值分配槽：先算活跃区间和冲突关系，再把不冲突的 φ 和操作数合并到一起，
+    // 最后给每组涂色，互相冲突的组用不同的槽，不冲突的组可以共用一个槽
+
+    private void assignSlots() {
+        ArrayList<Value> homed = new ArrayList<>();
+        int[] index = new int[function.valueCount()];
+        Arrays.fill(index, -1);
+        for (Block block : function.blocks)
+            for (Value value : all(block)) {
+                slot[value.id] = -1;
+                if (needsSlot(value)) {
+                    index[value.id] = homed.size();
+                    homed.add(value);
+                }
+            }
+        Liveness liveness = new Liveness(homed, index);
+
+        int[] group = new int[homed.size()];
+        ArrayList<ArrayList<Value>> members = new ArrayList<>();
+        for (int i = 0; i < homed.size(); i++) {
+            group[i] = i;
+            ArrayList<Value> single = new ArrayList<>();
+            single.add(homed.get(i));
+            members.add(single);
+        }
+        for (Block block : function.blocks) {
+            for (Value phi : block.phis) {
+                if (!needsSlot(phi))
+                    continue;
+                for (Value arg : phi.args) {
+                    if (!needsSlot(arg))
+                        continue;
+                    int a = group[index[phi.id]];
+                    int b = group[index[arg.id]];
+                    if (a == b || liveness.interfere(members.get(a), b, group))
+                        continue;
+                    for (Value member : members.get(b))
+                        group[index[member.id]] = a;
+                    members.get(a).addAll(members.get(b));
+                    members.get(b).clear();
+                }
+            }
+        }
+        // 按组里第一个值出现的顺序涂色，每组取冲突的组都没用的最小槽号
+        int[] slotOfGroup = new int[homed.size()];
+        Arrays.fill(slotOfGroup, -1);
+        BitSet taken = new BitSet();
+        for (int i = 0; i < homed.size(); i++) {
+            int g = group[i];
+            if (slotOfGroup[g] >= 0)
+                continue;
+            taken.clear();
+            for (Value member : members.get(g))
+                for (int neighbour : liveness.neighbours(index[member.id]))
+                    if (slotOfGroup[group[neighbour]] >= 0)
+                        taken.set(slotOfGroup[group[neighbour]]);
+            slotOfGroup[g] = taken.nextClearBit(0);
+            slotCount = Math.max(slotCount, slotOfGroup[g] + 1);
+        }
+        for (int i = 0; i < homed.size(); i++)
+            slot[homed.get(i).id] = slotOfGroup[group[i]];
+    }
+
+    /**
+     * 需要槽的值的活跃区间。块内的位置：φ 是 -1，普通的值是它在 values 里的下标，exit 是 values.size()；
+     * 留在栈上的值用到的操作数算在它的 root 被计算的位置，φ 用到的操作数算在对应前驱的末尾。
+     * 每个值从用到它的地方沿着前驱往回走到定义它的块，只记录它活着的那些块，开销和活跃区间的长度成正比
+     */
+    private class Liveness {
+        private final int[] index;
+        // 每个值在哪些块的入口、出口活着
+        private final ArrayList<HashSet<Block>> liveIn = new ArrayList<>();
+        private final ArrayList<HashSet<Block>> liveOut = new ArrayList<>();
+        // 每个值在各个块里最后一次被用到的位置
+        private final ArrayList<HashMap<Block, Integer>> lastUse = new ArrayList<>();
+        // 冲突图，按需要槽的值的序号索引
+        private final ArrayList<HashSet<Integer>> neighbours = new ArrayList<>();
+
+        Liveness(ArrayList<Value> homed, int[] index) {
+            this.index = index;
+            ArrayList<Block> work = new ArrayList<>();
+            for (Value value : homed) {
+                HashSet<Block> in = new HashSet<>();
+                HashSet<Block> out = new HashSet<>();
+                HashMap<Block, Integer> uses = new HashMap<>();
+                liveIn.add(in);
+                liveOut.add(out);
+                lastUse.add(uses);
+                for (Value user : value.users) {
+                    if (!live[user.id])
+                        continue;
+                    if (user.kind == Value.Kind.PHI) {
+                        for (int k = 0; k < user.args.length; k++) {
+                            Block pred = user.block.preds.get(k);
+                            if (user.args[k] == value && out.add(pred) && pred != value.block && in.add(pred))
+                                work.add(pred);
+                        }
+                        continue;
+                    }
+                    Value root = root(user);
+                    uses.merge(root.block, position[root.id], Math::max);
+                    if (root.block != value.block && in.add(root.block))
+                        work.add(root.block);
+                }
+                while (!work.isEmpty()) {
+                    Block block = work.remove(work.size() - 1);
+                    for (Block pred : block.preds)
+                        if (out.add(pred) && pred != value.block && in.add(pred))
+                            work.add(pred);
+                }
+            }
+            buildInterference(homed);
+        }
+
+        /**
+         * 组 a 里有没有值和组 b 里的值冲突
+         */
+        boolean interfere(ArrayList<Value> a, int b, int[] group) {
+            for (Value x : a)
+                for (int y : neighbours.get(index[x.id]))
+                    if (group[y] == b)
+                        return true;
+            return false;
+        }
+
+        HashSet<Integer> neighbours(int i) {
+            return neighbours.get(i);
+        }
+
+        /**
+         * 两个值冲突是说一个值被定义时另一个值还活着，也就是之后还会被用到。
+         * 每个块从出口往回扫一遍，遇到定义就和当时活着的值都连一条边，遇到某个值在块里最后一次被用到就把它加进活着的集合
+         */
+        private void buildInterference(ArrayList<Value> homed) {
+            HashMap<Block, ArrayList<Integer>> liveAtExit = new HashMap<>();
+            HashMap<Block, ArrayList<int[]>> usesIn = new HashMap<>();
+            for (int i = 0; i < homed.size(); i++) {
+                neighbours.add(new HashSet<>());
+                for (Block block : liveOut.get(i))
+                    liveAtExit.computeIfAbsent(block, b -> new ArrayList<>()).add(i);
+                for (Map.Entry<Block, Integer> use : lastUse.get(i).entrySet())
+                    usesIn.computeIfAbsent(use.getKey(), b -> new ArrayList<>()).add(new int[]{use.getValue(), i});
+            }
+            HashSet<Integer> alive = new HashSet<>();
+            for (Block block : function.blocks) {
+                alive.clear();
+                alive.addAll(liveAtExit.getOrDefault(block, new ArrayList<>()));
+                ArrayList<int[]> uses = usesIn.getOrDefault(block, new ArrayList<>());
+                uses.sort((x, y) -> Integer.compare(y[0], x[0]));
+                int next = 0;
+                for (int at = block.values.size(); at >= 0; at--) {
+                    if (at < block.values.size())
+                        define(index[block.values.get(at).id], alive);
+                    for (; next < uses.size() && uses.get(next)[0] == at; next++)
+                        alive.add(uses.get(next)[1]);
+                }
+                // φ 都在块的开头同时定义
+                for (Value phi : block.phis)
+                    define(index[phi.id], alive);
+            }
+        }
+
+        private void define(int i, HashSet<Integer> alive) {
+            if (i < 0)
+                return;
+            alive.remove(i);
+            for (int x : alive) {
+                neighbours.get(i).add(x);
+                neighbours.get(x).add(i);
+            }
+        }
+    }
+
+    // 下面是生成指令
+
+    private void emitBlock(Block block, Block next) {
+        for (Value value : block.values) {
+            if (!live[value.id] || owner[value.id] != null)
+                continue;
+            switch (value.kind) {
+                case STORE:
+                    emit(Operation.globa, (int) value.imm);
+                    emitUse(value.args[0]);
+                    emit(Operation.store64);
+                    break;
+                case CALL:
+                    if (slot[value.id] >= 0) {
+                        emit(Operation.loca, slot[value.id]);
+                        emitValue(value);
+                        emit(Operation.store64);
+                    } else {
+                        emitValue(value);
+                        if (value.aux > 0)
+                            emit(Operation.pop);
+                    }
+                    break;
+                default:
+                    if (slot[value.id] >= 0) {
+                        emit(Operation.loca, slot[value.id]);
+                        emitValue(value);
+                        emit(Operation.store64);
+                    } else if (useCount[value.id] == 0) {
+                        // 结果没人用但是可能报错的除法
+                        emitValue(value);
+                        emit(Operation.pop);
+                    }
+            }
+        }
+        Value exit = block.exit;
+        switch (exit.kind) {
+            case JUMP: {
+                Block succ = block.succs.get(0);
+                emitPhiCopies(block, succ);
+                if (succ != next)
+                    emitBranch(Operation.br, succ);
+                break;
+            }
+            case BRANCH:
+                emitUse(exit.args[0]);
+                emitBranch(Operation.brtrue, block.succs.get(0));
+                if (block.succs.get(1) != next)
+                    emitBranch(Operation.br, block.succs.get(1));
+                break;
+            case RETURN:
+                if (exit.args.length > 0) {
+                    Value result = exit.args[0];
+                    if (result.kind != Value.Kind.PARAM || result.imm != 0) {
+                        emit(Operation.arga, 0);
+                        emitUse(result);
+                        emit(Operation.store64);
+                    }
+                }
+                // 原来的指令在这里就是落出函数末尾（_start 就是这样），照原样不写 ret；其他返回都要写，
+                // 不是每个虚拟机都会在函数后面补 ret，多余的 ret 由窥孔的 UnreachableCode 删掉
+                if (exit.aux == 0 || next != null)
+                    emit(Operation.ret);
+                break;
+        }
+    }
+
+    /**
+     * 所有 φ 同时赋值：先把每个 φ 的槽地址和新值依次压栈，再连续 store64，这样交换也不会出错
+     */
+    private void emitPhiCopies(Block block, Block succ) {
+        int k = succ.preds.indexOf(block);
+        int copies = 0;
+        for (Value phi : succ.phis) {
+            if (slot[phi.id] < 0)
+                continue;
+            Value arg = phi.args[k];
+            if (slot[arg.id] == slot[phi.id])
+                continue;
+            emit(Operation.loca, slot[phi.id]);
+            emitUse(arg);
+            copies++;
+        }
+        for (int i = 0; i < copies; i++)
+            emit(Operation.store64);
+    }
+
+    /**
+     * 把一个操作数放到栈顶
+     */
+    private void emitUse(Value value) {
+        if (value.kind == Value.Kind.CONST) {
+            emit(Operation.push, value.imm);
+        } else if (value.kind == Value.Kind.PARAM) {
+            emit(Operation.arga, (int) value.imm);
+            emit(Operation.load64);
+        } else if (slot[value.id] >= 0) {
+            emit(Operation.loca, slot[value.id]);
+            emit(Operation.load64);
+        } else {
+            emitValue(value);
+        }
+    }
+
+    /**
+     * 计算一个值，结果留在栈顶
+     */
+    private void emitValue(Value value) {
+        switch (value.kind) {
+            case LOAD:
+                emit(Operation.globa, (int) value.imm);
+                emit(Operation.load64);
+                break;
+            case OP:
+                for (Value arg : value.args)
+                    emitUse(arg);
+                emit(value.op);
+                break;
+            case CALL:
+                emit(Operation.stackalloc, value.aux);
+                for (Value arg : value.args)
+                    emitUse(arg);
+                emit(value.op, (int) value.imm);
+                break;
+            default:
+                throw new IllegalStateException("cannot emit " + value);
+        }
+    }
+
+    private void emitBranch(Operation op, Block target) {
+        branches.add(out.size());
+        branchTargets.add(target);
+        out.add(op);
+    }
+
+    private void emit(Operation op) {
+        out.add(op);
+    }
+
+    private void emit(Operation op, long param) {
+        out.add(op, param);
+    }
+}
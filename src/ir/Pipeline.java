@@ -0,0 +1,121 @@
+package ir;
+
+import instruction.InstructionBuffer;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 整个程序的函数从指令提升到 SSA，在 SSA 上做优化，再翻译回指令
+ * 函数之间的优化（内联）做完以后，删掉不再被调用的函数，call 的操作数跟着重新编号
+ * 原来的指令序列提升成 SSA 以后就从 functions 里去掉，只留下提升失败、要原样复制的；
+ * 翻译回指令是一个函数一个函数做的，翻译完就交出去并丢掉这个函数的 SSA，同一时刻只有一个函数的新指令序列。
+ * 内联要看得到所有函数，所以在那之前所有函数的 SSA 都在内存里
+ */
+public class Pipeline {
+    private Pipeline() {
+    }
+
+    /**
+     * @param functions 按函数编号排列的指令序列，下标 0 是 _start；提升成 SSA 的函数会被换成 null
+     * @param out       按顺序收到留下来的函数的新指令序列；提升失败的函数原样复制
+     */
+    public static void run(List<InstructionBuffer> functions, Consumer<InstructionBuffer> out) {
+        int n = functions.size();
+        IrFunction[] ir = new IrFunction[n];
+        for (int f = 0; f < n; f++) {
+            ir[f] = SsaBuilder.build(functions.get(f));
+            if (ir[f] != null) {
+                functions.set(f, null);
+                optimize(ir[f]);
+            }
+        }
+
+        int[] callSites = new int[n];
+        for (int f = 0; f < n; f++)
+            for (int callee : callees(ir[f], functions.get(f)))
+                callSites[callee]++;
+        boolean[] inlined = Inliner.run(ir, callSites);
+        for (int f = 0; f < n; f++)
+            if (inlined[f])
+                optimize(ir[f]);
+
+        // 从 _start 出发标记还会被调用的函数
+        boolean[] reachable = new boolean[n];
+        ArrayList<Integer> work = new ArrayList<>();
+        reachable[0] = true;
+        work.add(0);
+        while (!work.isEmpty()) {
+            int f = work.remove(work.size() - 1);
+            for (int callee : callees(ir[f], functions.get(f)))
+                if (!reachable[callee]) {
+                    reachable[callee] = true;
+                    work.add(callee);
+                }
+        }
+        int[] newIndex = new int[n];
+        int count = 0;
+        for (int f = 0; f < n; f++) {
+            newIndex[f] = reachable[f] ? count++ : -1;
+            if (!reachable[f]) {
+                ir[f] = null;
+                functions.set(f, null);
+            }
+        }
+
+        for (int f = 0; f < n; f++) {
+            if (!reachable[f])
+                continue;
+            if (ir[f] != null) {
+                for (Block block : ir[f].blocks)
+                    for (Value value : block.values)
+                        if (value.kind == Value.Kind.CALL && value.op == Operation.call)
+                            value.imm = newIndex[(int) value.imm];
+                ArrayList<Loop> loops = Loop.find(ir[f]);
+                LoopInvariantCodeMotion.run(loops);
+                StrengthReduction.reduceInductionVariables(ir[f], loops);
+                InstructionBuffer code = Lowering.lower(ir[f]);
+                ir[f] = null;
+                out.accept(code);
+                continue;
+            }
+            InstructionBuffer code = functions.get(f);
+            InstructionBuffer copy = new InstructionBuffer(code.entry, code.size());
+            for (int i = 0; i < code.size(); i++) {
+                if (code.op(i) == Operation.call)
+                    copy.add(Operation.call, newIndex[(int) code.operand(i)]);
+                else
+                    copy.add(code, i);
+            }
+            out.accept(copy);
+        }
+    }
+
+    private static void optimize(IrFunction function) {
+        boolean simplified;
+        do {
+            ConstantFolding.run(function);
+            simplified = StrengthReduction.run(function);
+        } while (DeadCodeElimination.run(function) || simplified);
+    }
+
+    /**
+     * @return 函数里每个 call 调用的函数编号，调用几次就出现几次
+     */
+    private static ArrayList<Integer> callees(IrFunction function, InstructionBuffer code) {
+        ArrayList<Integer> callees = new ArrayList<>();
+        if (function != null) {
+            for (Block block : function.blocks)
+                for (Value value : block.values)
+                    if (value.kind == Value.Kind.CALL && value.op == Operation.call)
+                        callees.add((int) value.imm);
+        } else {
+            for (int i = 0; i < code.size(); i++)
+                if (code.op(i) == Operation.call)
+                    callees.add((int) code.operand(i));
+        }
+        return callees;
+    }
+}
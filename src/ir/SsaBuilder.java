@@ -0,0 +1,487 @@
+package ir;
+
+import instruction.FunctionEntry;
+import instruction.InstructionBuffer;
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * 把一个函数的指令序列提升成控制流图和 SSA 值
+ *
+ * 先按跳转目标划分基本块，再按指令顺序逐块模拟操作数栈，loca/arga/globa 加 load64/store64 变成对变量的读写。
+ * 变量包括参数槽、局部变量槽和函数里出现过的全局变量，SSA 的构造按 Braun 等人的做法：
+ * 块内记住每个变量的当前值，块里读不到时去前驱找；前驱还没有全部处理完的块先放一个不完整的 φ，等封闭时再补操作数，
+ * 只有一个不同操作数的 φ 随时删掉。
+ * 全局变量的写入在原来的位置保留 STORE，读取只在同一个块里转发前面写入或读到的值，
+ * 调用用户函数之后全局变量可能被改过，要重新从内存读
+ */
+class SsaBuilder {
+    // 遇到不认识的指令序列就放弃，保持原来的指令
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // 操作数栈上的变量地址
+    private static class Slot {
+        final int var;
+
+        Slot(int var) {
+            this.var = var;
+        }
+    }
+
+    // 操作数栈上 stackalloc 留出的返回值空间，同时标记实参从哪里开始
+    private static class Frame {
+        final int slots;
+
+        Frame(int slots) {
+            this.slots = slots;
+        }
+    }
+
+    private final InstructionBuffer code;
+    private final IrFunction function;
+    private final int argSlots;
+    private final int localSlots;
+    // 函数里出现过的全局变量：全局变量编号 -> 变量编号，以及反过来
+    private final HashMap<Integer, Integer> globalVars = new HashMap<>();
+    private final ArrayList<Integer> globalOf = new ArrayList<>();
+
+    private Block entry;
+    // 以第 i 条指令开头的块，code.size() 处是函数末尾隐含的返回
+    private Block[] blockAt;
+    private int[] startOf;
+    private boolean[] filled;
+    private boolean[] sealed;
+    private final HashMap<Block, ArrayList<Value>> incomplete = new HashMap<>();
+    // 正在补操作数的 φ，操作数没补全之前不能当成只有一个操作数的 φ 删掉
+    private final HashSet<Value> filling = new HashSet<>();
+    // 块编号 << 32 | 变量编号 -> 变量在块末尾的值
+    private final HashMap<Long, Value> defs = new HashMap<>();
+
+    private SsaBuilder(InstructionBuffer function) {
+        FunctionEntry header = function.entry;
+        this.code = function;
+        this.function = new IrFunction(header);
+        this.argSlots = header.paramnum + header.returnnum;
+        this.localSlots = header.localnum;
+    }
+
+    /**
+     * @return 提升失败时返回 null
+     */
+    static IrFunction build(InstructionBuffer function) {
+        try {
+            return new SsaBuilder(function).build();
+        } catch (Unsupported | ClassCastException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private IrFunction build() {
+        int n = code.size();
+        for (int i = 0; i < n; i++) {
+            if (code.op(i) == Operation.globa) {
+                int global = intParam(i);
+                if (!globalVars.containsKey(global)) {
+                    globalVars.put(global, argSlots + localSlots + globalOf.size());
+                    globalOf.add(global);
+                }
+            }
+        }
+
+        // 块首：开头、跳转目标、跳转和返回的下一条
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        leader[n] = true;
+        for (int i = 0; i < n; i++) {
+            Operation op = code.op(i);
+            if (op == Operation.br || op == Operation.brtrue || op == Operation.brfalse) {
+                int target = i + 1 + intParam(i);
+                if (target < 0 || target > n)
+                    throw new Unsupported();
+                leader[target] = true;
+                leader[i + 1] = true;
+            } else if (op == Operation.ret) {
+                leader[i + 1] = true;
+            }
+        }
+
+        // 只为从开头能走到的块建 Block，按指令顺序排列
+        boolean[] reachable = new boolean[n + 1];
+        ArrayList<Integer> work = new ArrayList<>();
+        work.add(0);
+        reachable[0] = true;
+        while (!work.isEmpty()) {
+            int start = work.remove(work.size() - 1);
+            for (int target : targets(start, leader)) {
+                if (!reachable[target]) {
+                    reachable[target] = true;
+                    work.add(target);
+                }
+            }
+        }
+        entry = function.newBlock();
+        function.blocks.add(entry);
+        blockAt = new Block[n + 1];
+        for (int i = 0; i <= n; i++) {
+            if (reachable[i]) {
+                blockAt[i] = function.newBlock();
+                function.blocks.add(blockAt[i]);
+            }
+        }
+        startOf = new int[function.blockCount()];
+        for (int i = 0; i <= n; i++)
+            if (blockAt[i] != null)
+                startOf[blockAt[i].id] = i;
+        entry.addSucc(blockAt[0]);
+        for (int i = 0; i <= n; i++) {
+            if (blockAt[i] == null)
+                continue;
+            for (int target : targets(i, leader))
+                blockAt[i].addSucc(blockAt[target]);
+        }
+
+        filled = new boolean[function.blockCount()];
+        sealed = new boolean[function.blockCount()];
+        sealed[entry.id] = true;
+        entry.setExit(function.newValue(Value.Kind.JUMP));
+        filled[entry.id] = true;
+        for (Block block : function.blocks) {
+            if (block == entry)
+                continue;
+            trySeal(block);
+            fill(block, startOf[block.id], leader);
+            filled[block.id] = true;
+            for (Block succ : block.succs)
+                trySeal(succ);
+        }
+        for (Block block : function.blocks)
+            if (!sealed[block.id])
+                throw new Unsupported();
+        return function;
+    }
+
+    /**
+     * 从 start 开始的块的后继，依次是条件成立和不成立时的去向
+     */
+    private int[] targets(int start, boolean[] leader) {
+        int n = code.size();
+        if (start == n)
+            return new int[0];
+        int end = start;
+        while (!leader[end + 1])
+            end++;
+        switch (code.op(end)) {
+            case br:
+                return new int[]{end + 1 + intParam(end)};
+            case brtrue: {
+                int target = end + 1 + intParam(end);
+                return target == end + 1 ? new int[]{target} : new int[]{target, end + 1};
+            }
+            case brfalse: {
+                int target = end + 1 + intParam(end);
+                return target == end + 1 ? new int[]{target} : new int[]{end + 1, target};
+            }
+            case ret:
+                return new int[0];
+            default:
+                return new int[]{end + 1};
+        }
+    }
+
+    private void fill(Block block, int start, boolean[] leader) {
+        int n = code.size();
+        if (start == n) {
+            Value exit = returnValue(block);
+            exit.aux = 1;
+            block.setExit(exit);
+            return;
+        }
+        ArrayList<Object> stack = new ArrayList<>();
+        for (int i = start; ; i++) {
+            Operation op = code.op(i);
+            boolean last = leader[i + 1];
+            switch (op) {
+                case push:
+                    stack.add(constant(block, code.operand(i)));
+                    break;
+                case pop:
+                    popValue(stack);
+                    break;
+                case loca: {
+                    int slot = intParam(i);
+                    if (slot < 0 || slot >= localSlots)
+                        throw new Unsupported();
+                    stack.add(new Slot(argSlots + slot));
+                    break;
+                }
+                case arga: {
+                    int slot = intParam(i);
+                    if (slot < 0 || slot >= argSlots)
+                        throw new Unsupported();
+                    stack.add(new Slot(slot));
+                    break;
+                }
+                case globa:
+                    stack.add(new Slot(globalVars.get(intParam(i))));
+                    break;
+                case load64:
+                    stack.add(readVariable(popSlot(stack), block));
+                    break;
+                case store64: {
+                    Value value = popValue(stack);
+                    int var = popSlot(stack);
+                    writeVariable(var, block, value);
+                    if (isGlobal(var)) {
+                        Value store = function.newValue(Value.Kind.STORE, value);
+                        store.imm = globalOf.get(var - argSlots - localSlots);
+                        block.append(store);
+                    }
+                    break;
+                }
+                case stackalloc: {
+                    int slots = intParam(i);
+                    if (slots != 0 && slots != 1)
+                        throw new Unsupported();
+                    stack.add(new Frame(slots));
+                    break;
+                }
+                case call:
+                case callname:
+                    call(block, stack, op, i);
+                    break;
+                case addi: case subi: case muli: case divi: case divu:
+                case addf: case subf: case mulf: case divf:
+                case shl: case shr: case shrl: case and: case or: case xor:
+                case cmpi: case cmpu: case cmpf: {
+                    Value right = popValue(stack);
+                    Value left = popValue(stack);
+                    stack.add(operation(block, op, left, right));
+                    break;
+                }
+                case not: case negi: case negf: case itof: case ftoi: case setlt: case setgt:
+                    stack.add(operation(block, op, popValue(stack)));
+                    break;
+                case br:
+                    if (!stack.isEmpty())
+                        throw new Unsupported();
+                    block.setExit(function.newValue(Value.Kind.JUMP));
+                    return;
+                case brtrue:
+                case brfalse: {
+                    Value condition = popValue(stack);
+                    if (!stack.isEmpty())
+                        throw new Unsupported();
+                    if (block.succs.size() == 2)
+                        block.setExit(function.newValue(Value.Kind.BRANCH, condition));
+                    else
+                        block.setExit(function.newValue(Value.Kind.JUMP));
+                    return;
+                }
+                case ret:
+                    if (!stack.isEmpty())
+                        throw new Unsupported();
+                    block.setExit(returnValue(block));
+                    return;
+                default:
+                    throw new Unsupported();
+            }
+            if (last) {
+                if (!stack.isEmpty())
+                    throw new Unsupported();
+                block.setExit(function.newValue(Value.Kind.JUMP));
+                return;
+            }
+        }
+    }
+
+    private Value returnValue(Block block) {
+        if (function.entry.returnnum > 0)
+            return function.newValue(Value.Kind.RETURN, readVariable(0, block));
+        return function.newValue(Value.Kind.RETURN);
+    }
+
+    /**
+     * 实参是 Frame 以上的所有值；调用用户函数之后，函数里用到的全局变量都可能被改过
+     */
+    private void call(Block block, ArrayList<Object> stack, Operation op, int at) {
+        int frame = stack.size() - 1;
+        while (!(stack.get(frame) instanceof Frame))
+            frame--;
+        Value[] args = new Value[stack.size() - frame - 1];
+        for (int i = 0; i < args.length; i++)
+            args[i] = (Value) stack.get(frame + 1 + i);
+        int slots = ((Frame) stack.get(frame)).slots;
+        stack.subList(frame, stack.size()).clear();
+        Value call = function.newValue(Value.Kind.CALL, args);
+        call.op = op;
+        call.imm = intParam(at);
+        call.aux = slots;
+        block.append(call);
+        if (op == Operation.call) {
+            for (int i = 0; i < globalOf.size(); i++)
+                defs.remove((long) block.id << 32 | (argSlots + localSlots + i));
+        }
+        if (slots > 0)
+            stack.add(call);
+    }
+
+    private Value constant(Block block, long value) {
+        Value constant = function.newValue(Value.Kind.CONST);
+        constant.imm = value;
+        block.append(constant);
+        return constant;
+    }
+
+    private Value operation(Block block, Operation op, Value... args) {
+        Value value = function.newValue(Value.Kind.OP, args);
+        value.op = op;
+        block.append(value);
+        return value;
+    }
+
+    private boolean isGlobal(int var) {
+        return var >= argSlots + localSlots;
+    }
+
+    private static Value popValue(ArrayList<Object> stack) {
+        Object top = stack.remove(stack.size() - 1);
+        if (!(top instanceof Value))
+            throw new Unsupported();
+        return (Value) top;
+    }
+
+    private static int popSlot(ArrayList<Object> stack) {
+        Object top = stack.remove(stack.size() - 1);
+        if (!(top instanceof Slot))
+            throw new Unsupported();
+        return ((Slot) top).var;
+    }
+
+    private int intParam(int i) {
+        return (int) code.operand(i);
+    }
+
+    // 下面是 SSA 构造
+
+    private void writeVariable(int var, Block block, Value value) {
+        defs.put((long) block.id << 32 | var, value);
+    }
+
+    private Value readVariable(int var, Block block) {
+        Value value = defs.get((long) block.id << 32 | var);
+        if (value != null)
+            return resolve(value);
+        if (isGlobal(var)) {
+            // 全局变量只在块内转发，块里第一次读或者调用之后再读都是在读的地方从内存取
+            value = function.newValue(Value.Kind.LOAD);
+            value.imm = globalOf.get(var - argSlots - localSlots);
+            block.append(value);
+            writeVariable(var, block, value);
+            return value;
+        }
+        return readVariableRecursive(var, block);
+    }
+
+    private Value readVariableRecursive(int var, Block block) {
+        Value value;
+        if (!sealed[block.id]) {
+            value = newPhi(var, block);
+            incomplete.computeIfAbsent(block, b -> new ArrayList<>()).add(value);
+        } else if (block == entry) {
+            value = initialValue(var);
+        } else if (block.preds.size() == 1) {
+            value = readVariable(var, block.preds.get(0));
+        } else {
+            Value phi = newPhi(var, block);
+            writeVariable(var, block, phi);
+            value = addPhiOperands(phi);
+        }
+        writeVariable(var, block, value);
+        return value;
+    }
+
+    /**
+     * 变量在函数入口处的值：参数是调用者传进来的，局部变量被虚拟机清成了 0
+     */
+    private Value initialValue(int var) {
+        Value value;
+        if (var < argSlots) {
+            value = function.newValue(Value.Kind.PARAM);
+            value.imm = var;
+        } else {
+            value = function.newValue(Value.Kind.CONST);
+        }
+        entry.append(value);
+        return value;
+    }
+
+    private Value newPhi(int var, Block block) {
+        Value phi = function.newValue(Value.Kind.PHI);
+        phi.imm = var;
+        phi.block = block;
+        block.phis.add(phi);
+        return phi;
+    }
+
+    private Value addPhiOperands(Value phi) {
+        filling.add(phi);
+        for (Block pred : phi.block.preds)
+            phi.addArg(readVariable((int) phi.imm, pred));
+        filling.remove(phi);
+        return tryRemoveTrivialPhi(phi);
+    }
+
+    /**
+     * 除了自己以外只有一个不同操作数的 φ 可以直接换成那个操作数，换掉之后用到它的 φ 也可能变成这样
+     */
+    private Value tryRemoveTrivialPhi(Value phi) {
+        Value same = null;
+        for (Value arg : phi.args) {
+            if (arg == same || arg == phi)
+                continue;
+            if (same != null)
+                return phi;
+            same = arg;
+        }
+        if (same == null)
+            same = initialValue((int) phi.imm);
+        ArrayList<Value> users = new ArrayList<>(phi.users);
+        users.remove(phi);
+        phi.replaceAllUsesWith(same);
+        phi.dropArgs();
+        phi.block.phis.remove(phi);
+        for (Value user : users)
+            if (user.kind == Value.Kind.PHI && user.forward == null && sealed[user.block.id] && !filling.contains(user))
+                tryRemoveTrivialPhi(user);
+        // same 自己也可能在上面被换掉
+        return resolve(same);
+    }
+
+    private static Value resolve(Value value) {
+        while (value.forward != null)
+            value = value.forward;
+        return value;
+    }
+
+    private void trySeal(Block block) {
+        if (sealed[block.id])
+            return;
+        for (Block pred : block.preds)
+            if (!filled[pred.id])
+                return;
+        sealed[block.id] = true;
+        ArrayList<Value> phis = incomplete.remove(block);
+        if (phis != null)
+            for (Value phi : phis)
+                addPhiOperands(phi);
+    }
+}
@@ -0,0 +1,363 @@
+package ir;
+
+import instruction.Operation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 强度削弱和代数化简
+ *
+ * 整数运算去掉加 0、乘 1 这类恒等运算，乘以 2 的幂换成 shl，无符号除以 2 的幂换成 shrl。
+ * 有符号除法不换成 shr：shr 向负无穷取整而 divi 向 0 取整，修正需要把被除数用两次，在栈式虚拟机上比一条 divi 还长。
+ * 浮点运算只用结果按位不变的规则：乘除 1.0、加 -0.0、减 0.0、除以倒数能精确表示的 2 的幂换成乘法，不做结合律变换。
+ * 循环里只用来乘一个不变量的归纳变量换成每轮加一个常数的新归纳变量
+ */
+class StrengthReduction {
+    private static final long ONE = Double.doubleToRawLongBits(1.0);
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+    private final IrFunction function;
+    // 正在化简的块和它化简以后的值，化简时新建的常量放在被化简的值前面
+    private Block current;
+    private ArrayList<Value> out;
+
+    private StrengthReduction(IrFunction function) {
+        this.function = function;
+    }
+
+    /**
+     * @return 有没有化简，有的话常量折叠和死代码删除可能又有事可做
+     */
+    static boolean run(IrFunction function) {
+        return new StrengthReduction(function).simplifyAll();
+    }
+
+    private boolean simplifyAll() {
+        boolean changed = false;
+        for (Block block : function.blocks) {
+            current = block;
+            out = new ArrayList<>(block.values.size());
+            boolean blockChanged = false;
+            for (Value value : block.values) {
+                Value result = value;
+                if (value.kind == Value.Kind.OP && !value.users.isEmpty()) {
+                    // 原地改写的值可能还能接着化简，换成别的值就结束了
+                    Value next;
+                    while ((next = simplify(result)) == result)
+                        blockChanged = true;
+                    if (next != null)
+                        result = next;
+                }
+                if (result == value) {
+                    out.add(value);
+                    continue;
+                }
+                value.replaceAllUsesWith(result);
+                value.dropArgs();
+                value.block = null;
+                blockChanged = true;
+            }
+            if (blockChanged) {
+                block.values.clear();
+                block.values.addAll(out);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 归纳变量 i 每一轮加一个常数，只被这些加法和乘以同一个不变量 s 的乘法用到时，
+     * 新建一个从 i 的初值乘 s 开始、每一轮加常数乘 s 的归纳变量代替这些乘法，i 本身就没人用了。
+     * 整数乘法按 64 位回绕，所以 (i + c) * s 和 i * s + c * s 完全相等。
+     * i 还被循环条件这类地方用到时不换：多一个归纳变量要多存一个槽，每轮的加法并不比原来的乘法便宜
+     *
+     * @param loops Loop.find 的结果，每个循环都有前置块
+     */
+    static void reduceInductionVariables(IrFunction function, ArrayList<Loop> loops) {
+        StrengthReduction reduction = new StrengthReduction(function);
+        boolean changed = false;
+        for (Loop loop : loops)
+            for (Value phi : new ArrayList<>(loop.header.phis))
+                changed |= reduction.reduce(loop, phi);
+        // 前置块里算步长的乘法可能又能化简
+        if (changed)
+            reduction.simplifyAll();
+    }
+
+    private boolean reduce(Loop loop, Value phi) {
+        Block header = loop.header;
+        int entry = header.preds.indexOf(loop.preheader);
+        // 每条回边上的步长，以及算出下一轮的值的那些加法
+        long[] steps = new long[phi.args.length];
+        ArrayList<Value> increments = new ArrayList<>();
+        for (int k = 0; k < phi.args.length; k++) {
+            if (k == entry)
+                continue;
+            Value next = phi.args[k];
+            if (next.kind != Value.Kind.OP || !loop.contains(next.block))
+                return false;
+            if (next.op == Operation.addi && next.args[0] == phi && next.args[1].kind == Value.Kind.CONST)
+                steps[k] = next.args[1].imm;
+            else if (next.op == Operation.addi && next.args[1] == phi && next.args[0].kind == Value.Kind.CONST)
+                steps[k] = next.args[0].imm;
+            else if (next.op == Operation.subi && next.args[0] == phi && next.args[1].kind == Value.Kind.CONST)
+                steps[k] = -next.args[1].imm;
+            else
+                return false;
+            for (Value user : next.users)
+                if (user != phi)
+                    return false;
+            if (!increments.contains(next))
+                increments.add(next);
+        }
+        Value stride = null;
+        ArrayList<Value> products = new ArrayList<>();
+        for (Value user : phi.users) {
+            if (increments.contains(user))
+                continue;
+            if (user.kind != Value.Kind.OP || user.op != Operation.muli || !loop.contains(user.block))
+                return false;
+            Value other = user.args[0] == phi ? user.args[1] : user.args[0];
+            if (stride == null)
+                stride = other;
+            if (other != stride || other == phi || loop.contains(other.block))
+                return false;
+            products.add(user);
+        }
+        if (products.isEmpty())
+            return false;
+
+        Block preheader = loop.preheader;
+        Value reduced = function.newValue(Value.Kind.PHI);
+        reduced.block = header;
+        header.phis.add(reduced);
+        HashMap<Value, Value> nextOf = new HashMap<>();
+        for (int k = 0; k < phi.args.length; k++) {
+            if (k == entry) {
+                reduced.addArg(multiply(preheader, phi.args[k], stride));
+                continue;
+            }
+            Value increment = phi.args[k];
+            Value next = nextOf.get(increment);
+            if (next == null) {
+                Value step = function.newValue(Value.Kind.CONST);
+                step.imm = steps[k];
+                if (stride.kind != Value.Kind.CONST)
+                    preheader.append(step);
+                next = function.newValue(Value.Kind.OP, reduced, multiply(preheader, step, stride));
+                next.op = Operation.addi;
+                next.block = increment.block;
+                increment.block.values.add(increment.block.values.indexOf(increment) + 1, next);
+                nextOf.put(increment, next);
+            }
+            reduced.addArg(next);
+        }
+        for (Value product : products) {
+            product.replaceAllUsesWith(reduced);
+            product.dropArgs();
+            product.block.values.remove(product);
+            product.block = null;
+        }
+        phi.dropArgs();
+        header.phis.remove(phi);
+        phi.block = null;
+        for (Value increment : increments) {
+            increment.dropArgs();
+            increment.block.values.remove(increment);
+            increment.block = null;
+        }
+        return true;
+    }
+
+    /**
+     * 在前置块末尾算出 left * right，两个都是常量时直接算出来，这时 left 可以不在块里
+     */
+    private Value multiply(Block preheader, Value left, Value right) {
+        Value product;
+        if (left.kind == Value.Kind.CONST && right.kind == Value.Kind.CONST) {
+            product = function.newValue(Value.Kind.CONST);
+            product.imm = left.imm * right.imm;
+        } else {
+            product = function.newValue(Value.Kind.OP, left, right);
+            product.op = Operation.muli;
+        }
+        preheader.append(product);
+        return product;
+    }
+
+    /**
+     * @return 没法化简时返回 null，原地改写了 value 时返回 value，否则返回用来代替 value 的值
+     */
+    private Value simplify(Value value) {
+        Value x = value.args[0];
+        Value y = value.args.length > 1 ? value.args[1] : null;
+        switch (value.op) {
+            case addi:
+                if (is(y, 0))
+                    return x;
+                if (is(x, 0))
+                    return y;
+                return null;
+            case subi:
+                if (is(y, 0))
+                    return x;
+                if (x == y)
+                    return newConstant(0);
+                if (is(x, 0))
+                    return negate(value, 0);
+                return null;
+            case muli: {
+                int k = y.kind == Value.Kind.CONST ? 1 : x.kind == Value.Kind.CONST ? 0 : -1;
+                if (k < 0)
+                    return null;
+                long c = value.args[k].imm;
+                Value other = value.args[1 - k];
+                if (c == 0)
+                    return newConstant(0);
+                if (c == 1)
+                    return other;
+                if (c == -1)
+                    return negate(value, k);
+                if ((c & c - 1) == 0)
+                    return shift(value, Operation.shl, other, c);
+                return null;
+            }
+            case divi:
+                if (is(y, 1))
+                    return x;
+                if (is(y, -1))
+                    return negate(value, 1);
+                return null;
+            case divu:
+                if (is(y, 1))
+                    return x;
+                if (y.kind == Value.Kind.CONST && y.imm != 0 && (y.imm & y.imm - 1) == 0)
+                    return shift(value, Operation.shrl, x, y.imm);
+                return null;
+            case shl:
+            case shr:
+            case shrl:
+                // 虚拟机的移位和 Java 一样只看移位数的低 6 位
+                if (y.kind == Value.Kind.CONST && (y.imm & 63) == 0)
+                    return x;
+                if (is(x, 0))
+                    return x;
+                return null;
+            case and:
+                if (is(y, 0))
+                    return y;
+                if (is(x, 0))
+                    return x;
+                if (is(y, -1) || x == y)
+                    return x;
+                if (is(x, -1))
+                    return y;
+                return null;
+            case or:
+                if (is(y, 0) || x == y || is(x, -1))
+                    return x;
+                if (is(x, 0) || is(y, -1))
+                    return y;
+                return null;
+            case xor:
+                if (is(y, 0))
+                    return x;
+                if (is(x, 0))
+                    return y;
+                if (x == y)
+                    return newConstant(0);
+                return null;
+            case cmpi:
+            case cmpu:
+                if (x == y)
+                    return newConstant(0);
+                return null;
+            case negi:
+                if (x.kind == Value.Kind.OP && x.op == Operation.negi)
+                    return x.args[0];
+                return null;
+            case mulf:
+                if (is(y, ONE))
+                    return x;
+                if (is(x, ONE))
+                    return y;
+                return null;
+            case divf:
+                if (is(y, ONE))
+                    return x;
+                if (y.kind == Value.Kind.CONST && exactReciprocal(y.imm)) {
+                    value.op = Operation.mulf;
+                    value.setArg(1, newConstant(Double.doubleToRawLongBits(1 / real(y.imm))));
+                    return value;
+                }
+                return null;
+            case addf:
+                if (is(y, NEGATIVE_ZERO))
+                    return x;
+                if (is(x, NEGATIVE_ZERO))
+                    return y;
+                return null;
+            case subf:
+                if (is(y, 0))
+                    return x;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean is(Value value, long constant) {
+        return value.kind == Value.Kind.CONST && value.imm == constant;
+    }
+
+    /**
+     * 把双目运算改成对另一个操作数取负
+     *
+     * @param drop 去掉的操作数的下标
+     */
+    private static Value negate(Value value, int drop) {
+        value.removeArg(drop);
+        value.op = Operation.negi;
+        return value;
+    }
+
+    /**
+     * 把乘除 2 的幂改成移位
+     */
+    private Value shift(Value value, Operation op, Value operand, long power) {
+        Value amount = newConstant(Long.numberOfTrailingZeros(power));
+        value.dropArgs();
+        value.addArg(operand);
+        value.addArg(amount);
+        value.op = op;
+        return value;
+    }
+
+    /**
+     * 2 的幂，并且倒数也是规格化数，这时除以它和乘以它的倒数结果完全一样
+     */
+    private static boolean exactReciprocal(long bits) {
+        double d = real(bits);
+        if (d == 0 || Double.isNaN(d) || Double.isInfinite(d) || Math.abs(d) != Math.scalb(1.0, Math.getExponent(d)))
+            return false;
+        int exponent = Math.getExponent(d);
+        return exponent > Double.MIN_EXPONENT && exponent < Double.MAX_EXPONENT;
+    }
+
+    private static double real(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * 新建的常量放进当前块，排在正在化简的值前面
+     */
+    private Value newConstant(long imm) {
+        Value constant = function.newValue(Value.Kind.CONST);
+        constant.imm = imm;
+        constant.block = current;
+        out.add(constant);
+        return constant;
+    }
+}
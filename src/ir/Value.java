@@ -0,0 +1,157 @@
+package ir;
+
+import instruction.Operation;
+
+import java.util.ArrayList;
+
+/**
+ * SSA 值，同时也是基本块里的一条中间指令，操作数直接引用定义它的 Value
+ * 每个 Value 都记着哪些 Value 用到了它，一个值在同一个使用者里出现几次就记几次
+ */
+public class Value {
+    public enum Kind {
+        /** 常量，imm 是值 */
+        CONST,
+        /** 函数入口时参数槽里的值，imm 是 arga 的编号 */
+        PARAM,
+        /** 全局变量在这个位置上内存里的值，imm 是全局变量的编号；块里第一次读或者 call 之后才有，内联和外提会把它挪到别的块 */
+        LOAD,
+        /** φ 函数，args 和所在块的 preds 一一对应，构造 SSA 时 imm 是对应的变量编号 */
+        PHI,
+        /** 没有副作用的运算，op 是对应的指令，args 是一个或两个操作数 */
+        OP,
+        /** 写全局变量，imm 是全局变量的编号，args[0] 是写入的值 */
+        STORE,
+        /** 函数调用，op 是 call 或 callname，imm 是它们的操作数，args 是实参，aux 是返回值占的栈空间 */
+        CALL,
+        /** 块的结尾：跳到 succs[0] */
+        JUMP,
+        /** 块的结尾：args[0] 不为 0 时跳到 succs[0]，否则跳到 succs[1] */
+        BRANCH,
+        /** 块的结尾：返回，函数有返回值时 args[0] 是返回值，aux 为 1 表示这是函数末尾隐含的返回 */
+        RETURN
+    }
+
+    public final int id;
+    public final Kind kind;
+    public Operation op;
+    public long imm;
+    public int aux;
+    public Value[] args;
+    public Block block;
+    public final ArrayList<Value> users = new ArrayList<>();
+
+    // 被替换掉的值指向替换它的值
+    Value forward;
+
+    Value(int id, Kind kind, Value... args) {
+        this.id = id;
+        this.kind = kind;
+        this.args = args;
+        for (Value arg : args)
+            arg.users.add(this);
+    }
+
+    /**
+     * 是否产生一个可以被别的 Value 使用的值
+     */
+    public boolean hasResult() {
+        switch (kind) {
+            case CONST:
+            case PARAM:
+            case LOAD:
+            case PHI:
+            case OP:
+                return true;
+            case CALL:
+                return aux > 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 删掉以后会改变程序行为的值
+     */
+    public boolean hasSideEffect() {
+        switch (kind) {
+            case OP:
+                return mayTrap();
+            case STORE:
+            case CALL:
+            case JUMP:
+            case BRANCH:
+            case RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 除数可能是 0 的整数除法，运行时会报错，所以不能删掉，也不能和读写内存的值交换顺序
+     */
+    public boolean mayTrap() {
+        return kind == Kind.OP && (op == Operation.divi || op == Operation.divu)
+                && (args[1].kind != Kind.CONST || args[1].imm == 0);
+    }
+
+    public boolean isTerminator() {
+        return kind == Kind.JUMP || kind == Kind.BRANCH || kind == Kind.RETURN;
+    }
+
+    public void setArg(int i, Value value) {
+        args[i].users.remove(this);
+        args[i] = value;
+        value.users.add(this);
+    }
+
+    public void addArg(Value value) {
+        Value[] grown = new Value[args.length + 1];
+        System.arraycopy(args, 0, grown, 0, args.length);
+        grown[args.length] = value;
+        args = grown;
+        value.users.add(this);
+    }
+
+    public void removeArg(int i) {
+        args[i].users.remove(this);
+        Value[] shrunk = new Value[args.length - 1];
+        System.arraycopy(args, 0, shrunk, 0, i);
+        System.arraycopy(args, i + 1, shrunk, i, args.length - i - 1);
+        args = shrunk;
+    }
+
+    /**
+     * 把所有用到这个值的地方换成 value
+     */
+    public void replaceAllUsesWith(Value value) {
+        for (Value user : new ArrayList<>(users)) {
+            for (int i = 0; i < user.args.length; i++)
+                if (user.args[i] == this)
+                    user.setArg(i, value);
+        }
+        forward = value;
+    }
+
+    /**
+     * 不再使用任何操作数，用来删除这个值
+     */
+    public void dropArgs() {
+        for (Value arg : args)
+            arg.users.remove(this);
+        args = new Value[0];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("v").append(id).append(" = ").append(kind);
+        if (op != null)
+            builder.append(' ').append(op);
+        if (kind == Kind.CONST || kind == Kind.PARAM || kind == Kind.LOAD || kind == Kind.STORE || kind == Kind.CALL)
+            builder.append(' ').append(imm);
+        for (Value arg : args)
+            builder.append(" v").append(arg.id);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package peephole;
+
+import instruction.Operation;
+
+/**
+ * if 和 while 的条件生成的 brtrue 1; br X 换成一条 brfalse X，brfalse 1; br X 同理
+ */
+class BranchInversion implements Rule {
+    @Override
+    public boolean apply(Code code, int at) {
+        Operation op = code.op(at);
+        if (op != Operation.brtrue && op != Operation.brfalse)
+            return false;
+        if (code.op(at + 1) != Operation.br || code.target(at) != at + 2)
+            return false;
+        Operation inverted = op == Operation.brtrue ? Operation.brfalse : Operation.brtrue;
+        return code.replace(at, 2, inverted, code.target(at + 1));
+    }
+}
@@ -0,0 +1,124 @@
+package peephole;
+
+import instruction.InstructionBuffer;
+import instruction.Operation;
+
+/**
+ * 窥孔优化一遍扫描时看到的函数体
+ * 跳转指令的参数在这里是目标指令的下标而不是相对偏移，下标等于 size() 表示跳出函数体的末尾，和原来的指令一样落出函数，不当成 ret
+ * 规则只能读这里的指令，改写通过 replace 登记，一遍扫完以后再统一生成新的指令序列
+ */
+public class Code {
+    private final InstructionBuffer body;
+    private final Operation[] ops;
+    // 跳转指令的目标下标，其他指令是 -1
+    private final int[] targets;
+    // 每条指令是多少条跳转的目标
+    private final int[] labels;
+
+    // 当前位置上登记的改写
+    private int replaced;
+    private final InstructionBuffer replacement = new InstructionBuffer(null, 4);
+
+    Code(InstructionBuffer body) {
+        int n = body.size();
+        this.body = body;
+        this.ops = new Operation[n];
+        this.targets = new int[n];
+        this.labels = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            ops[i] = body.op(i);
+            targets[i] = -1;
+            if (isBranch(ops[i])) {
+                targets[i] = (int) body.operand(i);
+                labels[targets[i]]++;
+            }
+        }
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    /**
+     * @return 第 i 条指令的操作数，超出范围时返回 0
+     */
+    public long operand(int i) {
+        return i >= 0 && i < ops.length ? body.operand(i) : 0;
+    }
+
+    /**
+     * @return 第 i 条指令的操作，超出范围时返回 null
+     */
+    public Operation op(int i) {
+        return i >= 0 && i < ops.length ? ops[i] : null;
+    }
+
+    /**
+     * 第 i 条跳转指令的目标下标
+     */
+    public int target(int i) {
+        return targets[i];
+    }
+
+    /**
+     * 有没有跳转指令跳到第 i 条
+     */
+    public boolean isLabel(int i) {
+        return labels[i] > 0;
+    }
+
+    public static boolean isBranch(Operation op) {
+        return op == Operation.br || op == Operation.brtrue || op == Operation.brfalse;
+    }
+
+    /**
+     * 执行完这条指令以后不会落到下一条
+     */
+    public static boolean isUnconditional(Operation op) {
+        return op == Operation.br || op == Operation.ret;
+    }
+
+    /**
+     * 把从 at 开始的 count 条指令换成 with 里这些没有操作数的指令
+     * 窗口中间的指令是跳转目标时不能改写，这时返回 false
+     */
+    public boolean replace(int at, int count, Operation... with) {
+        if (!replaceable(at, count))
+            return false;
+        for (Operation op : with)
+            replacement.add(op);
+        return true;
+    }
+
+    /**
+     * 把从 at 开始的 count 条指令换成一条跳到下标 target 的跳转
+     */
+    public boolean replace(int at, int count, Operation branch, int target) {
+        if (!replaceable(at, count))
+            return false;
+        replacement.add(branch, target);
+        return true;
+    }
+
+    private boolean replaceable(int at, int count) {
+        if (at + count > ops.length)
+            return false;
+        for (int i = at + 1; i < at + count; i++)
+            if (isLabel(i))
+                return false;
+        replaced = count;
+        replacement.clear();
+        return true;
+    }
+
+    int takeReplaced() {
+        int count = replaced;
+        replaced = 0;
+        return count;
+    }
+
+    InstructionBuffer replacement() {
+        return replacement;
+    }
+}
@@ -0,0 +1,29 @@
+package peephole;
+
+import instruction.Operation;
+
+/**
+ * 算出来马上被 pop 掉的值：没有操作数的直接和 pop 一起删掉，有操作数的换成把操作数 pop 掉
+ * 除法可能因为除以 0 报错，不能删
+ */
+class DeadValue implements Rule {
+    @Override
+    public boolean apply(Code code, int at) {
+        if (code.op(at + 1) != Operation.pop)
+            return false;
+        switch (code.op(at)) {
+            case push: case loca: case arga: case globa:
+                return code.replace(at, 2);
+            case load64:
+            case not: case negi: case negf: case itof: case ftoi: case setlt: case setgt:
+                return code.replace(at, 2, Operation.pop);
+            case addi: case subi: case muli:
+            case addf: case subf: case mulf: case divf:
+            case shl: case shr: case shrl: case and: case or: case xor:
+            case cmpi: case cmpu: case cmpf:
+                return code.replace(at, 2, Operation.pop, Operation.pop);
+            default:
+                return false;
+        }
+    }
+}
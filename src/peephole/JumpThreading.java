@@ -0,0 +1,27 @@
+package peephole;
+
+import instruction.Operation;
+
+/**
+ * 跳到 br 的跳转直接跳到最终的目标；跳到下一条的 br 删掉，条件跳转换成 pop；
+ * 最终跳到 ret 的 br 直接换成 ret；跳到函数末尾的不换，末尾之后不一定有 ret
+ */
+class JumpThreading implements Rule {
+    @Override
+    public boolean apply(Code code, int at) {
+        Operation op = code.op(at);
+        if (!Code.isBranch(op))
+            return false;
+        int target = code.target(at);
+        // 全是 br 的死循环不会走到头，最多跟 size 步
+        for (int steps = 0; code.op(target) == Operation.br && steps < code.size(); steps++)
+            target = code.target(target);
+        if (target == at + 1)
+            return op == Operation.br ? code.replace(at, 1) : code.replace(at, 1, Operation.pop);
+        if (op == Operation.br && code.op(target) == Operation.ret)
+            return code.replace(at, 1, Operation.ret);
+        if (target == code.target(at))
+            return false;
+        return code.replace(at, 1, op, target);
+    }
+}
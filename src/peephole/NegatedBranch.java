@@ -0,0 +1,19 @@
+package peephole;
+
+import instruction.Operation;
+
+/**
+ * 条件跳转前面的 not 去掉，换成相反的条件跳转，>= 和 <= 的 cmp; setlt/setgt; not 在条件里因此少一条
+ */
+class NegatedBranch implements Rule {
+    @Override
+    public boolean apply(Code code, int at) {
+        if (code.op(at) != Operation.not)
+            return false;
+        Operation branch = code.op(at + 1);
+        if (branch != Operation.brtrue && branch != Operation.brfalse)
+            return false;
+        Operation inverted = branch == Operation.brtrue ? Operation.brfalse : Operation.brtrue;
+        return code.replace(at, 2, inverted, code.target(at + 1));
+    }
+}
@@ -0,0 +1,107 @@
+package peephole;
+
+import instruction.InstructionBuffer;
+import instruction.Operation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 窥孔优化：在生成的指令序列上反复扫描，用一组规则改写小窗口里的指令，直到没有规则能用为止
+ * 每一遍扫描先把跳转的相对偏移换成目标下标，改写完再按新的位置算回相对偏移
+ */
+public class Peephole {
+    // 扫描遍数的上限，正常情况下两三遍就不再变化
+    private static final int MAX_PASSES = 16;
+
+    private final Rule[] rules;
+    private int eliminated;
+
+    public Peephole() {
+        this(defaultRules());
+    }
+
+    /**
+     * @param rules 按顺序尝试，同一个位置只用第一条能用的规则
+     */
+    public Peephole(List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[0]);
+    }
+
+    public static List<Rule> defaultRules() {
+        return Arrays.asList(new UnreachableCode(), new JumpThreading(), new BranchInversion(),
+                new NegatedBranch(), new DeadValue());
+    }
+
+    /**
+     * @param function 函数的指令序列，不会被修改
+     * @return 优化后的指令序列，函数头和 function 是同一个
+     */
+    public InstructionBuffer optimize(InstructionBuffer function) {
+        InstructionBuffer body = new InstructionBuffer(function.entry, function.size());
+        for (int i = 0; i < function.size(); i++) {
+            Operation op = function.op(i);
+            body.add(op, Code.isBranch(op) ? i + 1 + function.operand(i) : function.operand(i));
+        }
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            InstructionBuffer next = rewrite(body);
+            if (next == null)
+                break;
+            body = next;
+        }
+        for (int i = 0; i < body.size(); i++)
+            if (Code.isBranch(body.op(i)))
+                body.setOperand(i, body.operand(i) - i - 1);
+        eliminated = function.size() - body.size();
+        return body;
+    }
+
+    /**
+     * 上一次 optimize 删掉的指令条数
+     */
+    public int eliminated() {
+        return eliminated;
+    }
+
+    /**
+     * 扫描一遍
+     *
+     * @return 新的函数体，没有任何改写时返回 null
+     */
+    private InstructionBuffer rewrite(InstructionBuffer body) {
+        Code code = new Code(body);
+        InstructionBuffer out = new InstructionBuffer(body.entry, body.size());
+        // 原来的下标 -> 新的下标，被删掉的指令对应它后面第一条留下来的指令
+        int[] newIndex = new int[body.size() + 1];
+        boolean changed = false;
+        int at = 0;
+        while (at < body.size()) {
+            newIndex[at] = out.size();
+            int count = 0;
+            for (Rule rule : rules) {
+                if (rule.apply(code, at)) {
+                    count = code.takeReplaced();
+                    break;
+                }
+            }
+            if (count == 0) {
+                out.add(body, at++);
+                continue;
+            }
+            changed = true;
+            for (int i = at + 1; i < at + count; i++)
+                newIndex[i] = out.size();
+            InstructionBuffer replacement = code.replacement();
+            for (int i = 0; i < replacement.size(); i++)
+                out.add(replacement, i);
+            at += count;
+        }
+        if (!changed)
+            return null;
+        newIndex[body.size()] = out.size();
+        for (int i = 0; i < out.size(); i++)
+            if (Code.isBranch(out.op(i)))
+                out.setOperand(i, newIndex[(int) out.operand(i)]);
+        return out;
+    }
+}
@@ -0,0 +1,11 @@
+package peephole;
+
+/**
+ * 一条窥孔规则：看从某个位置开始的几条指令，能改写就用 Code.replace 登记改写
+ */
+public interface Rule {
+    /**
+     * @return 是否登记了改写，通常就是 replace 的返回值
+     */
+    boolean apply(Code code, int at);
+}
@@ -0,0 +1,16 @@
+package peephole;
+
+/**
+ * 无条件跳转或 ret 后面、直到下一个跳转目标之前的指令执行不到，删掉
+ */
+class UnreachableCode implements Rule {
+    @Override
+    public boolean apply(Code code, int at) {
+        if (at == 0 || !Code.isUnconditional(code.op(at - 1)) || code.isLabel(at))
+            return false;
+        int end = at + 1;
+        while (end < code.size() && !code.isLabel(end))
+            end++;
+        return code.replace(at, end - at);
+    }
+}
@@ -12,7 +12,9 @@ public class SymbolEntry {
     public SymbolRange symbolrange;
     public int offset;
     public int funcOffset;
-    public int lastaddr = -1;
+    // 初始值在编译时就能算出来的 const 变量，读它的地方直接用这个值
+    public boolean hasConstantValue = false;
+    public long constantValue;
 
     public SymbolEntry(String name, boolean isFunction, SymbolRange symbolrange, int offset, int funcOffset) {
         this.name = name;
@@ -31,14 +33,4 @@ public class SymbolEntry {
         this.symbolrange = symbolrange;
         this.offset = offset;
     }
-
-    public SymbolEntry(String name, boolean constflag, boolean initflag, SymbolType symbolType, int lastaddr, SymbolRange symbolrange, int offset) {
-        this.name = name;
-        this.constflag = constflag;
-        this.initflag = initflag;
-        this.symbolType = symbolType;
-        this.symbolrange = symbolrange;
-        this.offset = offset;
-        this.lastaddr = lastaddr;
-    }
 }
@@ -0,0 +1,86 @@
+package symbol;
+
+import java.util.Arrays;
+
+/**
+ * 按作用域组织的符号表，名字用词法分析时分配的名字编号表示，查找和声明都不用对字符串求哈希
+ * 每个名字编号记着最内层的同名符号，每个符号记着被它遮住的上一个同名符号，形成一条遮蔽链
+ * 作用域只记进入时符号的个数，退出时把多出来的符号弹掉并沿链恢复
+ */
+public class SymbolTable {
+    // 当前可见的所有符号，按声明顺序
+    private SymbolEntry[] entries = new SymbolEntry[64];
+    private int[] nameOf = new int[64];
+    // 被这个符号遮住的同名符号的下标，-1 表示没有
+    private int[] shadowed = new int[64];
+    private int size = 0;
+
+    // 每个名字编号对应的最内层符号的下标，-1 表示没有
+    private final int[] innermost;
+
+    // 每层作用域开始时的符号个数
+    private int[] scopes = new int[16];
+    private int depth = 0;
+
+    /**
+     * @param nameCount 名字编号的个数，编号从 0 开始
+     */
+    public SymbolTable(int nameCount) {
+        innermost = new int[nameCount];
+        Arrays.fill(innermost, -1);
+        enterScope();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public SymbolEntry get(int index) {
+        return entries[index];
+    }
+
+    /**
+     * 查找最内层的同名符号，没有的话返回 null
+     */
+    public SymbolEntry lookup(int nameId) {
+        if (nameId < 0)
+            return null;
+        int index = innermost[nameId];
+        return index < 0 ? null : entries[index];
+    }
+
+    /**
+     * 当前作用域里是否已经有这个名字
+     */
+    public boolean declaredInCurrentScope(int nameId) {
+        return innermost[nameId] >= scopes[depth - 1];
+    }
+
+    public void declare(int nameId, SymbolEntry symbol) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+            nameOf = Arrays.copyOf(nameOf, size * 2);
+            shadowed = Arrays.copyOf(shadowed, size * 2);
+        }
+        entries[size] = symbol;
+        nameOf[size] = nameId;
+        shadowed[size] = innermost[nameId];
+        innermost[nameId] = size;
+        size++;
+    }
+
+    public void enterScope() {
+        if (depth == scopes.length)
+            scopes = Arrays.copyOf(scopes, depth * 2);
+        scopes[depth++] = size;
+    }
+
+    public void exitScope() {
+        int mark = scopes[--depth];
+        for (int i = size - 1; i >= mark; i--) {
+            innermost[nameOf[i]] = shadowed[i];
+            entries[i] = null;
+        }
+        size = mark;
+    }
+}
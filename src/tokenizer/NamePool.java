@@ -0,0 +1,103 @@
+package tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * 标识符和字符串常量的驻留池，同样的名字只存一份，用从 0 开始的编号表示
+ * 词法分析直接拿缓冲区里的一段字符来查，已经出现过的名字不会再创建 String
+ */
+public class NamePool {
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int count = 0;
+
+    // 开放寻址的哈希表，存的是编号 + 1，0 表示空位
+    private int[] table = new int[128];
+
+    public int size() {
+        return count;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * 查找 chars[start, end) 这个名字的编号，没有的话加进去
+     */
+    public int intern(char[] chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + chars[i];
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0)
+                return add(new String(chars, start, end - start), hash, slot);
+            if (hashes[id] == hash && matches(names[id], chars, start, end))
+                return id;
+        }
+    }
+
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0)
+                return add(name, hash, slot);
+            if (hashes[id] == hash && names[id].equals(name))
+                return id;
+        }
+    }
+
+    /**
+     * 只查不加，没有的话返回 -1
+     */
+    public int find(String name) {
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0)
+                return -1;
+            if (hashes[id] == hash && names[id].equals(name))
+                return id;
+        }
+    }
+
+    private static boolean matches(String name, char[] chars, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = start; i < end; i++)
+            if (name.charAt(i - start) != chars[i])
+                return false;
+        return true;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        names[count] = name;
+        hashes[count] = hash;
+        table[slot] = count + 1;
+        int id = count++;
+        // 装载因子超过一半就扩容
+        if (count * 2 > table.length)
+            rehash();
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+}
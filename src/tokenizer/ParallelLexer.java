@@ -0,0 +1,122 @@
+package tokenizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 把大文件按行切成几段，在 ForkJoinPool 上分别做词法分析，再按顺序拼起来
+ *
+ * 注释不会跨行，但字符串和字符常量里可以有换行，所以行首不一定是 token 的边界。
+ * 拼接的时候看前一段停下的位置是不是后一段某个 token 的开头：词法分析除了当前位置没有别的状态，
+ * 从同一个位置开始得到的 token 一定一样，对上了就从那个 token 起接上后一段；
+ * 对不上说明切在了常量中间，就从停下的位置把这一段重新串行分析一遍
+ */
+class ParallelLexer {
+    // 每段至少这么大，太小了拆开不划算
+    private static final int MIN_CHUNK = 1 << 18;
+
+    // 扫描引号时的状态
+    private static final int CODE = 0, STRING = 1;
+
+    private ParallelLexer() {
+    }
+
+    static TokenBuffer tokenize(StringIter source, NamePool names, int parallelism) {
+        int begin = source.offset();
+        int size = source.length - begin;
+        int chunks = Math.max(1, Math.min(parallelism, size / MIN_CHUNK));
+
+        // 先粗分，每段并行扫一遍引号，分别假设段首在代码里和在字符串里，算出段尾的状态和段内第一个在代码里的行首
+        int[] rough = new int[chunks + 1];
+        rough[0] = begin;
+        for (int i = 1; i < chunks; i++)
+            rough[i] = Math.max(rough[i - 1], source.lineStartFrom(begin + (int) ((long) size * i / chunks)));
+        rough[chunks] = source.length;
+        List<ForkJoinTask<int[]>> scans = new ArrayList<>();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        for (int i = 0; i < chunks; i++) {
+            int from = rough[i];
+            int to = rough[i + 1];
+            scans.add(pool.submit(() -> {
+                int[] result = new int[4];
+                scan(source, from, to, CODE, result, 0);
+                scan(source, from, to, STRING, result, 2);
+                return result;
+            }));
+        }
+        // 从头串起来就知道每段开头真正的状态，段的起点取段内第一个在代码里的行首
+        ArrayList<Integer> bounds = new ArrayList<>();
+        bounds.add(begin);
+        int state = CODE;
+        for (int i = 0; i < chunks; i++) {
+            int[] result = scans.get(i).join();
+            int k = state == CODE ? 0 : 2;
+            if (i > 0 && result[k + 1] >= 0 && result[k + 1] > bounds.get(bounds.size() - 1))
+                bounds.add(result[k + 1]);
+            state = result[k];
+        }
+        bounds.add(Integer.MAX_VALUE);
+
+        List<ForkJoinTask<TokenBuffer>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            int start = bounds.get(i);
+            int limit = bounds.get(i + 1);
+            tasks.add(pool.submit(() -> new Tokenizer(source.view(start)).lex(new NamePool(), limit)));
+        }
+
+        TokenBuffer result = new TokenBuffer(source, names);
+        // 已经拼好的部分之后，下一个 token 的开头
+        int resume = begin;
+        for (int i = 0; i < tasks.size(); i++) {
+            TokenBuffer chunk = tasks.get(i).join();
+            if (resume >= chunk.resume)
+                continue;
+            // 第一段就是从头开始读的，一定对得上
+            int from = i == 0 ? 0 : chunk.indexOfStart(resume);
+            if (from < 0) {
+                chunk = new Tokenizer(source.view(resume)).lex(new NamePool(), bounds.get(i + 1));
+                from = 0;
+            }
+            result.append(chunk, from);
+            if (chunk.error != null)
+                break;
+            resume = chunk.resume;
+        }
+        return result;
+    }
+
+    /**
+     * 按词法规则粗略地扫一遍 [from, to)，只跟踪是否在字符串常量里，跳过注释和字符常量
+     * result[at] 是扫到 to 时的状态，result[at + 1] 是第一个状态为 CODE 的行首，没有的话是 -1
+     * 这里算错了也没关系，拼接时还会再核对一遍，只是会多一次串行分析
+     */
+    private static void scan(StringIter source, int from, int to, int state, int[] result, int at) {
+        char[] buffer = source.buffer;
+        int safe = -1;
+        for (int i = from; i < to; i++) {
+            char ch = buffer[i];
+            if (state == STRING) {
+                if (ch == '\\')
+                    i++;
+                else if (ch == '"')
+                    state = CODE;
+                continue;
+            }
+            if (safe < 0 && (i == 0 || buffer[i - 1] == '\n'))
+                safe = i;
+            if (ch == '"') {
+                state = STRING;
+            } else if (ch == '\'') {
+                // 'x' 或 '\x'
+                i += buffer[i + 1] == '\\' ? 3 : 2;
+            } else if (ch == '/' && buffer[i + 1] == '/') {
+                while (buffer[i + 1] != '\n')
+                    i++;
+            }
+        }
+        result[at] = state;
+        result[at + 1] = safe;
+    }
+}
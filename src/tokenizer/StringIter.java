@@ -2,29 +2,85 @@ package tokenizer;
 
 import util.Pos;
 
-import java.util.ArrayList;
-import java.util.Optional;
-import java.util.Scanner;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * 这是一个从 C++ 版本抄过来的字符迭代器
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 整个源文件，所有换行都换成了 \n，并且每一行都以 \n 结尾
+    char[] buffer;
+    int length;
+
+    // 每一行第一个字符在 buffer 里的下标，只在需要 Pos 的时候才用到
+    int[] lineStarts;
+    int lineCount;
 
-    Scanner scanner;
     // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    int ptr = 0;
+    // ptr 对应的行号和列号，随着 nextChar 一起更新
+    int row = 0;
+    int col = 0;
 
-    Pos ptr = new Pos(0, 0);
+    /**
+     * 把整个文件映射进来一次解码，不再逐行读
+     * 源文件一律按 UTF-8 解码，和写进 o0 的字符串常量用同一种编码，不随平台默认字符集变；
+     * 不合法的字节报错，不悄悄换成替换字符
+     */
+    public StringIter(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                init(StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(bytes));
+            } catch (CharacterCodingException e) {
+                throw new IOException(path + ": invalid UTF-8 at byte " + bytes.position(), e);
+            }
+        }
+    }
+
+    public StringIter(CharSequence source) {
+        init(CharBuffer.wrap(source));
+    }
 
-    boolean initialized = false;
+    private StringIter() {
+    }
 
-    Optional<Character> peeked = Optional.empty();
+    /**
+     * 共用同一个缓冲区、从 offset 开始读的另一个迭代器，分段并行做词法分析时用
+     */
+    StringIter view(int offset) {
+        StringIter view = new StringIter();
+        view.buffer = buffer;
+        view.length = length;
+        view.lineStarts = lineStarts;
+        view.lineCount = lineCount;
+        Pos pos = posAt(offset);
+        view.ptr = offset;
+        view.row = pos.row;
+        view.col = pos.col;
+        return view;
+    }
 
-    public StringIter(Scanner scanner) {
-        this.scanner = scanner;
+    /**
+     * 第一个不在 offset 之前的行首，没有的话返回 length
+     */
+    int lineStartFrom(int offset) {
+        int i = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        if (i < 0)
+            i = -i - 1;
+        return i < lineCount ? lineStarts[i] : length;
     }
 
     // 从这里开始其实是一个基于行号的缓冲区的实现
@@ -35,98 +91,184 @@ public class StringIter {
     // 3.行号和列号从 0 开始
 
     // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
-    public void readAll() {
-        if (initialized) {
-            return;
+    // 和原来按 Scanner.hasNext 逐行读一样，末尾只有空白的行不算
+    private void init(CharBuffer source) {
+        int n = source.remaining();
+        char[] chars = new char[n + 1];
+        int len = 0;
+        lineStarts = new int[16];
+        lineCount = 0;
+        // 最后一个含有非空白字符的行是第几行（从 1 开始数）
+        int lastLine = 0;
+        boolean lineStart = true;
+        for (int i = 0; i < n; i++) {
+            char ch = source.get(i);
+            if (lineStart) {
+                if (lineCount == lineStarts.length)
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                lineStarts[lineCount++] = len;
+                lineStart = false;
+            }
+            if (ch == '\r' && i + 1 < n && source.get(i + 1) == '\n')
+                i++;
+            if (ch == '\r' || ch == '\n' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029') {
+                chars[len++] = '\n';
+                lineStart = true;
+                continue;
+            }
+            chars[len++] = ch;
+            if (!Character.isWhitespace(ch))
+                lastLine = lineCount;
         }
-        while (scanner.hasNext()) {
-            String nextline=scanner.nextLine();
-            System.out.println(nextline);
-            linesBuffer.add(nextline + '\n');
-        }
-        // todo:check read \n?
-        initialized = true;
+        if (!lineStart)
+            chars[len++] = '\n';
+        // 去掉末尾只有空白的行
+        length = lastLine == lineCount ? len : lineStarts[lastLine];
+        lineCount = lastLine;
+        buffer = chars;
     }
 
     /**
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (ptr >= length) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
+        if (buffer[ptr] == '\n') {
+            return new Pos(row + 1, 0);
         }
-        return new Pos(ptr.row, ptr.col + 1);
+        return new Pos(row, col + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return new Pos(row, col);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (ptr == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
+        if (col == 0) {
+            return new Pos(row - 1, ptr - 1 - lineStarts[row - 1]);
         }
-        return new Pos(ptr.row, ptr.col - 1);
+        return new Pos(row, col - 1);
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
-        }
-    }
-
-    private char getNextChar() {
-        if (isEOF()) {
+        if (ptr >= length) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        char ch = buffer[ptr++];
+        if (ch == '\n') {
+            row++;
+            col = 0;
+        } else {
+            col++;
+        }
+        return ch;
     }
 
     /**
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        return ptr < length ? buffer[ptr] : 0;
+    }
+
+    public boolean isEOF() {
+        return ptr >= length;
+    }
+
+    // 下面几个给 Tokenizer 按下标整段扫描用
+
+    /**
+     * 下一个要读取的字符在缓冲区里的下标
+     */
+    int offset() {
+        return ptr;
+    }
+
+    /**
+     * 查看缓冲区 offset 处的字符，超出范围返回 0
+     */
+    char charAt(int offset) {
+        return offset < length ? buffer[offset] : 0;
+    }
+
+    /**
+     * 直接把指针移到 offset，中间的字符不能有换行
+     */
+    void skipTo(int offset) {
+        col += offset - ptr;
+        ptr = offset;
+    }
+
+    /**
+     * 跳过这一行剩下的字符，包括行尾的 \n
+     */
+    void skipLine() {
+        int i = ptr;
+        while (i < length && buffer[i] != '\n')
+            i++;
+        if (i == length) {
+            skipTo(i);
+            return;
         }
+        ptr = i + 1;
+        row++;
+        col = 0;
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    String substring(int start, int end) {
+        return new String(buffer, start, end - start);
+    }
+
+    /**
+     * buffer[start, end) 是不是正好等于 s
+     */
+    boolean matches(int start, int end, String s) {
+        if (end - start != s.length())
+            return false;
+        for (int i = start; i < end; i++)
+            if (buffer[i] != s.charAt(i - start))
+                return false;
+        return true;
+    }
+
+    /**
+     * 把缓冲区下标换算成行号和列号，在行首表里二分查找
+     */
+    Pos posAt(int offset) {
+        if (offset >= length) {
+            return new Pos(lineCount, 0);
+        }
+        int lo = 0, hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return new Pos(lo, offset - lineStarts[lo]);
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        Pos previous = previousPos();
+        ptr--;
+        row = previous.row;
+        col = previous.col;
     }
 
 }
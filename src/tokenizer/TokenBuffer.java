@@ -0,0 +1,163 @@
+package tokenizer;
+
+import error.TokenizeError;
+import util.Pos;
+
+import java.util.Arrays;
+
+/**
+ * 整个源文件的 token 序列，按列存放在几个平行数组里，下标就是 token 的编号
+ * 位置只存字符下标，要报错时才换算成 Pos；要 Token 对象时用 token(i) 临时生成
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // TokenType 的序号
+    byte[] types = new byte[256];
+    // token 在源文件缓冲区里的起止下标，左闭右开
+    int[] starts = new int[256];
+    int[] ends = new int[256];
+    // 整数常量是值本身，浮点数常量是原始位，字符常量是字符，标识符和字符串常量是名字编号
+    long[] values = new long[256];
+    int count = 0;
+
+    final StringIter source;
+    final NamePool names;
+
+    // 词法分析在第 errorIndex 个 token 处出错，语法分析读到这里时再抛出，和原来边读边分析的报错顺序一致
+    TokenizeError error;
+    int errorIndex = Integer.MAX_VALUE;
+
+    // 分段词法分析时，这一段停在哪里：下一个 token 的开头；读到 EOF 或出错时是 Integer.MAX_VALUE
+    int resume = Integer.MAX_VALUE;
+
+    TokenBuffer(StringIter source, NamePool names) {
+        this.source = source;
+        this.names = names;
+    }
+
+    void add(TokenType type, int start, int end, long value) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[count] = (byte) type.ordinal();
+        starts[count] = start;
+        ends[count] = end;
+        values[count] = value;
+        count++;
+    }
+
+    /**
+     * 把另一段从第 from 个开始的 token 接到后面，名字编号换成本表名字池里的编号
+     * 那一段如果出了错，错误也一起接过来
+     */
+    void append(TokenBuffer other, int from) {
+        int[] idMap = new int[other.names.size()];
+        Arrays.fill(idMap, -1);
+        for (int i = from; i < other.count; i++) {
+            long value = other.values[i];
+            int type = other.types[i];
+            if (type == TokenType.IDENT.ordinal() || type == TokenType.STRING_LITERAL.ordinal()) {
+                int id = (int) value;
+                if (idMap[id] < 0)
+                    idMap[id] = names.intern(other.names.name(id));
+                value = idMap[id];
+            }
+            add(TYPES[type], other.starts[i], other.ends[i], value);
+        }
+        if (other.error != null)
+            fail(other.error);
+    }
+
+    /**
+     * 开头在 offset 的 token 的下标，没有的话返回 -1
+     */
+    int indexOfStart(int offset) {
+        int i = Arrays.binarySearch(starts, 0, count, offset);
+        return i < 0 ? -1 : i;
+    }
+
+    void fail(TokenizeError error) {
+        this.error = error;
+        this.errorIndex = count;
+    }
+
+    public NamePool getNames() {
+        return names;
+    }
+
+    /**
+     * 读到 EOF 之后再往后读，得到的还是 EOF
+     */
+    private int at(int i) throws TokenizeError {
+        if (i >= errorIndex)
+            throw error;
+        return i < count ? i : count - 1;
+    }
+
+    public TokenType type(int i) throws TokenizeError {
+        return TYPES[types[at(i)]];
+    }
+
+    public long longValue(int i) throws TokenizeError {
+        return values[at(i)];
+    }
+
+    public double doubleValue(int i) throws TokenizeError {
+        return Double.longBitsToDouble(values[at(i)]);
+    }
+
+    public char charValue(int i) throws TokenizeError {
+        return (char) values[at(i)];
+    }
+
+    /**
+     * 标识符和字符串常量在名字池里的编号
+     */
+    public int nameId(int i) throws TokenizeError {
+        return (int) values[at(i)];
+    }
+
+    public String name(int i) throws TokenizeError {
+        return names.name(nameId(i));
+    }
+
+    public Pos startPos(int i) throws TokenizeError {
+        return source.posAt(starts[at(i)]);
+    }
+
+    public Pos endPos(int i) throws TokenizeError {
+        return source.posAt(ends[at(i)]);
+    }
+
+    /**
+     * 生成第 i 个 token 的对象形式，只在报错的时候用
+     */
+    public Token token(int i) throws TokenizeError {
+        int k = at(i);
+        TokenType type = TYPES[types[k]];
+        Object value;
+        switch (type) {
+            case UINT_LITERAL:
+                value = values[k];
+                break;
+            case DOUBLE_LITERAL:
+                value = Double.longBitsToDouble(values[k]);
+                break;
+            case CHAR_LITERAL:
+                value = (char) values[k];
+                break;
+            case IDENT:
+            case STRING_LITERAL:
+                value = names.name((int) values[k]);
+                break;
+            default:
+                value = source.substring(starts[k], ends[k]);
+        }
+        return new Token(type, value, source.posAt(starts[k]), source.posAt(ends[k]));
+    }
+}
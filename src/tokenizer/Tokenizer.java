@@ -1,36 +1,115 @@
 package tokenizer;
-import util.*;
 import error.TokenizeError;
 import error.ErrorCode;
 
 public class Tokenizer {
 
     private StringIter it;
+    private NamePool names;
+    private TokenBuffer tokens;
+
+    // 字符分类，DIGIT 和 LETTER 排在最后，>= DIGIT 就是能出现在标识符里的字符
+    private static final int OTHER = 0, SPACE = 1, DIGIT = 2, LETTER = 3;
+    // ASCII 字符直接查表，其他字符退回到 Character 的判断
+    private static final byte[] ASCII_CLASS = new byte[128];
+
+    static {
+        for (char ch = 0; ch < 128; ch++) {
+            if (Character.isWhitespace(ch))
+                ASCII_CLASS[ch] = SPACE;
+            else if (ch >= '0' && ch <= '9')
+                ASCII_CLASS[ch] = DIGIT;
+            else if (ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch == '_')
+                ASCII_CLASS[ch] = LETTER;
+        }
+    }
+
+    private static int classOf(char ch) {
+        if (ch < 128)
+            return ASCII_CLASS[ch];
+        if (Character.isWhitespace(ch))
+            return SPACE;
+        if (Character.isDigit(ch))
+            return DIGIT;
+        if (Character.isAlphabetic(ch))
+            return LETTER;
+        return OTHER;
+    }
+
+    // 源文件至少有这么大才分段并行做词法分析
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    private int parallelism = 1;
 
     public Tokenizer(StringIter it) {
         this.it = it;
     }
 
-    // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
     /**
-     * 获取下一个 Token
-     * 
-     * @return
+     * 设置词法分析最多用几个线程，大于 1 时大文件会按行分段并行处理，结果和串行完全一样
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 一次把整个文件切成 token，放进 TokenBuffer
+     * 遇到词法错误就停下，错误记在出错的那个 token 上，等语法分析读到那里再抛出
+     */
+    public TokenBuffer tokenize() {
+        return tokenize(new NamePool());
+    }
+
+    public TokenBuffer tokenize(NamePool names) {
+        if (parallelism > 1 && it.length - it.offset() >= PARALLEL_THRESHOLD)
+            return ParallelLexer.tokenize(it, names, parallelism);
+        return lex(names, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 从当前位置开始读 token，直到下一个 token 的开头不在 limit 之前，或者读到 EOF
+     * 停下的位置记在 TokenBuffer.resume 里
+     */
+    TokenBuffer lex(NamePool names, int limit) {
+        this.names = names;
+        this.tokens = new TokenBuffer(it, names);
+        try {
+            while (true) {
+                skipSpaceAndComments();
+                if (it.offset() >= limit && !it.isEOF()) {
+                    tokens.resume = it.offset();
+                    break;
+                }
+                if (lexToken() == TokenType.EOF) {
+                    tokens.resume = Integer.MAX_VALUE;
+                    break;
+                }
+            }
+        } catch (TokenizeError e) {
+            tokens.fail(e);
+        }
+        return tokens;
+    }
+
+    /**
+     * 读一个 Token 追加到 tokens 里
+     *
+     * @return 这个 Token 的类型
      * @throws TokenizeError 如果解析有异常则抛出
      */
-    public Token nextToken() throws TokenizeError {
-        it.readAll();
-        // 跳过之前的所有空白字符
-        skipSpaceCharacters();
+    private TokenType lexToken() throws TokenizeError {
+        // 跳过之前的所有空白字符和注释
+        skipSpaceAndComments();
 
         if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+            return add(TokenType.EOF, it.offset(), 0);
         }
 
         char peek = it.peekChar();
-        if (Character.isDigit(peek)) {
+        int kind = classOf(peek);
+        if (kind == DIGIT) {
             return lexNumber();
-        } else if (Character.isAlphabetic(peek) || peek=='_') {
+        } else if (kind == LETTER) {
             return lexIdentOrKeyword();
         } else if (peek=='"') {
             return lexString();
@@ -40,8 +119,17 @@ public class Tokenizer {
             return lexOperatorOrUnknown();
         }
     }
-    private Token lexString() throws TokenizeError {
-        Pos startPos = it.currentPos();
+
+    /**
+     * 追加一个从 start 开始、到当前位置结束的 token
+     */
+    private TokenType add(TokenType type, int start, long value) {
+        tokens.add(type, start, it.offset(), value);
+        return type;
+    }
+
+    private TokenType lexString() throws TokenizeError {
+        int start = it.offset();
         StringBuilder tmpToken = new StringBuilder();
         it.nextChar();
         char peek;
@@ -76,11 +164,11 @@ public class Tokenizer {
             throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
         it.nextChar();
-        return new Token(TokenType.STRING_LITERAL, tmpToken.toString(), startPos, it.currentPos());
+        return add(TokenType.STRING_LITERAL, start, names.intern(tmpToken.toString()));
     }
 
-    private Token lexChar() throws TokenizeError {
-        Pos startPos = it.currentPos();
+    private TokenType lexChar() throws TokenizeError {
+        int start = it.offset();
         char value;
         it.nextChar();
         char peek = it.peekChar();
@@ -112,131 +200,127 @@ public class Tokenizer {
             } else value = it.nextChar();
             if (it.peekChar() == '\'') {
                 it.nextChar();
-                return new Token(TokenType.CHAR_LITERAL, value, startPos, it.currentPos());
+                return add(TokenType.CHAR_LITERAL, start, value);
             } else throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
         throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
     }
-    private Token lexNumber() throws TokenizeError {
-        // 请填空：
-        // 直到查看下一个字符不是数字为止:
-        // -- 前进一个字符，并存储这个字符
-        //
-        Pos startPos = it.currentPos();
-        StringBuilder tmpToken = new StringBuilder();
-        do {
-            tmpToken.append(it.nextChar());
-        } while (Character.isDigit(it.peekChar()));
-        if (it.peekChar() == '.') {
-            tmpToken.append(it.nextChar());
-            if (Character.isDigit(it.peekChar())) 
-            {
-                do {
-                    tmpToken.append(it.nextChar());
-                } while (Character.isDigit(it.peekChar()));
-                if (it.peekChar() == 'E' || it.peekChar() == 'e') 
-                {
-                    tmpToken.append(it.nextChar());
-                    if(it.peekChar()=='+'||it.peekChar()=='-')
-                        tmpToken.append(it.nextChar());
-                    if (Character.isDigit(it.peekChar())) 
-                    {
-                        do {
-                            tmpToken.append(it.nextChar());
-                        } while (Character.isDigit(it.peekChar()));
-                        return new Token(TokenType.DOUBLE_LITERAL, Double.valueOf(tmpToken.toString()), startPos, it.currentPos());
-                    } 
-                    else throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-                } 
-                else
-                    return new Token(TokenType.DOUBLE_LITERAL, Double.valueOf(tmpToken.toString()), startPos, it.currentPos());
-            } 
-            else throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
-        }
-        return new Token(TokenType.UINT_LITERAL, Long.valueOf(tmpToken.toString()), startPos, it.currentPos());
-    }
-    private Token lexIdentOrKeyword() throws TokenizeError {
-        // 请填空：
-        // 直到查看下一个字符不是数字或字母为止:
-        // -- 前进一个字符，并存储这个字符
-        Pos pos = it.currentPos();
-        String s = "";
-        char peek = it.peekChar();
-        while(Character.isDigit(peek) || Character.isAlphabetic(peek) || peek == '_')
-        {   
-            char next = it.nextChar();
-            s = s + next;
-            peek = it.peekChar();
-        }
-        // 尝试将存储的字符串解释为关键字
-        // -- 如果是关键字，则返回关键字类型的 token
-        // -- 否则，返回标识符
-        if(s.equals("fn")==true)
-        {
-            return new Token(TokenType.FN_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("let")==true)
-        {
-            return new Token(TokenType.LET_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("const")==true)
-        {
-            return new Token(TokenType.CONST_KW,s,pos,it.currentPos());
+    private TokenType lexNumber() throws TokenizeError {
+        // 按下标扫过整段数字，最后再一次性移动指针
+        int start = it.offset();
+        int end = skipDigits(start);
+        if (it.charAt(end) != '.') {
+            long value;
+            try {
+                value = Long.parseLong(it.substring(start, end));
+            } catch (NumberFormatException e) {
+                // 超出 64 位能表示的范围
+                throw new TokenizeError(ErrorCode.InvalidInput, it.currentPos());
+            }
+            it.skipTo(end);
+            return add(TokenType.UINT_LITERAL, start, value);
         }
-        else if(s.equals("as")==true)
-        {
-            return new Token(TokenType.AS_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("while")==true)
-        {
-            return new Token(TokenType.WHILE_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("if")==true)
-        {
-            return new Token(TokenType.IF_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("else")==true)
-        {
-            return new Token(TokenType.ELSE_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("return")==true)
-        {
-            return new Token(TokenType.RETURN_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("break")==true)
-        {
-            return new Token(TokenType.BREAK_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("continue")==true)
-        {
-            return new Token(TokenType.CONTINUE_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("int")==true)
-        {
-            return new Token(TokenType.INT_KW,s,pos,it.currentPos());
-        }
-        else if(s.equals("double")==true)
-        {
-            return new Token(TokenType.DOUBLE_KW,s,pos,it.currentPos());
+        end++;
+        if (classOf(it.charAt(end)) != DIGIT) {
+            it.skipTo(end);
+            throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }
-        else if(s.equals("void")==true)
-        {
-            return new Token(TokenType.VOID_KW,s,pos,it.currentPos());
+        end = skipDigits(end);
+        if (it.charAt(end) == 'E' || it.charAt(end) == 'e') {
+            end++;
+            if (it.charAt(end) == '+' || it.charAt(end) == '-')
+                end++;
+            if (classOf(it.charAt(end)) != DIGIT) {
+                it.skipTo(end);
+                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+            }
+            end = skipDigits(end);
         }
-        else
-        {
-            return new Token(TokenType.IDENT,s,pos,it.currentPos());
+        it.skipTo(end);
+        return add(TokenType.DOUBLE_LITERAL, start, Double.doubleToRawLongBits(Double.parseDouble(it.substring(start, end))));
+    }
+
+    private int skipDigits(int offset) {
+        while (classOf(it.charAt(offset)) == DIGIT)
+            offset++;
+        return offset;
+    }
+
+    private TokenType lexIdentOrKeyword() throws TokenizeError {
+        // 标识符由字母、数字和下划线组成，同样按下标扫描
+        int start = it.offset();
+        int end = start;
+        while (classOf(it.charAt(end)) >= DIGIT)
+            end++;
+        TokenType type = keywordOrIdent(start, end);
+        // 标识符的值是它在名字池里的编号，关键字不需要值
+        long value = type == TokenType.IDENT ? names.intern(it.buffer, start, end) : 0;
+        it.skipTo(end);
+        return add(type, start, value);
+    }
+
+    /**
+     * 先按长度再按首字母分派，每个标识符最多和一个关键字比较一次
+     */
+    private TokenType keywordOrIdent(int start, int end) {
+        String keyword;
+        TokenType type;
+        switch (end - start) {
+            case 2:
+                switch (it.charAt(start)) {
+                    case 'f': keyword = "fn"; type = TokenType.FN_KW; break;
+                    case 'a': keyword = "as"; type = TokenType.AS_KW; break;
+                    case 'i': keyword = "if"; type = TokenType.IF_KW; break;
+                    default: return TokenType.IDENT;
+                }
+                break;
+            case 3:
+                switch (it.charAt(start)) {
+                    case 'l': keyword = "let"; type = TokenType.LET_KW; break;
+                    case 'i': keyword = "int"; type = TokenType.INT_KW; break;
+                    default: return TokenType.IDENT;
+                }
+                break;
+            case 4:
+                switch (it.charAt(start)) {
+                    case 'e': keyword = "else"; type = TokenType.ELSE_KW; break;
+                    case 'v': keyword = "void"; type = TokenType.VOID_KW; break;
+                    default: return TokenType.IDENT;
+                }
+                break;
+            case 5:
+                switch (it.charAt(start)) {
+                    case 'c': keyword = "const"; type = TokenType.CONST_KW; break;
+                    case 'w': keyword = "while"; type = TokenType.WHILE_KW; break;
+                    case 'b': keyword = "break"; type = TokenType.BREAK_KW; break;
+                    default: return TokenType.IDENT;
+                }
+                break;
+            case 6:
+                switch (it.charAt(start)) {
+                    case 'r': keyword = "return"; type = TokenType.RETURN_KW; break;
+                    case 'd': keyword = "double"; type = TokenType.DOUBLE_KW; break;
+                    default: return TokenType.IDENT;
+                }
+                break;
+            case 8:
+                keyword = "continue";
+                type = TokenType.CONTINUE_KW;
+                break;
+            default:
+                return TokenType.IDENT;
         }
-        // Token 的 Value 应填写标识符或关键字的字符串
+        return it.matches(start, end, keyword) ? type : TokenType.IDENT;
     }
 
-    private Token lexOperatorOrUnknown() throws TokenizeError 
+    private TokenType lexOperatorOrUnknown() throws TokenizeError 
     {
+        int start = it.offset();
         char peek;
         switch (it.nextChar()) 
         {
             case '+':
-                return new Token(TokenType.PLUS, '+', it.previousPos(), it.currentPos());
+                return add(TokenType.PLUS, start, 0);
 
             case '-':
                 // 填入返回语句
@@ -244,26 +328,21 @@ public class Tokenizer {
                 if(peek == '>')
                 {
                     it.nextChar();
-                    return new Token(TokenType.ARROW, "->", it.previousPos(), it.currentPos());
+                    return add(TokenType.ARROW, start, 0);
 
                 }
                 else
                 {
-                    return new Token(TokenType.MINUS, '-', it.previousPos(), it.currentPos());
+                    return add(TokenType.MINUS, start, 0);
                 }
 
             case '*':
                 // 填入返回语句
-                return new Token(TokenType.MUL, '*', it.previousPos(), it.currentPos());
+                return add(TokenType.MUL, start, 0);
 
             case '/':
-                // 填入返回语句
-                if (it.peekChar() == '/') {
-                    it.nextChar();
-                    while (it.nextChar() != '\n');
-                    return nextToken();
-                }
-                return new Token(TokenType.DIV, '/', it.previousPos(), it.currentPos());
+                // 注释已经在 skipSpaceAndComments 里跳过了
+                return add(TokenType.DIV, start, 0);
 
             // 填入更多状态和返回语句
             case '=':
@@ -271,19 +350,19 @@ public class Tokenizer {
                 if(peek == '=')
                 {
                     it.nextChar();
-                    return new Token(TokenType.EQ, "==", it.previousPos(), it.currentPos());
+                    return add(TokenType.EQ, start, 0);
 
                 }
                 else
                 {
-                    return new Token(TokenType.ASSIGN, '=', it.previousPos(), it.currentPos());
+                    return add(TokenType.ASSIGN, start, 0);
                 }
             case '!':
                 peek = it.peekChar();
                 if(peek == '=')
                 {
                     it.nextChar();
-                    return new Token(TokenType.NEQ, "!=", it.previousPos(), it.currentPos());
+                    return add(TokenType.NEQ, start, 0);
 
                 }
                 else
@@ -295,45 +374,45 @@ public class Tokenizer {
                 if(peek == '=')
                 {
                     it.nextChar();
-                    return new Token(TokenType.LE, "<=", it.previousPos(), it.currentPos());
+                    return add(TokenType.LE, start, 0);
 
                 }
                 else
                 {
-                    return new Token(TokenType.LT, "<", it.previousPos(), it.currentPos());
+                    return add(TokenType.LT, start, 0);
                 }
             case '>':
                 peek = it.peekChar();
                 if(peek == '=')
                 {
                     it.nextChar();
-                    return new Token(TokenType.GE, ">=", it.previousPos(), it.currentPos());
+                    return add(TokenType.GE, start, 0);
 
                 }
                 else
                 {
-                    return new Token(TokenType.GT, ">", it.previousPos(), it.currentPos());
+                    return add(TokenType.GT, start, 0);
                 }
             case ';':
-                return new Token(TokenType.SEMICOLON, ';', it.previousPos(), it.currentPos());
+                return add(TokenType.SEMICOLON, start, 0);
 
             case ':':
-                return new Token(TokenType.COLON, ':', it.previousPos(), it.currentPos());
+                return add(TokenType.COLON, start, 0);
 
             case ',':
-                return new Token(TokenType.COMMA, ',', it.previousPos(), it.currentPos());
+                return add(TokenType.COMMA, start, 0);
 
             case '(':
-                return new Token(TokenType.L_PAREN, '(', it.previousPos(), it.currentPos());
+                return add(TokenType.L_PAREN, start, 0);
 
             case ')':
-                return new Token(TokenType.R_PAREN, ')', it.previousPos(), it.currentPos());
+                return add(TokenType.R_PAREN, start, 0);
 
             case '{':
-                return new Token(TokenType.L_BRACE, '{', it.previousPos(), it.currentPos());
+                return add(TokenType.L_BRACE, start, 0);
 
             case '}':
-                return new Token(TokenType.R_BRACE, '}', it.previousPos(), it.currentPos());
+                return add(TokenType.R_BRACE, start, 0);
 
             default:
                 // 不认识这个输入，摸了
@@ -341,9 +420,19 @@ public class Tokenizer {
         }
     }
 
-    private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
+    /**
+     * 跳过空白字符和 // 注释，用循环而不是递归，注释再多也不会栈溢出
+     */
+    private void skipSpaceAndComments() {
+        while (!it.isEOF()) {
+            char peek = it.peekChar();
+            if (classOf(peek) == SPACE) {
+                it.nextChar();
+            } else if (peek == '/' && it.charAt(it.offset() + 1) == '/') {
+                it.skipLine();
+            } else {
+                break;
+            }
         }
     }
 }
@@ -0,0 +1,170 @@
+package vm;
+
+import instruction.Operation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static vm.ClassFileWriter.*;
+
+/**
+ * 把整个 o0 程序提前编译成一个 JVM 类
+ * 每个函数都是这个类里的静态方法 f<编号>，翻译方式和 JitCompiler 一样；main 方法把全局区交给
+ * C0Runtime.launch 再调用 _start。生成的 JAR 里带上 C0Runtime，可以直接 java -jar 运行
+ * 不能翻译的函数（比如超过 64KB 的方法）生成一个同样签名的 f<编号>，转给 MiniVm.interpret 解释执行，
+ * 这时 JAR 里还要带上 o0 二进制和解释器
+ */
+public class AotCompiler {
+    // 解释执行要用到的类，连同它们的嵌套类一起打包
+    private static final Class<?>[] INTERPRETER_CLASSES = {
+            MiniVm.class, Engine.class, JitCompiler.class, ClassFileWriter.class, ClosureCompiler.class, Operation.class
+    };
+
+    private AotCompiler() {
+    }
+
+    /**
+     * 生成类文件
+     *
+     * @param image     Analyser.output 写出的 o0 二进制
+     * @param className 生成的类名，用 / 分隔包名
+     * @throws IOException 二进制格式不对
+     */
+    public static byte[] compileClass(byte[] image, String className) throws IOException {
+        return compileClass(image, className, new ArrayList<>());
+    }
+
+    /**
+     * 生成类文件，把不能翻译、要交给解释器的函数和原因记到 interpreted 里
+     */
+    private static byte[] compileClass(byte[] image, String className, ArrayList<String> interpreted) throws IOException {
+        MiniVm vm = new MiniVm(image, 0);
+        JitCompiler translator = new JitCompiler(vm);
+        int functionCount = vm.fnEntry.length;
+        String[] names = new String[functionCount];
+        for (int f = 0; f < functionCount; f++)
+            names[f] = className;
+
+        ClassFileWriter cw = new ClassFileWriter(className, "java/lang/Object");
+        for (int f = 0; f < functionCount; f++) {
+            try {
+                int[][] states = translator.analyse(f);
+                cw.addMethod(ACC_PUBLIC | ACC_STATIC, "f" + f, translator.descriptor(f), translator.translate(cw, names, f, states, -1));
+            } catch (JitCompiler.Untranslatable e) {
+                interpreted.add(vm.globalName(vm.fnName[f]) + " (" + e.getMessage() + ")");
+                cw.addMethod(ACC_PUBLIC | ACC_STATIC, "f" + f, translator.descriptor(f), interpreterStub(cw, vm, className, f));
+            }
+        }
+
+        // public static void main(String[] args)
+        ClassFileWriter.Code main = new ClassFileWriter.Code();
+        int globalCount = vm.globalBytes.length;
+        if (globalCount > 32767)
+            throw new IOException("too many globals");
+        main.iconst(globalCount);
+        main.op(ANEWARRAY, cw.classRef("java/lang/String"));
+        main.local(ASTORE, 1);
+        for (int i = 0; i < globalCount; i++) {
+            String bytes = new String(vm.globalBytes[i], StandardCharsets.ISO_8859_1);
+            if (bytes.length() > 65535 / 2)
+                throw new IOException("global " + i + " is too long");
+            main.local(ALOAD, 1);
+            main.iconst(i);
+            main.op(LDC_W, cw.string(bytes));
+            main.op(AASTORE);
+        }
+        main.op(LDC_W, cw.classRef(className));
+        main.local(ALOAD, 1);
+        main.iconst(vm.startFunction);
+        main.op(INVOKESTATIC, cw.methodRef(JitCompiler.RUNTIME, "launch", "(Ljava/lang/Class;[Ljava/lang/String;I)V"));
+        main.op(RETURN);
+        main.maxStack = 4;
+        main.maxLocals = 2;
+        cw.addMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", main);
+        return cw.toByteArray();
+    }
+
+    /**
+     * 不能翻译的函数：把参数装进 [返回值][参数] 布局的数组，调用 MiniVm.interpret
+     */
+    private static ClassFileWriter.Code interpreterStub(ClassFileWriter cw, MiniVm vm, String className, int f) {
+        int params = vm.fnParams[f];
+        int rets = vm.fnRets[f];
+        int frame = 1 + 2 * params;
+        ClassFileWriter.Code code = new ClassFileWriter.Code();
+        JitCompiler.pushInt(cw, code, rets + params);
+        code.u1(NEWARRAY);
+        code.u1(T_LONG);
+        code.local(ASTORE, frame);
+        for (int i = 0; i < params; i++) {
+            code.local(ALOAD, frame);
+            JitCompiler.pushInt(cw, code, rets + i);
+            code.local(LLOAD, 1 + 2 * i);
+            code.op(LASTORE);
+        }
+        code.local(ALOAD, 0);
+        code.op(LDC_W, cw.classRef(className));
+        JitCompiler.pushInt(cw, code, f);
+        code.local(ALOAD, frame);
+        code.op(INVOKESTATIC, cw.methodRef("vm/MiniVm", "interpret", "(L" + JitCompiler.RUNTIME + ";Ljava/lang/Class;I[J)J"));
+        if (rets == 0) {
+            code.op(POP2);
+            code.op(RETURN);
+        } else {
+            code.op(LRETURN);
+        }
+        code.maxStack = 4;
+        code.maxLocals = frame + 1;
+        return code;
+    }
+
+    /**
+     * 生成可以直接 java -jar 运行的 JAR，包含程序类和 C0Runtime；有函数要解释执行时再带上 o0 二进制和解释器，
+     * 并在标准错误上列出这些函数
+     */
+    public static void writeJar(byte[] image, String className, OutputStream output) throws IOException {
+        ArrayList<String> interpreted = new ArrayList<>();
+        byte[] program = compileClass(image, className, interpreted);
+        for (String function : interpreted)
+            System.err.println("aot: " + function + " runs in the interpreter");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className.replace('/', '.'));
+        try (JarOutputStream jar = new JarOutputStream(output, manifest)) {
+            jar.putNextEntry(new JarEntry(className + ".class"));
+            jar.write(program);
+            jar.closeEntry();
+            copyClass(jar, C0Runtime.class);
+            if (!interpreted.isEmpty()) {
+                jar.putNextEntry(new JarEntry(className + ".o0"));
+                jar.write(image);
+                jar.closeEntry();
+                for (Class<?> c : INTERPRETER_CLASSES) {
+                    for (Class<?> member : c.getNestMembers())
+                        copyClass(jar, member);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把当前类路径上的类文件原样复制进 JAR
+     */
+    private static void copyClass(JarOutputStream jar, Class<?> c) throws IOException {
+        String name = c.getName().replace('.', '/') + ".class";
+        jar.putNextEntry(new JarEntry(name));
+        try (InputStream bytes = c.getResourceAsStream("/" + name)) {
+            if (bytes == null)
+                throw new IOException(name + " not found on the class path");
+            bytes.transferTo(jar);
+        }
+        jar.closeEntry();
+    }
+}
@@ -0,0 +1,218 @@
+package vm;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 程序运行时要用到的状态：全局区和输入输出
+ * 解释器和编译出来的 JVM 字节码共用这一份，标准库函数和不方便直接用字节码表达的运算也放在这里
+ * 这个类只依赖 JDK，AotCompiler 会把它原样打包进生成的 JAR
+ */
+public class C0Runtime {
+    // 全局变量的值，解释器和编译后的代码读写的是同一个数组
+    public final long[] globals;
+    // 全局区的原始字节，putstr 按编号从这里取字符串
+    final byte[][] strings;
+    // AOT 生成的程序里解释执行不能翻译的函数的 MiniVm，第一次用到时由 MiniVm.interpret 创建
+    // 声明成 Object，不用解释器的程序只打包这一个类也能加载
+    Object interpreter;
+
+    private InputStream in = System.in;
+    private PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+    private int peekedByte = -2;
+
+    public C0Runtime(long[] globals, byte[][] strings) {
+        this.globals = globals;
+        this.strings = strings;
+    }
+
+    /**
+     * AotCompiler 生成的 main 从这里启动程序
+     *
+     * @param program 生成的类
+     * @param image   全局区的内容，按 ISO-8859-1 逐字节编码成字符串
+     * @param start   _start 函数的编号
+     */
+    public static void launch(Class<?> program, String[] image, int start) throws Throwable {
+        long[] globals = new long[image.length];
+        byte[][] strings = new byte[image.length][];
+        for (int i = 0; i < image.length; i++) {
+            strings[i] = image[i].getBytes(StandardCharsets.ISO_8859_1);
+            if (strings[i].length == 8)
+                globals[i] = ByteBuffer.wrap(strings[i]).getLong();
+        }
+        C0Runtime runtime = new C0Runtime(globals, strings);
+        MethodHandle entry = MethodHandles.publicLookup().findStatic(program, "f" + start, MethodType.methodType(void.class, C0Runtime.class));
+        Throwable[] failure = new Throwable[1];
+        // 递归直接用 JVM 线程栈，所以换一个栈足够大的线程
+        Thread thread = new Thread(null, () -> {
+            try {
+                entry.invokeExact(runtime);
+            } catch (StackOverflowError e) {
+                failure[0] = new Error("stack overflow");
+            } catch (Throwable e) {
+                failure[0] = e;
+            } finally {
+                runtime.flush();
+            }
+        }, "c0-main", 1L << 30);
+        thread.start();
+        thread.join();
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    public void setInput(InputStream in) {
+        this.in = in;
+        this.peekedByte = -2;
+    }
+
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    public void flush() {
+        out.flush();
+    }
+
+    public long getint() {
+        skipSpaces();
+        boolean negative = false;
+        if (peekByte() == '-' || peekByte() == '+')
+            negative = readByte() == '-';
+        if (peekByte() < '0' || peekByte() > '9')
+            throw new Error("getint: invalid input");
+        long value = 0;
+        while (peekByte() >= '0' && peekByte() <= '9')
+            value = value * 10 + (readByte() - '0');
+        return negative ? -value : value;
+    }
+
+    public long getdouble() {
+        skipSpaces();
+        StringBuilder sb = new StringBuilder();
+        while (peekByte() != -1 && !Character.isWhitespace(peekByte()))
+            sb.append((char) readByte());
+        try {
+            return Double.doubleToRawLongBits(Double.parseDouble(sb.toString()));
+        } catch (NumberFormatException e) {
+            throw new Error("getdouble: invalid input");
+        }
+    }
+
+    public long getchar() {
+        return readByte();
+    }
+
+    public void putint(long value) {
+        out.print(value);
+    }
+
+    public void putdouble(long bits) {
+        out.print(Double.longBitsToDouble(bits));
+    }
+
+    public void putchar(long value) {
+        out.print((char) value);
+    }
+
+    public void putstr(long index) {
+        byte[] s = strings[(int) index];
+        out.write(s, 0, s.length);
+    }
+
+    public void putln() {
+        out.println();
+    }
+
+    private int readByte() {
+        try {
+            if (peekedByte != -2) {
+                int b = peekedByte;
+                peekedByte = -2;
+                return b;
+            }
+            return in.read();
+        } catch (IOException e) {
+            throw new Error("read input", e);
+        }
+    }
+
+    private int peekByte() {
+        if (peekedByte == -2)
+            peekedByte = readByte();
+        return peekedByte;
+    }
+
+    private void skipSpaces() {
+        while (peekByte() != -1 && Character.isWhitespace(peekByte()))
+            readByte();
+    }
+
+    // 下面这些给编译后的代码调用，值都是 long，double 用原始位表示
+
+    public static long divi(long lhs, long rhs) {
+        if (rhs == 0)
+            throw new Error("division by zero");
+        return lhs / rhs;
+    }
+
+    public static long divu(long lhs, long rhs) {
+        if (rhs == 0)
+            throw new Error("division by zero");
+        return Long.divideUnsigned(lhs, rhs);
+    }
+
+    public static long addf(long lhs, long rhs) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(lhs) + Double.longBitsToDouble(rhs));
+    }
+
+    public static long subf(long lhs, long rhs) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(lhs) - Double.longBitsToDouble(rhs));
+    }
+
+    public static long mulf(long lhs, long rhs) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(lhs) * Double.longBitsToDouble(rhs));
+    }
+
+    public static long divf(long lhs, long rhs) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(lhs) / Double.longBitsToDouble(rhs));
+    }
+
+    public static long cmpf(long lhs, long rhs) {
+        double l = Double.longBitsToDouble(lhs);
+        double r = Double.longBitsToDouble(rhs);
+        return l < r ? -1 : l > r ? 1 : 0;
+    }
+
+    public static long negf(long value) {
+        return Double.doubleToRawLongBits(-Double.longBitsToDouble(value));
+    }
+
+    public static long itof(long value) {
+        return Double.doubleToRawLongBits((double) value);
+    }
+
+    public static long ftoi(long value) {
+        return (long) Double.longBitsToDouble(value);
+    }
+
+    public static long not(long value) {
+        return value == 0 ? 1 : 0;
+    }
+
+    public static long setlt(long value) {
+        return value < 0 ? 1 : 0;
+    }
+
+    public static long setgt(long value) {
+        return value > 0 ? 1 : 0;
+    }
+}
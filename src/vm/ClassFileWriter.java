@@ -0,0 +1,280 @@
+package vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 最小的 class 文件生成器，只支持编译 C0 函数用得到的那部分
+ * 版本号用 49（Java 5），这样不用生成 StackMapTable，由 JVM 自己推导类型
+ */
+class ClassFileWriter {
+    static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    // 用到的 JVM 指令
+    static final int ICONST_0 = 0x03, LCONST_0 = 0x09, LCONST_1 = 0x0a, BIPUSH = 0x10, SIPUSH = 0x11;
+    static final int LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19;
+    static final int LALOAD = 0x2f, AALOAD = 0x32, LSTORE = 0x37, ASTORE = 0x3a, LASTORE = 0x50, AASTORE = 0x53;
+    static final int POP2 = 0x58, DUP2 = 0x5c;
+    static final int IADD = 0x60, LADD = 0x61, LSUB = 0x65, LMUL = 0x69, LNEG = 0x75;
+    static final int LSHL = 0x79, LSHR = 0x7b, LUSHR = 0x7d, LAND = 0x7f, LOR = 0x81, LXOR = 0x83;
+    static final int I2L = 0x85, L2I = 0x88, LCMP = 0x94;
+    static final int IFEQ = 0x99, IFNE = 0x9a, GOTO = 0xa7;
+    static final int LRETURN = 0xad, ARETURN = 0xb0, RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb, NEWARRAY = 0xbc, ANEWARRAY = 0xbd, WIDE = 0xc4;
+    static final int T_LONG = 11;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ArrayList<byte[]> fields = new ArrayList<>();
+    private final ArrayList<byte[]> methods = new ArrayList<>();
+
+    private final String className;
+    private final String superName;
+
+    ClassFileWriter(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    int utf8(String s) {
+        Integer index = poolIndex.get("U" + s);
+        if (index != null)
+            return index;
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(s);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        poolIndex.put("U" + s, poolCount);
+        return poolCount++;
+    }
+
+    int classRef(String internalName) {
+        return ref("C" + internalName, 7, utf8(internalName), -1, 1);
+    }
+
+    int string(String s) {
+        return ref("S" + s, 8, utf8(s), -1, 1);
+    }
+
+    int longConst(long value) {
+        Integer index = poolIndex.get("J" + value);
+        if (index != null)
+            return index;
+        try {
+            poolOut.writeByte(5);
+            poolOut.writeLong(value);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        poolIndex.put("J" + value, poolCount);
+        int result = poolCount;
+        // long 常量占两个常量池槽位
+        poolCount += 2;
+        return result;
+    }
+
+    int intConst(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if (index != null)
+            return index;
+        try {
+            poolOut.writeByte(3);
+            poolOut.writeInt(value);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        poolIndex.put("I" + value, poolCount);
+        return poolCount++;
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int nameAndType = ref("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor), 2);
+        return ref(tag + owner + "." + name + ":" + descriptor, tag, classRef(owner), nameAndType, 2);
+    }
+
+    private int ref(String key, int tag, int a, int b, int parts) {
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(a);
+            if (parts == 2)
+                poolOut.writeShort(b);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(code.length);
+            out.write(code.bytes, 0, code.length);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        int thisClass = classRef(className);
+        int superClass = classRef(superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields)
+                out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods)
+                out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 一个方法的字节码
+     */
+    static class Code {
+        byte[] bytes = new byte[256];
+        int length = 0;
+        int maxStack;
+        int maxLocals;
+
+        int position() {
+            return length;
+        }
+
+        void u1(int b) {
+            if (length == bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[length++] = (byte) b;
+        }
+
+        void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void op(int opcode, int u2operand) {
+            u1(opcode);
+            u2(u2operand);
+        }
+
+        /**
+         * 读写局部变量，编号超过 255 时加 wide 前缀
+         */
+        void local(int opcode, int index) {
+            if (index > 255) {
+                u1(WIDE);
+                u1(opcode);
+                u2(index);
+            } else {
+                u1(opcode);
+                u1(index);
+            }
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5)
+                u1(ICONST_0 + value);
+            else if (value >= -128 && value <= 127) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= -32768 && value <= 32767) {
+                u1(SIPUSH);
+                u2(value);
+            } else
+                throw new IllegalArgumentException("use ldc for " + value);
+        }
+
+        /**
+         * 写一条跳转，偏移先留空，返回要回填的位置
+         */
+        int jump(int opcode) {
+            int at = length;
+            u1(opcode);
+            u2(0);
+            return at;
+        }
+
+        /**
+         * 回填 at 处跳转指令的目标
+         */
+        boolean patchJump(int at, int target) {
+            int offset = target - at;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                return false;
+            bytes[at + 1] = (byte) (offset >> 8);
+            bytes[at + 2] = (byte) offset;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import static vm.MiniVm.*;
+
+/**
+ * 把 o0 函数的每个基本块转换成预先链接好的节点树
+ * 操作数、跳转目标、被调函数在转换时就解析成直接引用，常量和变量访问各自有专门的节点，
+ * 执行时不再解码指令。变量都放在 MiniVm 的 long[] 栈上，用帧基址 fp 加固定偏移访问
+ */
+class ClosureCompiler {
+    private final MiniVm vm;
+    private final Function[] functions;
+    // 正在转换的函数里临时槽的起点（帧里局部变量之后），以及用到了几个临时槽
+    private int tempBase;
+    private int temps;
+
+    static class Unconvertible extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unconvertible(String message) {
+            super(message);
+        }
+    }
+
+    private ClosureCompiler(MiniVm vm) {
+        this.vm = vm;
+        this.functions = new Function[vm.fnEntry.length];
+        for (int f = 0; f < functions.length; f++)
+            functions[f] = new Function(vm, f, vm.fnRets[f], vm.fnParams[f], vm.fnLocals[f]);
+    }
+
+    /**
+     * 转换整个程序；不能转换的函数 entry 是 null，调用它时交给解释器执行，并在标准错误上说明原因
+     */
+    static Function[] compile(MiniVm vm) {
+        ClosureCompiler compiler = new ClosureCompiler(vm);
+        for (int f = 0; f < compiler.functions.length; f++) {
+            Function function = compiler.functions[f];
+            compiler.tempBase = function.frameSize;
+            compiler.temps = 0;
+            try {
+                function.entry = compiler.convert(f);
+                function.frameSize += compiler.temps;
+            } catch (Unconvertible e) {
+                System.err.println("closure: " + vm.globalName(vm.fnName[f]) + " runs in the interpreter (" + e.getMessage() + ")");
+            }
+        }
+        return compiler.functions;
+    }
+
+    /**
+     * 一个函数，帧布局是 [返回值][参数][局部变量][临时槽]，fp 指向帧的第一个槽位
+     * 临时槽存放语句执行前要先算出来的值；entry 为 null 的函数交给解释器，解释器的帧同样从 fp 处的返回值和参数开始
+     */
+    static final class Function {
+        final MiniVm vm;
+        final int index;
+        final int rets;
+        final int argSlots;
+        int frameSize;
+        Block entry;
+
+        Function(MiniVm vm, int index, int rets, int params, int locals) {
+            this.vm = vm;
+            this.index = index;
+            this.rets = rets;
+            this.argSlots = rets + params;
+            this.frameSize = argSlots + locals;
+        }
+
+        long invoke(long[] s, int fp) {
+            if (entry == null)
+                return vm.execute(index, fp);
+            Arrays.fill(s, fp + argSlots, fp + frameSize, 0L);
+            int sp = fp + frameSize;
+            Block b = entry;
+            while (b != null)
+                b = b.run(s, fp, sp);
+            return rets != 0 ? s[fp] : 0L;
+        }
+    }
+
+    /**
+     * 基本块：顺序执行 body，然后按结尾的跳转选下一个块，返回 null 表示函数返回
+     */
+    static final class Block {
+        Stmt[] body;
+        Node cond;
+        Block next;
+        Block otherwise;
+        boolean returns;
+
+        Block run(long[] s, int fp, int sp) {
+            for (Stmt stmt : body)
+                stmt.exec(s, fp, sp);
+            if (returns)
+                return null;
+            if (cond == null)
+                return next;
+            return cond.eval(s, fp, sp) != 0 ? next : otherwise;
+        }
+    }
+
+    abstract static class Node {
+        /**
+         * @param sp 当前帧之上第一个空闲槽位，函数调用从这里开始放被调函数的帧
+         */
+        abstract long eval(long[] s, int fp, int sp);
+    }
+
+    abstract static class Stmt {
+        abstract void exec(long[] s, int fp, int sp);
+    }
+
+    static final class Const extends Node {
+        final long value;
+
+        Const(long value) {
+            this.value = value;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            return value;
+        }
+    }
+
+    static final class LoadFrame extends Node {
+        final int offset;
+
+        LoadFrame(int offset) {
+            this.offset = offset;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            return s[fp + offset];
+        }
+    }
+
+    static final class LoadGlobal extends Node {
+        final long[] globals;
+        final int index;
+
+        LoadGlobal(long[] globals, int index) {
+            this.globals = globals;
+            this.index = index;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            return globals[index];
+        }
+    }
+
+    static final class AddI extends Node {
+        final Node lhs, rhs;
+
+        AddI(Node lhs, Node rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            return lhs.eval(s, fp, sp) + rhs.eval(s, fp, sp);
+        }
+    }
+
+    static final class SubI extends Node {
+        final Node lhs, rhs;
+
+        SubI(Node lhs, Node rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            return lhs.eval(s, fp, sp) - rhs.eval(s, fp, sp);
+        }
+    }
+
+    static final class MulI extends Node {
+        final Node lhs, rhs;
+
+        MulI(Node lhs, Node rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            return lhs.eval(s, fp, sp) * rhs.eval(s, fp, sp);
+        }
+    }
+
+    /**
+     * cmpi 后面紧跟 setlt/setgt/not 时合并成一个比较节点，want 是希望的比较结果
+     */
+    static final class CompareI extends Node {
+        final Node lhs, rhs;
+        final int want;
+        final boolean negate;
+
+        CompareI(Node lhs, Node rhs, int want, boolean negate) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.want = want;
+            this.negate = negate;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            boolean result = Long.compare(lhs.eval(s, fp, sp), rhs.eval(s, fp, sp)) == want;
+            return result != negate ? 1 : 0;
+        }
+    }
+
+    /**
+     * 其余的二元运算
+     */
+    static final class Binary extends Node {
+        final int op;
+        final Node lhs, rhs;
+
+        Binary(int op, Node lhs, Node rhs) {
+            this.op = op;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            long l = lhs.eval(s, fp, sp);
+            long r = rhs.eval(s, fp, sp);
+            switch (op) {
+                case DIVI:
+                    return C0Runtime.divi(l, r);
+                case DIVU:
+                    return C0Runtime.divu(l, r);
+                case ADDF:
+                    return C0Runtime.addf(l, r);
+                case SUBF:
+                    return C0Runtime.subf(l, r);
+                case MULF:
+                    return C0Runtime.mulf(l, r);
+                case DIVF:
+                    return C0Runtime.divf(l, r);
+                case SHL:
+                    return l << r;
+                case SHR:
+                    return l >> r;
+                case SHRL:
+                    return l >>> r;
+                case AND:
+                    return l & r;
+                case OR:
+                    return l | r;
+                case XOR:
+                    return l ^ r;
+                case CMPI:
+                    return Long.compare(l, r);
+                case CMPU:
+                    return Long.compareUnsigned(l, r);
+                default:
+                    return C0Runtime.cmpf(l, r);
+            }
+        }
+    }
+
+    static final class Unary extends Node {
+        final int op;
+        final Node operand;
+
+        Unary(int op, Node operand) {
+            this.op = op;
+            this.operand = operand;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            long v = operand.eval(s, fp, sp);
+            switch (op) {
+                case NEGI:
+                    return -v;
+                case NEGF:
+                    return C0Runtime.negf(v);
+                case ITOF:
+                    return C0Runtime.itof(v);
+                case FTOI:
+                    return C0Runtime.ftoi(v);
+                case NOT:
+                    return C0Runtime.not(v);
+                case SETLT:
+                    return C0Runtime.setlt(v);
+                default:
+                    return C0Runtime.setgt(v);
+            }
+        }
+    }
+
+    static final class Call extends Node {
+        final Function target;
+        final Node[] args;
+
+        Call(Function target, Node[] args) {
+            this.target = target;
+            this.args = args;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            int calleeFp = sp;
+            int argBase = calleeFp + target.rets;
+            if (target.rets != 0)
+                s[calleeFp] = 0L;
+            // 每个参数算完才写进去，算参数时的调用放在已经写好的参数之后
+            for (int i = 0; i < args.length; i++)
+                s[argBase + i] = args[i].eval(s, fp, argBase + i);
+            return target.invoke(s, calleeFp);
+        }
+    }
+
+    static final class CallBuiltin extends Node {
+        final C0Runtime runtime;
+        final int id;
+        final Node arg;
+
+        CallBuiltin(C0Runtime runtime, int id, Node arg) {
+            this.runtime = runtime;
+            this.id = id;
+            this.arg = arg;
+        }
+
+        long eval(long[] s, int fp, int sp) {
+            switch (id) {
+                case GETINT:
+                    return runtime.getint();
+                case GETDOUBLE:
+                    return runtime.getdouble();
+                case GETCHAR:
+                    return runtime.getchar();
+                case PUTINT:
+                    runtime.putint(arg.eval(s, fp, sp));
+                    return 0;
+                case PUTDOUBLE:
+                    runtime.putdouble(arg.eval(s, fp, sp));
+                    return 0;
+                case PUTCHAR:
+                    runtime.putchar(arg.eval(s, fp, sp));
+                    return 0;
+                case PUTSTR:
+                    runtime.putstr(arg.eval(s, fp, sp));
+                    return 0;
+                default:
+                    runtime.putln();
+                    return 0;
+            }
+        }
+    }
+
+    static final class StoreFrame extends Stmt {
+        final int offset;
+        final Node value;
+
+        StoreFrame(int offset, Node value) {
+            this.offset = offset;
+            this.value = value;
+        }
+
+        void exec(long[] s, int fp, int sp) {
+            s[fp + offset] = value.eval(s, fp, sp);
+        }
+    }
+
+    static final class StoreGlobal extends Stmt {
+        final long[] globals;
+        final int index;
+        final Node value;
+
+        StoreGlobal(long[] globals, int index, Node value) {
+            this.globals = globals;
+            this.index = index;
+            this.value = value;
+        }
+
+        void exec(long[] s, int fp, int sp) {
+            globals[index] = value.eval(s, fp, sp);
+        }
+    }
+
+    static final class Eval extends Stmt {
+        final Node value;
+
+        Eval(Node value) {
+            this.value = value;
+        }
+
+        void exec(long[] s, int fp, int sp) {
+            value.eval(s, fp, sp);
+        }
+    }
+
+    // 转换时模拟的栈：值是节点，地址和 stackalloc 只记下种类和编号
+    private static final int VALUE = 0, FRAME_ADDR = 1, GLOBAL_ADDR = 2, CALL_FRAME = 3;
+
+    private Block convert(int f) throws Unconvertible {
+        int entry = vm.fnEntry[f];
+        int end = vm.fnEnd[f];
+        int argSlots = vm.fnRets[f] + vm.fnParams[f];
+
+        // 划分基本块，end 处是加载时补上的 ret
+        TreeSet<Integer> leaders = new TreeSet<>();
+        leaders.add(entry);
+        for (int pc = entry; pc <= end; pc++) {
+            int op = vm.code[pc];
+            if (op == BR || op == BRTRUE || op == BRFALSE) {
+                leaders.add((int) vm.imm[pc]);
+                leaders.add(pc + 1);
+            } else if (op == RET) {
+                leaders.add(pc + 1);
+            }
+        }
+        leaders.remove(end + 1);
+        Block[] blocks = new Block[end + 1 - entry];
+        for (int leader : leaders)
+            blocks[leader - entry] = new Block();
+
+        for (int start : leaders) {
+            Block block = blocks[start - entry];
+            Integer limit = leaders.higher(start);
+            int stop = limit == null ? end + 1 : limit;
+            ArrayList<Stmt> body = new ArrayList<>();
+            int[] kinds = new int[16];
+            int[] slots = new int[16];
+            Node[] nodes = new Node[16];
+            int sp = 0;
+            boolean terminated = false;
+            for (int pc = start; pc < stop && !terminated; pc++) {
+                if (sp + 2 > kinds.length) {
+                    kinds = Arrays.copyOf(kinds, kinds.length * 2);
+                    slots = Arrays.copyOf(slots, slots.length * 2);
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                }
+                int op = vm.code[pc];
+                long operand = vm.imm[pc];
+                switch (op) {
+                    case NOP:
+                        break;
+                    case PUSH:
+                        kinds[sp] = VALUE;
+                        nodes[sp++] = new Const(operand);
+                        break;
+                    case POP:
+                        if (sp == 0 || kinds[sp - 1] == CALL_FRAME)
+                            throw new Unconvertible("pop");
+                        if (kinds[sp - 1] == VALUE)
+                            statement(body, new Eval(nodes[sp - 1]), kinds, nodes, sp - 1);
+                        sp--;
+                        break;
+                    case LOCA:
+                        kinds[sp] = FRAME_ADDR;
+                        slots[sp++] = argSlots + (int) operand;
+                        break;
+                    case ARGA:
+                        kinds[sp] = FRAME_ADDR;
+                        slots[sp++] = (int) operand;
+                        break;
+                    case GLOBA:
+                        kinds[sp] = GLOBAL_ADDR;
+                        slots[sp++] = (int) operand;
+                        break;
+                    case LOAD64:
+                        if (sp == 0 || (kinds[sp - 1] != FRAME_ADDR && kinds[sp - 1] != GLOBAL_ADDR))
+                            throw new Unconvertible("load from computed address");
+                        nodes[sp - 1] = kinds[sp - 1] == FRAME_ADDR ? new LoadFrame(slots[sp - 1]) : new LoadGlobal(vm.globals, slots[sp - 1]);
+                        kinds[sp - 1] = VALUE;
+                        break;
+                    case STORE64: {
+                        if (sp < 2 || kinds[sp - 1] != VALUE || (kinds[sp - 2] != FRAME_ADDR && kinds[sp - 2] != GLOBAL_ADDR))
+                            throw new Unconvertible("store to computed address");
+                        Node value = nodes[sp - 1];
+                        Stmt store = kinds[sp - 2] == FRAME_ADDR ? new StoreFrame(slots[sp - 2], value) : new StoreGlobal(vm.globals, slots[sp - 2], value);
+                        sp -= 2;
+                        statement(body, store, kinds, nodes, sp);
+                        break;
+                    }
+                    case STACKALLOC:
+                        kinds[sp] = CALL_FRAME;
+                        slots[sp++] = (int) operand;
+                        break;
+                    case ADDI: case SUBI: case MULI: case DIVI: case DIVU:
+                    case ADDF: case SUBF: case MULF: case DIVF:
+                    case SHL: case SHR: case SHRL: case AND: case OR: case XOR:
+                    case CMPI: case CMPU: case CMPF: {
+                        requireValues(kinds, sp, 2);
+                        Node lhs = nodes[sp - 2];
+                        Node rhs = nodes[sp - 1];
+                        sp--;
+                        nodes[sp - 1] = binary(op, lhs, rhs);
+                        break;
+                    }
+                    case NOT: case NEGI: case NEGF: case ITOF: case FTOI: case SETLT: case SETGT:
+                        requireValues(kinds, sp, 1);
+                        nodes[sp - 1] = unary(op, nodes[sp - 1]);
+                        break;
+                    case CALL: {
+                        int callee = (int) operand;
+                        int params = vm.fnParams[callee];
+                        requireValues(kinds, sp, params);
+                        Node[] args = Arrays.copyOfRange(nodes, sp - params, sp);
+                        sp -= params;
+                        if (sp == 0 || kinds[sp - 1] != CALL_FRAME || slots[sp - 1] != vm.fnRets[callee])
+                            throw new Unconvertible("call without matching stackalloc");
+                        sp--;
+                        sp = pushCall(body, kinds, nodes, sp, new Call(functions[callee], args), vm.fnRets[callee] != 0);
+                        break;
+                    }
+                    case CALLNAME: {
+                        int id = (int) operand;
+                        boolean returns = id <= GETCHAR;
+                        int params = returns || id == PUTLN ? 0 : 1;
+                        requireValues(kinds, sp, params);
+                        Node arg = params == 0 ? null : nodes[sp - 1];
+                        sp -= params;
+                        if (sp == 0 || kinds[sp - 1] != CALL_FRAME || slots[sp - 1] != (returns ? 1 : 0))
+                            throw new Unconvertible("callname without matching stackalloc");
+                        sp--;
+                        sp = pushCall(body, kinds, nodes, sp, new CallBuiltin(vm.runtime, id, arg), returns);
+                        break;
+                    }
+                    case BR:
+                        block.next = blocks[(int) operand - entry];
+                        terminated = true;
+                        break;
+                    case BRTRUE:
+                    case BRFALSE: {
+                        requireValues(kinds, sp, 1);
+                        block.cond = nodes[--sp];
+                        Block target = blocks[(int) operand - entry];
+                        Block fallthrough = blocks[pc + 1 - entry];
+                        block.next = op == BRTRUE ? target : fallthrough;
+                        block.otherwise = op == BRTRUE ? fallthrough : target;
+                        terminated = true;
+                        break;
+                    }
+                    case RET:
+                        block.returns = true;
+                        terminated = true;
+                        break;
+                    default:
+                        throw new Unconvertible("opcode 0x" + Integer.toHexString(op));
+                }
+            }
+            if (sp != 0)
+                throw new Unconvertible("value live across block boundary");
+            if (!terminated)
+                block.next = blocks[stop - entry];
+            block.body = body.toArray(new Stmt[0]);
+        }
+        return blocks[0];
+    }
+
+    /**
+     * 把语句加到 body 末尾
+     * 节点树到用的时候才求值，栈上还没用到的值要在语句之前算：按压栈的顺序先存进临时槽，栈上换成读临时槽。
+     * 第 i 个位置的值只用第 i 个临时槽，栈上的值只会往低处合并，所以不会覆盖还没读的临时槽。
+     * 生成指令时 φ 的并行赋值就是 loca a; 值1; loca b; 值2; store64; store64，靠这里转换
+     */
+    private void statement(ArrayList<Stmt> body, Stmt stmt, int[] kinds, Node[] nodes, int sp) {
+        for (int i = 0; i < sp; i++) {
+            if (kinds[i] != VALUE || nodes[i] instanceof Const)
+                continue;
+            int offset = tempBase + i;
+            if (nodes[i] instanceof LoadFrame && ((LoadFrame) nodes[i]).offset == offset)
+                continue;
+            body.add(new StoreFrame(offset, nodes[i]));
+            nodes[i] = new LoadFrame(offset);
+            temps = Math.max(temps, i + 1);
+        }
+        body.add(stmt);
+    }
+
+    private int pushCall(ArrayList<Stmt> body, int[] kinds, Node[] nodes, int sp, Node call, boolean returns) {
+        if (returns) {
+            kinds[sp] = VALUE;
+            nodes[sp++] = call;
+        } else {
+            statement(body, new Eval(call), kinds, nodes, sp);
+        }
+        return sp;
+    }
+
+    private static void requireValues(int[] kinds, int sp, int n) throws Unconvertible {
+        if (sp < n)
+            throw new Unconvertible("stack underflow");
+        for (int i = sp - n; i < sp; i++) {
+            if (kinds[i] != VALUE)
+                throw new Unconvertible("operand is not a value");
+        }
+    }
+
+    private static Node binary(int op, Node lhs, Node rhs) {
+        switch (op) {
+            case ADDI:
+                return new AddI(lhs, rhs);
+            case SUBI:
+                return new SubI(lhs, rhs);
+            case MULI:
+                return new MulI(lhs, rhs);
+            default:
+                return new Binary(op, lhs, rhs);
+        }
+    }
+
+    private static Node unary(int op, Node operand) {
+        if (operand instanceof Binary && ((Binary) operand).op == CMPI) {
+            Binary cmp = (Binary) operand;
+            switch (op) {
+                case SETLT:
+                    return new CompareI(cmp.lhs, cmp.rhs, -1, false);
+                case SETGT:
+                    return new CompareI(cmp.lhs, cmp.rhs, 1, false);
+                case NOT:
+                    return new CompareI(cmp.lhs, cmp.rhs, 0, false);
+            }
+        }
+        if (op == NOT && operand instanceof CompareI) {
+            CompareI cmp = (CompareI) operand;
+            return new CompareI(cmp.lhs, cmp.rhs, cmp.want, !cmp.negate);
+        }
+        return new Unary(op, operand);
+    }
+}
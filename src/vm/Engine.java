@@ -0,0 +1,10 @@
+package vm;
+
+public enum Engine {
+    /** 只用 switch 解释执行 */
+    INTERPRETER,
+    /** 加载时把每个基本块转换成预先链接好的节点树，再执行节点树 */
+    CLOSURE,
+    /** 解释执行，热点函数编译成 JVM 字节码 */
+    JIT
+}
@@ -0,0 +1,642 @@
+package vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static vm.ClassFileWriter.*;
+import static vm.MiniVm.*;
+
+/**
+ * 把热点函数翻译成 JVM 字节码
+ * 每个 C0 函数变成一个静态方法 f<编号>(C0Runtime, 参数...)，loca/arga 对应 JVM 局部变量，
+ * 运算栈直接对应 JVM 操作数栈；loca/arga/globa 压的地址只在翻译时记录，不会真的出现在栈上
+ */
+class JitCompiler {
+    static final String RUNTIME = "vm/C0Runtime";
+    static final MethodType BRIDGE_TYPE = MethodType.methodType(long.class, C0Runtime.class, long[].class, int.class);
+    static final MethodType OSR_TYPE = MethodType.methodType(long.class, C0Runtime.class, long[].class, int.class, int.class);
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    // 翻译时抽象栈上元素的种类，编码成 kind << 24 | index
+    static final int VALUE = 0, LOCAL_ADDR = 1, ARG_ADDR = 2, GLOBAL_ADDR = 3, FRAME = 4;
+
+    private final MiniVm vm;
+    // 每个函数编译进了哪个类，null 表示还在解释执行
+    final String[] owner;
+    // 翻译失败的函数不再尝试
+    final boolean[] failed;
+
+    JitCompiler(MiniVm vm) {
+        this.vm = vm;
+        this.owner = new String[vm.fnEntry.length];
+        this.failed = new boolean[vm.fnEntry.length];
+    }
+
+    static class Untranslatable extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Untranslatable(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 编译 root 以及它调用到的所有还没编译的函数，osrPc >= 0 时再给 root 生成一个从 osrPc 进入的入口
+     *
+     * @return root 能否使用编译后的代码
+     */
+    boolean compile(int root, int osrPc) {
+        if (failed[root])
+            return false;
+        ArrayList<Integer> batch = collect(root);
+        int[][][] states = new int[vm.fnEntry.length][][];
+        for (int f : batch) {
+            try {
+                states[f] = analyse(f);
+            } catch (Untranslatable e) {
+                failed[f] = true;
+            }
+        }
+        // 调用了不能编译的函数的函数也不能编译
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int f : batch) {
+                if (failed[f])
+                    continue;
+                for (int callee : callees(f)) {
+                    if (failed[callee]) {
+                        failed[f] = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        batch.removeIf(f -> failed[f]);
+        if (failed[root])
+            return false;
+
+        int[][] rootStates = states[root];
+        if (osrPc >= 0) {
+            if (rootStates == null) {
+                try {
+                    rootStates = analyse(root);
+                } catch (Untranslatable e) {
+                    osrPc = -1;
+                }
+            }
+            if (rootStates == null || rootStates[osrPc - vm.fnEntry[root]] == null || rootStates[osrPc - vm.fnEntry[root]].length != 0)
+                osrPc = -1;
+        }
+        if (batch.isEmpty() && osrPc < 0)
+            return owner[root] != null;
+
+        String className = "vm/C0Jit$" + classCounter.incrementAndGet();
+        String[] names = owner.clone();
+        for (int f : batch)
+            names[f] = className;
+        ClassFileWriter cw = new ClassFileWriter(className, "java/lang/Object");
+        try {
+            for (int f : batch) {
+                cw.addMethod(ACC_PUBLIC | ACC_STATIC, "f" + f, descriptor(f), translate(cw, names, f, states[f], -1));
+                cw.addMethod(ACC_PUBLIC | ACC_STATIC, "b" + f, BRIDGE_TYPE.toMethodDescriptorString(), bridge(cw, names, f));
+            }
+            if (osrPc >= 0)
+                cw.addMethod(ACC_PUBLIC | ACC_STATIC, "osr", OSR_TYPE.toMethodDescriptorString(), translate(cw, names, root, rootStates, osrPc));
+        } catch (Untranslatable e) {
+            for (int f : batch)
+                failed[f] = true;
+            return false;
+        }
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> c = lookup.defineClass(cw.toByteArray());
+            Class.forName(c.getName(), true, c.getClassLoader());
+            for (int f : batch) {
+                owner[f] = className;
+                vm.compiled[f] = lookup.findStatic(c, "b" + f, BRIDGE_TYPE);
+            }
+            if (osrPc >= 0) {
+                vm.osrEntry[root] = lookup.findStatic(c, "osr", OSR_TYPE);
+                vm.osrPc[root] = osrPc;
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            for (int f : batch)
+                failed[f] = true;
+            return false;
+        }
+        return owner[root] != null;
+    }
+
+    /**
+     * 从 root 出发，找出所有还没编译过的函数
+     */
+    private ArrayList<Integer> collect(int root) {
+        ArrayList<Integer> batch = new ArrayList<>();
+        boolean[] seen = new boolean[vm.fnEntry.length];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.push(root);
+        seen[root] = true;
+        while (!work.isEmpty()) {
+            int f = work.pop();
+            if (owner[f] != null || failed[f])
+                continue;
+            batch.add(f);
+            for (int callee : callees(f)) {
+                if (!seen[callee]) {
+                    seen[callee] = true;
+                    work.push(callee);
+                }
+            }
+        }
+        return batch;
+    }
+
+    private int[] callees(int f) {
+        int[] result = new int[0];
+        for (int pc = vm.fnEntry[f]; pc < vm.fnEnd[f]; pc++) {
+            if (vm.code[pc] == CALL) {
+                result = Arrays.copyOf(result, result.length + 1);
+                result[result.length - 1] = (int) vm.imm[pc];
+            }
+        }
+        return result;
+    }
+
+    String descriptor(int f) {
+        StringBuilder sb = new StringBuilder("(L" + RUNTIME + ";");
+        for (int i = 0; i < vm.fnParams[f]; i++)
+            sb.append('J');
+        return sb.append(vm.fnRets[f] == 0 ? ")V" : ")J").toString();
+    }
+
+    private static int kind(int entry) {
+        return entry >>> 24;
+    }
+
+    private static int index(int entry) {
+        return entry & 0xffffff;
+    }
+
+    private static int entry(int kind, int index) {
+        return kind << 24 | index;
+    }
+
+    /**
+     * 对函数做一遍抽象解释，算出每条指令执行前的抽象栈
+     * 汇合点两边的栈必须一致，地址只能由 load64/store64 消耗，否则就不翻译这个函数
+     *
+     * @return 按 pc - fnEntry 下标的抽象栈，到达不了的指令是 null
+     */
+    int[][] analyse(int f) throws Untranslatable {
+        int entry = vm.fnEntry[f];
+        int[][] states = new int[vm.fnEnd[f] + 1 - entry][];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        states[0] = new int[0];
+        work.push(entry);
+        while (!work.isEmpty()) {
+            int pc = work.pop();
+            int[] stack = states[pc - entry];
+            int op = vm.code[pc];
+            long operand = vm.imm[pc];
+            int sp = stack.length;
+            int[] next = Arrays.copyOf(stack, stack.length + 2);
+            switch (op) {
+                case NOP:
+                    break;
+                case PUSH:
+                    next[sp++] = entry(VALUE, 0);
+                    break;
+                case POP:
+                    sp = popAny(next, sp, 1);
+                    break;
+                case POPN:
+                    sp = popAny(next, sp, (int) operand);
+                    break;
+                case DUP:
+                    if (sp == 0 || kind(next[sp - 1]) == FRAME)
+                        throw new Untranslatable("dup");
+                    next[sp] = next[sp - 1];
+                    sp++;
+                    break;
+                case LOCA:
+                    next[sp++] = entry(LOCAL_ADDR, (int) operand);
+                    break;
+                case ARGA:
+                    next[sp++] = entry(ARG_ADDR, (int) operand);
+                    break;
+                case GLOBA:
+                    next[sp++] = entry(GLOBAL_ADDR, (int) operand);
+                    break;
+                case LOAD64:
+                    if (sp == 0 || !isAddress(next[sp - 1]))
+                        throw new Untranslatable("load from computed address");
+                    next[sp - 1] = entry(VALUE, 0);
+                    break;
+                case STORE64:
+                    sp = popValues(next, sp, 1);
+                    if (sp == 0 || !isAddress(next[sp - 1]))
+                        throw new Untranslatable("store to computed address");
+                    sp--;
+                    break;
+                case STACKALLOC:
+                    if (operand != 0 && operand != 1)
+                        throw new Untranslatable("stackalloc " + operand);
+                    next[sp++] = entry(FRAME, (int) operand);
+                    break;
+                case ADDI: case SUBI: case MULI: case DIVI: case DIVU:
+                case ADDF: case SUBF: case MULF: case DIVF:
+                case SHL: case SHR: case SHRL: case AND: case OR: case XOR:
+                case CMPI: case CMPU: case CMPF:
+                    sp = popValues(next, sp, 2);
+                    next[sp++] = entry(VALUE, 0);
+                    break;
+                case NOT: case NEGI: case NEGF: case ITOF: case FTOI: case SETLT: case SETGT:
+                    sp = popValues(next, sp, 1);
+                    next[sp++] = entry(VALUE, 0);
+                    break;
+                case BR:
+                    flow(states, work, entry, (int) operand, Arrays.copyOf(next, sp));
+                    continue;
+                case BRTRUE:
+                case BRFALSE:
+                    sp = popValues(next, sp, 1);
+                    flow(states, work, entry, (int) operand, Arrays.copyOf(next, sp));
+                    break;
+                case CALL: {
+                    int callee = (int) operand;
+                    sp = popValues(next, sp, vm.fnParams[callee]);
+                    if (sp == 0 || next[sp - 1] != entry(FRAME, vm.fnRets[callee]))
+                        throw new Untranslatable("call without matching stackalloc");
+                    sp--;
+                    if (vm.fnRets[callee] != 0)
+                        next[sp++] = entry(VALUE, 0);
+                    break;
+                }
+                case CALLNAME: {
+                    int id = (int) operand;
+                    int rets = id <= GETCHAR ? 1 : 0;
+                    sp = popValues(next, sp, id == PUTLN || rets == 1 ? 0 : 1);
+                    if (sp == 0 || next[sp - 1] != entry(FRAME, rets))
+                        throw new Untranslatable("callname without matching stackalloc");
+                    sp--;
+                    if (rets != 0)
+                        next[sp++] = entry(VALUE, 0);
+                    break;
+                }
+                case RET:
+                    continue;
+                default:
+                    throw new Untranslatable("opcode 0x" + Integer.toHexString(op));
+            }
+            flow(states, work, entry, pc + 1, Arrays.copyOf(next, sp));
+        }
+        return states;
+    }
+
+    private static boolean isAddress(int e) {
+        int k = kind(e);
+        return k == LOCAL_ADDR || k == ARG_ADDR || k == GLOBAL_ADDR;
+    }
+
+    private static int popAny(int[] stack, int sp, int n) throws Untranslatable {
+        for (int i = 0; i < n; i++) {
+            if (sp == 0 || kind(stack[sp - 1]) == FRAME)
+                throw new Untranslatable("pop");
+            sp--;
+        }
+        return sp;
+    }
+
+    private static int popValues(int[] stack, int sp, int n) throws Untranslatable {
+        for (int i = 0; i < n; i++) {
+            if (sp == 0 || kind(stack[sp - 1]) != VALUE)
+                throw new Untranslatable("operand is not a value");
+            sp--;
+        }
+        return sp;
+    }
+
+    private void flow(int[][] states, ArrayDeque<Integer> work, int entry, int target, int[] stack) throws Untranslatable {
+        if (target < entry || target - entry >= states.length)
+            throw new Untranslatable("fall off function");
+        int[] old = states[target - entry];
+        if (old == null) {
+            states[target - entry] = stack;
+            work.push(target);
+        } else if (!Arrays.equals(old, stack)) {
+            throw new Untranslatable("stack mismatch at " + target);
+        }
+    }
+
+    private static int words(int[] stack) {
+        int words = 0;
+        for (int e : stack) {
+            if (kind(e) == VALUE)
+                words += 2;
+            else if (kind(e) == FRAME)
+                words += 1;
+        }
+        return words;
+    }
+
+    /**
+     * 生成函数体；osrPc >= 0 时生成的是从解释器栈帧接手、跳到 osrPc 继续执行的入口
+     */
+    ClassFileWriter.Code translate(ClassFileWriter cw, String[] names, int f, int[][] states, int osrPc) throws Untranslatable {
+        int entry = vm.fnEntry[f];
+        int params = vm.fnParams[f];
+        int rets = vm.fnRets[f];
+        int locals = vm.fnLocals[f];
+        boolean osr = osrPc >= 0;
+
+        // JVM 局部变量布局：[rt][osr: stack, argBase, locBase][参数][返回值][局部变量][全局区数组][临时变量]
+        int paramBase = osr ? 4 : 1;
+        int retLocal = paramBase + 2 * params;
+        int localBase = retLocal + 2;
+        int globalsLocal = localBase + 2 * locals;
+        int tmpLocal = globalsLocal + 1;
+
+        ClassFileWriter.Code code = new ClassFileWriter.Code();
+        code.maxLocals = tmpLocal + 2;
+        code.local(ALOAD, 0);
+        code.op(GETFIELD, cw.fieldRef(RUNTIME, "globals", "[J"));
+        code.local(ASTORE, globalsLocal);
+        if (osr) {
+            for (int i = 0; i < params + rets; i++) {
+                code.local(ALOAD, 1);
+                code.local(ILOAD, 2);
+                pushInt(cw, code, i);
+                code.op(IADD);
+                code.op(LALOAD);
+                code.local(LSTORE, i < rets ? retLocal : paramBase + 2 * (i - rets));
+            }
+            for (int i = 0; i < locals; i++) {
+                code.local(ALOAD, 1);
+                code.local(ILOAD, 3);
+                pushInt(cw, code, i);
+                code.op(IADD);
+                code.op(LALOAD);
+                code.local(LSTORE, localBase + 2 * i);
+            }
+        } else {
+            for (int i = 0; i < locals + 1; i++) {
+                code.op(LCONST_0);
+                code.local(LSTORE, retLocal + 2 * i);
+            }
+        }
+        ArrayList<int[]> fixups = new ArrayList<>();
+        if (osr)
+            fixups.add(new int[]{code.jump(GOTO), osrPc});
+
+        int[] offsets = new int[states.length];
+        int maxWords = 0;
+        for (int pc = entry; pc <= vm.fnEnd[f]; pc++) {
+            int[] stack = states[pc - entry];
+            if (stack == null)
+                continue;
+            offsets[pc - entry] = code.position();
+            maxWords = Math.max(maxWords, words(stack));
+            int top = stack.length == 0 ? -1 : stack[stack.length - 1];
+            long operand = vm.imm[pc];
+            switch (vm.code[pc]) {
+                case NOP:
+                case LOCA:
+                case ARGA:
+                case GLOBA:
+                    break;
+                case PUSH:
+                    if (operand == 0)
+                        code.op(LCONST_0);
+                    else if (operand == 1)
+                        code.op(LCONST_1);
+                    else
+                        code.op(LDC2_W, cw.longConst(operand));
+                    break;
+                case POP:
+                    if (kind(top) == VALUE)
+                        code.op(POP2);
+                    break;
+                case POPN:
+                    for (int i = 0; i < operand; i++) {
+                        if (kind(stack[stack.length - 1 - i]) == VALUE)
+                            code.op(POP2);
+                    }
+                    break;
+                case DUP:
+                    if (kind(top) == VALUE)
+                        code.op(DUP2);
+                    break;
+                case LOAD64:
+                    switch (kind(top)) {
+                        case LOCAL_ADDR:
+                            code.local(LLOAD, localBase + 2 * index(top));
+                            break;
+                        case ARG_ADDR:
+                            code.local(LLOAD, argLocal(index(top), rets, retLocal, paramBase));
+                            break;
+                        default:
+                            code.local(ALOAD, globalsLocal);
+                            pushInt(cw, code, index(top));
+                            code.op(LALOAD);
+                            break;
+                    }
+                    break;
+                case STORE64: {
+                    int address = stack[stack.length - 2];
+                    switch (kind(address)) {
+                        case LOCAL_ADDR:
+                            code.local(LSTORE, localBase + 2 * index(address));
+                            break;
+                        case ARG_ADDR:
+                            code.local(LSTORE, argLocal(index(address), rets, retLocal, paramBase));
+                            break;
+                        default:
+                            code.local(LSTORE, tmpLocal);
+                            code.local(ALOAD, globalsLocal);
+                            pushInt(cw, code, index(address));
+                            code.local(LLOAD, tmpLocal);
+                            code.op(LASTORE);
+                            break;
+                    }
+                    break;
+                }
+                case STACKALLOC:
+                    code.local(ALOAD, 0);
+                    break;
+                case ADDI:
+                    code.op(LADD);
+                    break;
+                case SUBI:
+                    code.op(LSUB);
+                    break;
+                case MULI:
+                    code.op(LMUL);
+                    break;
+                case NEGI:
+                    code.op(LNEG);
+                    break;
+                case SHL:
+                    code.op(L2I);
+                    code.op(LSHL);
+                    break;
+                case SHR:
+                    code.op(L2I);
+                    code.op(LSHR);
+                    break;
+                case SHRL:
+                    code.op(L2I);
+                    code.op(LUSHR);
+                    break;
+                case AND:
+                    code.op(LAND);
+                    break;
+                case OR:
+                    code.op(LOR);
+                    break;
+                case XOR:
+                    code.op(LXOR);
+                    break;
+                case CMPI:
+                    code.op(LCMP);
+                    code.op(I2L);
+                    break;
+                case CMPU:
+                    code.op(INVOKESTATIC, cw.methodRef("java/lang/Long", "compareUnsigned", "(JJ)I"));
+                    code.op(I2L);
+                    break;
+                case DIVI:
+                    helper(cw, code, "divi", 2);
+                    break;
+                case DIVU:
+                    helper(cw, code, "divu", 2);
+                    break;
+                case ADDF:
+                    helper(cw, code, "addf", 2);
+                    break;
+                case SUBF:
+                    helper(cw, code, "subf", 2);
+                    break;
+                case MULF:
+                    helper(cw, code, "mulf", 2);
+                    break;
+                case DIVF:
+                    helper(cw, code, "divf", 2);
+                    break;
+                case CMPF:
+                    helper(cw, code, "cmpf", 2);
+                    break;
+                case NOT:
+                    helper(cw, code, "not", 1);
+                    break;
+                case NEGF:
+                    helper(cw, code, "negf", 1);
+                    break;
+                case ITOF:
+                    helper(cw, code, "itof", 1);
+                    break;
+                case FTOI:
+                    helper(cw, code, "ftoi", 1);
+                    break;
+                case SETLT:
+                    helper(cw, code, "setlt", 1);
+                    break;
+                case SETGT:
+                    helper(cw, code, "setgt", 1);
+                    break;
+                case BR:
+                    fixups.add(new int[]{code.jump(GOTO), (int) operand});
+                    break;
+                case BRTRUE:
+                    code.op(LCONST_0);
+                    code.op(LCMP);
+                    fixups.add(new int[]{code.jump(IFNE), (int) operand});
+                    break;
+                case BRFALSE:
+                    code.op(LCONST_0);
+                    code.op(LCMP);
+                    fixups.add(new int[]{code.jump(IFEQ), (int) operand});
+                    break;
+                case CALL: {
+                    int callee = (int) operand;
+                    code.op(INVOKESTATIC, cw.methodRef(names[callee], "f" + callee, descriptor(callee)));
+                    break;
+                }
+                case CALLNAME: {
+                    int id = (int) operand;
+                    String desc = id <= GETCHAR ? "()J" : id == PUTLN ? "()V" : "(J)V";
+                    code.op(INVOKEVIRTUAL, cw.methodRef(RUNTIME, BUILTINS[id], desc));
+                    break;
+                }
+                case RET:
+                    if (rets != 0) {
+                        code.local(LLOAD, retLocal);
+                        code.op(LRETURN);
+                    } else if (osr) {
+                        code.op(LCONST_0);
+                        code.op(LRETURN);
+                    } else {
+                        code.op(RETURN);
+                    }
+                    break;
+                default:
+                    throw new Untranslatable("opcode 0x" + Integer.toHexString(vm.code[pc]));
+            }
+        }
+        for (int[] fixup : fixups) {
+            if (!code.patchJump(fixup[0], offsets[fixup[1] - entry]))
+                throw new Untranslatable("method too large");
+        }
+        if (code.length > 65535)
+            throw new Untranslatable("method too large");
+        code.maxStack = maxWords + 6;
+        return code;
+    }
+
+    private static int argLocal(int k, int rets, int retLocal, int paramBase) {
+        return k < rets ? retLocal : paramBase + 2 * (k - rets);
+    }
+
+    static void pushInt(ClassFileWriter cw, ClassFileWriter.Code code, int value) {
+        if (value >= -32768 && value <= 32767)
+            code.iconst(value);
+        else
+            code.op(LDC_W, cw.intConst(value));
+    }
+
+    private static void helper(ClassFileWriter cw, ClassFileWriter.Code code, String name, int arity) {
+        code.op(INVOKESTATIC, cw.methodRef(RUNTIME, name, arity == 2 ? "(JJ)J" : "(J)J"));
+    }
+
+    /**
+     * 解释器调用编译后函数的入口：从解释器栈上取参数
+     */
+    private ClassFileWriter.Code bridge(ClassFileWriter cw, String[] names, int f) {
+        int params = vm.fnParams[f];
+        int rets = vm.fnRets[f];
+        ClassFileWriter.Code code = new ClassFileWriter.Code();
+        code.local(ALOAD, 0);
+        for (int i = 0; i < params; i++) {
+            code.local(ALOAD, 1);
+            code.local(ILOAD, 2);
+            pushInt(cw, code, rets + i);
+            code.op(IADD);
+            code.op(LALOAD);
+        }
+        code.op(INVOKESTATIC, cw.methodRef(names[f], "f" + f, descriptor(f)));
+        if (rets == 0)
+            code.op(LCONST_0);
+        code.op(LRETURN);
+        code.maxStack = 1 + 2 * params + 3;
+        code.maxLocals = 3;
+        return code;
+    }
+}
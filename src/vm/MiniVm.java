@@ -0,0 +1,687 @@
+package vm;
+
+import instruction.Operation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * o0 虚拟机
+ * 读入 Analyser.output 生成的二进制（magic 0x72303b3e），把每条指令预解码成 int 操作码和 long 操作数，
+ * 然后在一块 long[] 栈上解释执行，执行期间不分配对象
+ * 调用次数或循环回跳次数超过阈值的函数交给 JitCompiler 翻译成 JVM 字节码，之后的调用直接走编译后的代码
+ * 也可以选择 ClosureCompiler，加载时把整个程序转换成节点树来执行，见 Engine
+ */
+public class MiniVm {
+    public static final int MAGIC = 0x72303b3e;
+
+    // 操作码，取值和 instruction.Operation 一致，方便在 switch 里直接用
+    static final int NOP = 0x00, PUSH = 0x01, POP = 0x02, POPN = 0x03, DUP = 0x04;
+    static final int LOCA = 0x0a, ARGA = 0x0b, GLOBA = 0x0c;
+    static final int LOAD8 = 0x10, LOAD16 = 0x11, LOAD32 = 0x12, LOAD64 = 0x13;
+    static final int STORE8 = 0x14, STORE16 = 0x15, STORE32 = 0x16, STORE64 = 0x17;
+    static final int ALLOC = 0x18, FREE = 0x19, STACKALLOC = 0x1a;
+    static final int ADDI = 0x20, SUBI = 0x21, MULI = 0x22, DIVI = 0x23;
+    static final int ADDF = 0x24, SUBF = 0x25, MULF = 0x26, DIVF = 0x27, DIVU = 0x28;
+    static final int SHL = 0x29, SHR = 0x2a, AND = 0x2b, OR = 0x2c, XOR = 0x2d, NOT = 0x2e;
+    static final int CMPI = 0x30, CMPU = 0x31, CMPF = 0x32, NEGI = 0x34, NEGF = 0x35;
+    static final int ITOF = 0x36, FTOI = 0x37, SHRL = 0x38, SETLT = 0x39, SETGT = 0x3a;
+    static final int BR = 0x41, BRFALSE = 0x42, BRTRUE = 0x43;
+    static final int CALL = 0x48, RET = 0x49, CALLNAME = 0x4a;
+    static final int SCANI = 0x50, SCANC = 0x51, SCANF = 0x52;
+    static final int PRINTI = 0x54, PRINTCH = 0x55, PRINTF = 0x56, PRINTS = 0x57, PRINTLN = 0x58;
+    static final int PANIC = 0xfe;
+
+    // callname 能调用的标准库函数
+    static final int GETINT = 0, GETDOUBLE = 1, GETCHAR = 2, PUTINT = 3, PUTDOUBLE = 4, PUTCHAR = 5, PUTSTR = 6, PUTLN = 7;
+    static final String[] BUILTINS = {"getint", "getdouble", "getchar", "putint", "putdouble", "putchar", "putstr", "putln"};
+
+    // 全局区的地址都带上这个标记，和栈上的槽位编号区分开
+    static final long GLOBAL_BASE = 1L << 48;
+    // 每个调用帧保存的现场：上一帧的 argBase、locBase、返回地址、函数编号
+    static final int FRAME_SLOTS = 4;
+
+    static final int DEFAULT_STACK_SLOTS = 1 << 20;
+    // 编译后的代码递归时用的是 JVM 线程栈，所以在一个栈足够大的线程上运行
+    static final long THREAD_STACK_BYTES = 1L << 30;
+
+    static final int CALL_THRESHOLD = 1000;
+    static final int BACKEDGE_THRESHOLD = 10000;
+
+    // 全局变量：标量用 globals，字符串（函数名、字符串常量）用 globalBytes
+    byte[][] globalBytes;
+    boolean[] globalConst;
+    long[] globals;
+    C0Runtime runtime;
+
+    // 所有函数的指令拼在一起，pc 是全局下标；跳转的操作数在解码时就换算成了绝对地址
+    // 每个函数末尾补一条 ret，这样 _start 这种不以 ret 结尾的函数也能正常返回
+    int[] code;
+    long[] imm;
+
+    int[] fnEntry;
+    int[] fnEnd;
+    int[] fnName;
+    int[] fnRets;
+    int[] fnParams;
+    int[] fnLocals;
+    int startFunction;
+
+    long[] stack;
+
+    private Engine engine = Engine.JIT;
+    // 分层编译：jit 为 null 时只解释执行
+    private JitCompiler jit;
+    int[] callCounts;
+    int[] backEdgeCounts;
+    // 编译后函数的入口（从解释器栈上取参数），以及从循环头进入的 OSR 入口
+    MethodHandle[] compiled;
+    MethodHandle[] osrEntry;
+    int[] osrPc;
+    // 节点树引擎的函数表，其他引擎下为 null
+    private ClosureCompiler.Function[] closures;
+
+    public MiniVm(byte[] image) throws IOException {
+        this(image, DEFAULT_STACK_SLOTS);
+    }
+
+    public MiniVm(byte[] image, int stackSlots) throws IOException {
+        this.stack = new long[stackSlots];
+        try {
+            load(ByteBuffer.wrap(image));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("truncated o0 image", e);
+        }
+    }
+
+    public static MiniVm load(InputStream input) throws IOException {
+        return new MiniVm(input.readAllBytes());
+    }
+
+    public void setInput(InputStream in) {
+        runtime.setInput(in);
+    }
+
+    public void setOutput(PrintStream out) {
+        runtime.setOutput(out);
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+        this.jit = engine == Engine.JIT ? new JitCompiler(this) : null;
+    }
+
+    private void load(ByteBuffer buf) throws IOException {
+        if (buf.getInt() != MAGIC)
+            throw new IOException("not an o0 image");
+        int version = buf.getInt();
+        if (version != 1)
+            throw new IOException("unsupported o0 version " + version);
+
+        int globalCount = buf.getInt();
+        globalBytes = new byte[globalCount][];
+        globalConst = new boolean[globalCount];
+        globals = new long[globalCount];
+        for (int i = 0; i < globalCount; i++) {
+            globalConst[i] = buf.get() != 0;
+            byte[] value = new byte[buf.getInt()];
+            buf.get(value);
+            globalBytes[i] = value;
+            if (value.length == 8)
+                globals[i] = ByteBuffer.wrap(value).getLong();
+        }
+
+        Operation[] byValue = new Operation[256];
+        for (Operation op : Operation.values()) {
+            if (op.getValue() >= 0)
+                byValue[op.getValue()] = op;
+        }
+
+        int functionCount = buf.getInt();
+        fnEntry = new int[functionCount];
+        fnEnd = new int[functionCount];
+        fnName = new int[functionCount];
+        fnRets = new int[functionCount];
+        fnParams = new int[functionCount];
+        fnLocals = new int[functionCount];
+        int[] counts = new int[functionCount];
+        int[] offsets = new int[functionCount];
+        int total = 0;
+        // 先扫一遍拿到总长度，再一次性分配 code/imm
+        int mark = buf.position();
+        for (int f = 0; f < functionCount; f++) {
+            fnName[f] = buf.getInt();
+            fnRets[f] = buf.getInt();
+            fnParams[f] = buf.getInt();
+            fnLocals[f] = buf.getInt();
+            counts[f] = buf.getInt();
+            offsets[f] = buf.position();
+            for (int i = 0; i < counts[f]; i++) {
+                int op = buf.get() & 0xff;
+                if (byValue[op] == null)
+                    throw new IOException("unknown opcode 0x" + Integer.toHexString(op));
+                buf.position(buf.position() + operandSize(op));
+            }
+            total += counts[f] + 1;
+        }
+        buf.position(mark);
+
+        code = new int[total];
+        imm = new long[total];
+        int pc = 0;
+        for (int f = 0; f < functionCount; f++) {
+            buf.position(offsets[f]);
+            fnEntry[f] = pc;
+            for (int i = 0; i < counts[f]; i++, pc++) {
+                int op = buf.get() & 0xff;
+                code[pc] = op;
+                if (operandSize(op) == 8)
+                    imm[pc] = buf.getLong();
+                else if (operandSize(op) == 4)
+                    imm[pc] = buf.getInt();
+            }
+            fnEnd[f] = pc;
+            code[pc++] = RET;
+        }
+
+        startFunction = 0;
+        for (int f = 0; f < functionCount; f++) {
+            if (fnName[f] < 0 || fnName[f] >= globalCount)
+                throw new IOException("function name out of range");
+            if (globalName(fnName[f]).equals("_start"))
+                startFunction = f;
+        }
+        link();
+
+        runtime = new C0Runtime(globals, globalBytes);
+        callCounts = new int[functionCount];
+        backEdgeCounts = new int[functionCount];
+        compiled = new MethodHandle[functionCount];
+        osrEntry = new MethodHandle[functionCount];
+        osrPc = new int[functionCount];
+        jit = new JitCompiler(this);
+    }
+
+    /**
+     * 把跳转偏移换算成绝对地址，把 callname 的全局变量编号换算成标准库编号
+     */
+    private void link() throws IOException {
+        for (int f = 0; f < fnEntry.length; f++) {
+            for (int pc = fnEntry[f]; pc < fnEnd[f]; pc++) {
+                switch (code[pc]) {
+                    case BR:
+                    case BRFALSE:
+                    case BRTRUE: {
+                        long target = pc + 1 + imm[pc];
+                        if (target < fnEntry[f] || target > fnEnd[f])
+                            throw new IOException("branch out of function at " + pc);
+                        imm[pc] = target;
+                        break;
+                    }
+                    case CALL:
+                        if (imm[pc] < 0 || imm[pc] >= fnEntry.length)
+                            throw new IOException("call to unknown function " + imm[pc]);
+                        break;
+                    case CALLNAME: {
+                        if (imm[pc] < 0 || imm[pc] >= globals.length)
+                            throw new IOException("library function name out of range at " + pc);
+                        String name = globalName((int) imm[pc]);
+                        int id = Arrays.asList(BUILTINS).indexOf(name);
+                        if (id < 0)
+                            throw new IOException("unknown library function " + name);
+                        imm[pc] = id;
+                        break;
+                    }
+                    case LOCA:
+                        if (imm[pc] < 0 || imm[pc] >= fnLocals[f])
+                            throw new IOException("local slot out of range at " + pc);
+                        break;
+                    case ARGA:
+                        if (imm[pc] < 0 || imm[pc] >= fnParams[f] + fnRets[f])
+                            throw new IOException("argument slot out of range at " + pc);
+                        break;
+                    case GLOBA:
+                        if (imm[pc] < 0 || imm[pc] >= globals.length)
+                            throw new IOException("global slot out of range at " + pc);
+                        break;
+                }
+            }
+        }
+    }
+
+    static int operandSize(int op) {
+        switch (op) {
+            case PUSH:
+                return 8;
+            case POPN:
+            case LOCA:
+            case ARGA:
+            case GLOBA:
+            case STACKALLOC:
+            case BR:
+            case BRFALSE:
+            case BRTRUE:
+            case CALL:
+            case CALLNAME:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    String globalName(int index) {
+        return new String(globalBytes[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从 _start 开始执行，直到它返回
+     */
+    public void run() {
+        Throwable[] failure = new Throwable[1];
+        closures = engine == Engine.CLOSURE ? ClosureCompiler.compile(this) : null;
+        Thread thread = new Thread(null, () -> {
+            try {
+                if (closures != null)
+                    executeClosures();
+                else
+                    execute(startFunction, 0);
+            } catch (StackOverflowError e) {
+                failure[0] = new Error("stack overflow");
+            } catch (Throwable e) {
+                failure[0] = e;
+            } finally {
+                runtime.flush();
+            }
+        }, "c0-main", THREAD_STACK_BYTES);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error(e);
+        }
+        if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+    }
+
+    /**
+     * AotCompiler 生成的类里不能翻译的函数从这里进入解释器
+     * 第一次调用时加载和类放在一起的 o0 二进制，和编译后的代码共用 runtime 的全局区和输入输出。
+     * 解释执行的函数只会调用解释执行或者 JIT 编译的函数，不会回到生成的类里，所以参数总是从栈底开始放
+     *
+     * @param args [返回值][参数] 布局的帧
+     */
+    public static long interpret(C0Runtime runtime, Class<?> program, int f, long[] args) throws IOException {
+        MiniVm vm = (MiniVm) runtime.interpreter;
+        if (vm == null) {
+            String resource = program.getSimpleName() + ".o0";
+            try (InputStream image = program.getResourceAsStream(resource)) {
+                if (image == null)
+                    throw new IOException(resource + " not found on the class path");
+                vm = load(image);
+            }
+            vm.runtime = runtime;
+            vm.globals = runtime.globals;
+            runtime.interpreter = vm;
+        }
+        System.arraycopy(args, 0, vm.stack, 0, args.length);
+        return vm.execute(f, 0);
+    }
+
+    /**
+     * 用节点树执行；不能转换的函数由解释器执行，解释器里调用能转换的函数时再回到节点树
+     */
+    private void executeClosures() {
+        try {
+            closures[startFunction].invoke(stack, 0);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new Error("stack overflow");
+        }
+    }
+
+    /**
+     * 解释执行 entryFunction，它的返回值和参数已经放在 entryArgBase 开始的栈槽里
+     * 返回 entryArgBase 处的值，函数没有返回值时调用方忽略它
+     */
+    long execute(int entryFunction, int entryArgBase) {
+        final int[] code = this.code;
+        final long[] imm = this.imm;
+        final long[] stack = this.stack;
+        final long[] globals = this.globals;
+        final int[] fnEntry = this.fnEntry;
+        final int[] fnRets = this.fnRets;
+        final int[] fnParams = this.fnParams;
+        final int[] fnLocals = this.fnLocals;
+        final C0Runtime runtime = this.runtime;
+
+        int fn = entryFunction;
+        int argBase = entryArgBase;
+        int sp = argBase + fnRets[fn] + fnParams[fn];
+        // 最外层的返回地址是 -1，ret 到这里就停机
+        stack[sp++] = 0;
+        stack[sp++] = 0;
+        stack[sp++] = -1;
+        stack[sp++] = -1;
+        int locBase = sp;
+        Arrays.fill(stack, sp, sp + fnLocals[fn], 0L);
+        sp += fnLocals[fn];
+        int pc = fnEntry[fn];
+
+        try {
+            while (true) {
+                int op = code[pc++];
+                switch (op) {
+                    case NOP:
+                        break;
+                    case PUSH:
+                        stack[sp++] = imm[pc - 1];
+                        break;
+                    case POP:
+                        sp--;
+                        break;
+                    case POPN:
+                        sp -= (int) imm[pc - 1];
+                        break;
+                    case DUP:
+                        stack[sp] = stack[sp - 1];
+                        sp++;
+                        break;
+                    case LOCA:
+                        stack[sp++] = locBase + imm[pc - 1];
+                        break;
+                    case ARGA:
+                        stack[sp++] = argBase + imm[pc - 1];
+                        break;
+                    case GLOBA:
+                        stack[sp++] = GLOBAL_BASE + imm[pc - 1];
+                        break;
+                    case LOAD64: {
+                        long addr = stack[sp - 1];
+                        stack[sp - 1] = addr >= GLOBAL_BASE ? globals[(int) (addr - GLOBAL_BASE)] : stack[(int) addr];
+                        break;
+                    }
+                    case STORE64: {
+                        long value = stack[--sp];
+                        long addr = stack[--sp];
+                        if (addr >= GLOBAL_BASE)
+                            globals[(int) (addr - GLOBAL_BASE)] = value;
+                        else
+                            stack[(int) addr] = value;
+                        break;
+                    }
+                    case STACKALLOC: {
+                        int n = (int) imm[pc - 1];
+                        for (int i = 0; i < n; i++)
+                            stack[sp++] = 0L;
+                        break;
+                    }
+                    case ADDI:
+                        sp--;
+                        stack[sp - 1] += stack[sp];
+                        break;
+                    case SUBI:
+                        sp--;
+                        stack[sp - 1] -= stack[sp];
+                        break;
+                    case MULI:
+                        sp--;
+                        stack[sp - 1] *= stack[sp];
+                        break;
+                    case DIVI: {
+                        long rhs = stack[--sp];
+                        if (rhs == 0)
+                            throw new Error("division by zero");
+                        stack[sp - 1] /= rhs;
+                        break;
+                    }
+                    case DIVU: {
+                        long rhs = stack[--sp];
+                        if (rhs == 0)
+                            throw new Error("division by zero");
+                        stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], rhs);
+                        break;
+                    }
+                    case ADDF:
+                        sp--;
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) + Double.longBitsToDouble(stack[sp]));
+                        break;
+                    case SUBF:
+                        sp--;
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) - Double.longBitsToDouble(stack[sp]));
+                        break;
+                    case MULF:
+                        sp--;
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) * Double.longBitsToDouble(stack[sp]));
+                        break;
+                    case DIVF:
+                        sp--;
+                        stack[sp - 1] = Double.doubleToRawLongBits(Double.longBitsToDouble(stack[sp - 1]) / Double.longBitsToDouble(stack[sp]));
+                        break;
+                    case SHL:
+                        sp--;
+                        stack[sp - 1] <<= stack[sp];
+                        break;
+                    case SHR:
+                        sp--;
+                        stack[sp - 1] >>= stack[sp];
+                        break;
+                    case SHRL:
+                        sp--;
+                        stack[sp - 1] >>>= stack[sp];
+                        break;
+                    case AND:
+                        sp--;
+                        stack[sp - 1] &= stack[sp];
+                        break;
+                    case OR:
+                        sp--;
+                        stack[sp - 1] |= stack[sp];
+                        break;
+                    case XOR:
+                        sp--;
+                        stack[sp - 1] ^= stack[sp];
+                        break;
+                    case NOT:
+                        stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                        break;
+                    case CMPI:
+                        sp--;
+                        stack[sp - 1] = Long.compare(stack[sp - 1], stack[sp]);
+                        break;
+                    case CMPU:
+                        sp--;
+                        stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], stack[sp]);
+                        break;
+                    case CMPF: {
+                        sp--;
+                        double lhs = Double.longBitsToDouble(stack[sp - 1]);
+                        double rhs = Double.longBitsToDouble(stack[sp]);
+                        stack[sp - 1] = lhs < rhs ? -1 : lhs > rhs ? 1 : 0;
+                        break;
+                    }
+                    case NEGI:
+                        stack[sp - 1] = -stack[sp - 1];
+                        break;
+                    case NEGF:
+                        stack[sp - 1] = Double.doubleToRawLongBits(-Double.longBitsToDouble(stack[sp - 1]));
+                        break;
+                    case ITOF:
+                        stack[sp - 1] = Double.doubleToRawLongBits((double) stack[sp - 1]);
+                        break;
+                    case FTOI:
+                        stack[sp - 1] = (long) Double.longBitsToDouble(stack[sp - 1]);
+                        break;
+                    case SETLT:
+                        stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                        break;
+                    case SETGT:
+                        stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                        break;
+                    case BR: {
+                        int target = (int) imm[pc - 1];
+                        if (target < pc && jit != null) {
+                            // 计数停在阈值上，只在到达时尝试一次编译；编译失败或者入口装在别的循环上以后不会再累加到溢出
+                            if (backEdgeCounts[fn] < BACKEDGE_THRESHOLD && ++backEdgeCounts[fn] == BACKEDGE_THRESHOLD)
+                                jit.compile(fn, target);
+                            if (osrEntry[fn] != null && osrPc[fn] == target) {
+                                // 剩下的部分交给编译后的代码执行完，然后从补在末尾的 ret 返回
+                                long result = invokeOsr(osrEntry[fn], runtime, stack, argBase, locBase);
+                                if (fnRets[fn] != 0)
+                                    stack[argBase] = result;
+                                pc = fnEnd[fn];
+                                break;
+                            }
+                        }
+                        pc = target;
+                        break;
+                    }
+                    case BRFALSE:
+                        if (stack[--sp] == 0)
+                            pc = (int) imm[pc - 1];
+                        break;
+                    case BRTRUE:
+                        if (stack[--sp] != 0)
+                            pc = (int) imm[pc - 1];
+                        break;
+                    case CALL: {
+                        int callee = (int) imm[pc - 1];
+                        int newArgBase = sp - fnParams[callee] - fnRets[callee];
+                        MethodHandle target = compiled[callee];
+                        if (target == null && jit != null && ++callCounts[callee] == CALL_THRESHOLD && jit.compile(callee, -1))
+                            target = compiled[callee];
+                        if (target != null || closures != null && closures[callee].entry != null) {
+                            long result = target != null
+                                    ? invokeCompiled(target, runtime, stack, newArgBase)
+                                    : closures[callee].invoke(stack, newArgBase);
+                            sp = newArgBase;
+                            if (fnRets[callee] != 0)
+                                stack[sp++] = result;
+                            break;
+                        }
+                        stack[sp++] = argBase;
+                        stack[sp++] = locBase;
+                        stack[sp++] = pc;
+                        stack[sp++] = fn;
+                        fn = callee;
+                        argBase = newArgBase;
+                        locBase = sp;
+                        Arrays.fill(stack, sp, sp + fnLocals[fn], 0L);
+                        sp += fnLocals[fn];
+                        pc = fnEntry[fn];
+                        break;
+                    }
+                    case RET: {
+                        int frame = locBase - FRAME_SLOTS;
+                        sp = argBase + fnRets[fn];
+                        argBase = (int) stack[frame];
+                        locBase = (int) stack[frame + 1];
+                        pc = (int) stack[frame + 2];
+                        fn = (int) stack[frame + 3];
+                        if (pc < 0)
+                            return stack[entryArgBase];
+                        break;
+                    }
+                    case CALLNAME:
+                        sp = callBuiltin((int) imm[pc - 1], stack, sp);
+                        break;
+                    case SCANI:
+                        stack[sp++] = runtime.getint();
+                        break;
+                    case SCANC:
+                        stack[sp++] = runtime.getchar();
+                        break;
+                    case SCANF:
+                        stack[sp++] = runtime.getdouble();
+                        break;
+                    case PRINTI:
+                        runtime.putint(stack[--sp]);
+                        break;
+                    case PRINTCH:
+                        runtime.putchar(stack[--sp]);
+                        break;
+                    case PRINTF:
+                        runtime.putdouble(stack[--sp]);
+                        break;
+                    case PRINTS:
+                        runtime.putstr(stack[--sp]);
+                        break;
+                    case PRINTLN:
+                        runtime.putln();
+                        break;
+                    case PANIC:
+                        throw new Error("panic at pc " + (pc - 1));
+                    default:
+                        throw new Error("unsupported instruction 0x" + Integer.toHexString(op) + " at pc " + (pc - 1));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            if (sp >= stack.length - 1)
+                throw new Error("stack overflow");
+            throw new Error("invalid memory access at pc " + (pc - 1), e);
+        }
+    }
+
+    /**
+     * 调用标准库函数，返回新的栈顶
+     */
+    private int callBuiltin(int id, long[] stack, int sp) {
+        switch (id) {
+            case GETINT:
+                stack[sp - 1] = runtime.getint();
+                break;
+            case GETDOUBLE:
+                stack[sp - 1] = runtime.getdouble();
+                break;
+            case GETCHAR:
+                stack[sp - 1] = runtime.getchar();
+                break;
+            case PUTINT:
+                runtime.putint(stack[--sp]);
+                break;
+            case PUTDOUBLE:
+                runtime.putdouble(stack[--sp]);
+                break;
+            case PUTCHAR:
+                runtime.putchar(stack[--sp]);
+                break;
+            case PUTSTR:
+                runtime.putstr(stack[--sp]);
+                break;
+            case PUTLN:
+                runtime.putln();
+                break;
+        }
+        return sp;
+    }
+
+    /**
+     * 调用编译好的代码，把 MethodHandle 的 Throwable 转回运行时异常
+     */
+    private static long invokeCompiled(MethodHandle target, C0Runtime runtime, long[] stack, int argBase) {
+        try {
+            return (long) target.invokeExact(runtime, stack, argBase);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new Error(e);
+        }
+    }
+
+    private static long invokeOsr(MethodHandle target, C0Runtime runtime, long[] stack, int argBase, int locBase) {
+        try {
+            return (long) target.invokeExact(runtime, stack, argBase, locBase);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new Error(e);
+        }
+    }
+}